@@ -6,7 +6,8 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
+import no.sb1.troxy.http.common.SharedFilter;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import no.sb1.troxy.record.v3.ResponseTemplate;
@@ -16,7 +17,7 @@ import org.slf4j.LoggerFactory;
 /**
  * A filter that search for text matching a regular expression, and then replacing the text with the regular expression itself.
  */
-public class AutoRegexNewRecording extends Filter {
+public class AutoRegexNewRecording extends SharedFilter {
     /**
      * Logger for this class.
      */
@@ -156,7 +157,7 @@ public class AutoRegexNewRecording extends Filter {
     }
 
     @Override
-    protected void filterNewRecording(Recording recording) {
+    protected void filterNewRecording(Recording recording, FilterContext context) {
         RequestPattern requestPattern = recording.getRequestPattern();
         requestPattern.setProtocol(getReplacedField(requestPattern.getProtocol(), protocolPatterns, true));
         requestPattern.setHost(getReplacedField(requestPattern.getHost(), hostPatterns, true));
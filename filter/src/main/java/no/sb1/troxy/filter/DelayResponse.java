@@ -3,8 +3,9 @@ package no.sb1.troxy.filter;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.SharedFilter;
 import no.sb1.troxy.record.v3.ResponseTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,7 +14,7 @@ import org.slf4j.LoggerFactory;
  * A filter for delaying Responses based on configuration rather than recorded delay.
 
  */
-public class DelayResponse extends Filter {
+public class DelayResponse extends SharedFilter {
     /**
      * Logger for this class.
      */
@@ -70,8 +71,8 @@ public class DelayResponse extends Filter {
      * {@inheritDoc}
      */
     @Override
-    public void filterClientResponse(Response response, String group) {
-        Delay delay = groupDelays.get(group);
+    public void filterClientResponse(Response response, FilterContext context) {
+        Delay delay = groupDelays.get(context.getGroup());
         if (delay == null)
             return;
         switch (delay.strategy) {
@@ -1,8 +1,9 @@
 package no.sb1.troxy.filter;
 
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
 import no.sb1.troxy.http.common.Request;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.SharedFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,7 +16,7 @@ import java.util.Map;
 /**
  * A filter that replace a key with a value returned from a function
  */
-public class FunctionReplace extends Filter {
+public class FunctionReplace extends SharedFilter {
 
     private static final Logger log = LoggerFactory.getLogger(FunctionReplace.class);
     private static List<FunctionReplace.Replace> replacePatterns = new ArrayList<>();
@@ -43,11 +44,11 @@ public class FunctionReplace extends Filter {
     }
 
     @Override
-    protected void filterClientRequest(Request request, String group) {
+    protected void filterClientRequest(Request request, FilterContext context) {
     }
 
     @Override
-    protected void filterClientResponse(Response response, String group) {
+    protected void filterClientResponse(Response response, FilterContext context) {
 
         for (Replace functionValues : replacePatterns) {
 
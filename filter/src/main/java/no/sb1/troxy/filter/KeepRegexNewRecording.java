@@ -8,7 +8,8 @@ import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
+import no.sb1.troxy.http.common.SharedFilter;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import org.slf4j.Logger;
@@ -17,7 +18,7 @@ import org.slf4j.LoggerFactory;
 /**
  * A filter that search for text matching a regular expression, and then keeps that text.
  */
-public class KeepRegexNewRecording extends Filter {
+public class KeepRegexNewRecording extends SharedFilter {
     /**
      * Logger for this class.
      */
@@ -93,7 +94,7 @@ public class KeepRegexNewRecording extends Filter {
     }
 
     @Override
-    protected void filterNewRecording(Recording recording) {
+    protected void filterNewRecording(Recording recording, FilterContext context) {
         RequestPattern requestPattern = recording.getRequestPattern();
         requestPattern.setProtocol(getReplacedField(requestPattern.getProtocol(), protocolPatterns));
         requestPattern.setHost(getReplacedField(requestPattern.getHost(), hostPatterns));
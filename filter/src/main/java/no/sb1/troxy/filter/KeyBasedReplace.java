@@ -10,16 +10,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
 import no.sb1.troxy.http.common.Request;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.SharedFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A filter that replace some text based on a key found somewhere else.
  */
-public class KeyBasedReplace extends Filter {
+public class KeyBasedReplace extends SharedFilter {
     /**
      * Logger for this class.
      */
@@ -27,8 +28,6 @@ public class KeyBasedReplace extends Filter {
 
     private static Map<String, GroupConfig> groupConfigs = new HashMap<>();
 
-    private String key;
-
     @Override
     protected void loadConfig(Map<String, Map<String, String>> configuration) {
         for (Map.Entry<String, Map<String, String>> group : configuration.entrySet()) {
@@ -66,12 +65,12 @@ public class KeyBasedReplace extends Filter {
     }
 
     @Override
-    protected void filterClientRequest(Request request, String group) {
-        GroupConfig groupConfig = groupConfigs.get(group);
+    protected void filterClientRequest(Request request, FilterContext context) {
+        GroupConfig groupConfig = groupConfigs.get(context.getGroup());
         if (groupConfig == null)
             return;
         // find key
-        key = getKey(request.getPath(), groupConfig.keyPattern);
+        String key = getKey(request.getPath(), groupConfig.keyPattern);
         if (key != null) {
             log.debug("Found key '{}' in request path", key);
         } else {
@@ -89,13 +88,16 @@ public class KeyBasedReplace extends Filter {
                 }
             }
         }
+        // the filter is shared, keep the key for the response in the context
+        context.setState(key);
     }
 
     @Override
-    protected void filterClientResponse(Response response, String group) {
-        GroupConfig groupConfig = groupConfigs.get(group);
+    protected void filterClientResponse(Response response, FilterContext context) {
+        GroupConfig groupConfig = groupConfigs.get(context.getGroup());
         if (groupConfig == null)
             return;
+        String key = context.getState();
         if (key == null) {
             log.debug("No key found in request, no replacing done");
             return;
@@ -1,9 +1,10 @@
 package no.sb1.troxy.filter;
 
 import java.util.Map;
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterContext;
 import no.sb1.troxy.http.common.Request;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.SharedFilter;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.ResponseTemplate;
 import org.slf4j.Logger;
@@ -13,7 +14,7 @@ import org.slf4j.LoggerFactory;
  * Set a delay for the Recording upon creating it.
  * This filter will not delay a response, merely set the delay values and strategy used for playback.
  */
-public class SetRecordingDelay extends Filter {
+public class SetRecordingDelay extends SharedFilter {
     /**
      * Logger for this class.
      */
@@ -34,11 +35,6 @@ public class SetRecordingDelay extends Filter {
      * Multipliers for max delay.
      */
     private static double multiplierMax;
-    /**
-     * Variable used to calculate the response time of the request to the server.
-     */
-    private long responseTime;
-
     /**
      * {@inheritDoc}
      */
@@ -79,23 +75,27 @@ public class SetRecordingDelay extends Filter {
      * {@inheritDoc}
      */
     @Override
-    public void filterServerRequest(Request request, String group) {
-        responseTime = System.currentTimeMillis();
+    public void filterServerRequest(Request request, FilterContext context) {
+        /* the filter is shared, the time the request was sent is kept in the context */
+        context.setState(System.currentTimeMillis());
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void filterServerResponse(Response response, String group) {
-        responseTime = System.currentTimeMillis() - responseTime;
+    public void filterServerResponse(Response response, FilterContext context) {
+        Long requestTime = context.getState();
+        context.setState(requestTime == null ? 0L : System.currentTimeMillis() - requestTime);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void filterNewRecording(Recording recording) {
+    public void filterNewRecording(Recording recording, FilterContext context) {
+        Long state = context.getState();
+        long responseTime = state == null ? 0L : state;
         for (ResponseTemplate responseTemplate : recording.getResponseTemplates()) {
             responseTemplate.setDelayStrategy(delayStrategy);
             responseTemplate.setDelayMin((long) (responseTime * multiplierMin));
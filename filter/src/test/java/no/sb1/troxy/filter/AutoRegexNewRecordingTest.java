@@ -1,5 +1,6 @@
 package no.sb1.troxy.filter;
 
+import no.sb1.troxy.http.common.FilterContext;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import no.sb1.troxy.record.v3.ResponseTemplate;
@@ -7,6 +8,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -119,7 +121,7 @@ public class AutoRegexNewRecordingTest {
         AutoRegexNewRecording.headerPatterns.add(new AutoRegexNewRecording.PatternWithReplacement("second_key", Pattern.compile("^Host: schnettbank"), "Host: schpettbank"));
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
 
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader = "^Host: schpettbank$";
 
@@ -134,7 +136,7 @@ public class AutoRegexNewRecordingTest {
         AutoRegexNewRecording.headerPatterns.add(new AutoRegexNewRecording.PatternWithReplacement("key", Pattern.compile("SOAPAction: (?<action>\"[a-zA-Z_-]+\")"), "SOAPAction: $1.*"));
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
 
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader =
                 "^Accept: \\*/\\*\n" +
@@ -166,7 +168,7 @@ public class AutoRegexNewRecordingTest {
         AutoRegexNewRecording.headerPatterns.add(new AutoRegexNewRecording.PatternWithReplacement("key", Pattern.compile("Accept: [^\\n]*"), "Accept: \"replaced value\""));
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
 
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader =
                 "^Accept: \"replaced value\"\n" +
@@ -197,7 +199,7 @@ public class AutoRegexNewRecordingTest {
         AutoRegexNewRecording.headerPatterns.add(new AutoRegexNewRecording.PatternWithReplacement("key", Pattern.compile("Host: [^\\n]*"), null));
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
 
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader =
                 "^Accept: \\*/\\*\n" +
@@ -228,7 +230,7 @@ public class AutoRegexNewRecordingTest {
         AutoRegexNewRecording.headerPatterns.add(new AutoRegexNewRecording.PatternWithReplacement("key", Pattern.compile("Host: [^\\n]*"), "Host: \"replaced value\""));
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
 
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader =
                 "^Accept: \\*/\\*\n" +
@@ -257,7 +259,7 @@ public class AutoRegexNewRecordingTest {
         final RequestPattern requestPattern = createRequestPattern();
         final Recording recording = new Recording(requestPattern, new ResponseTemplate());
         final AutoRegexNewRecording autoRegexNewRecording = new AutoRegexNewRecording();
-        autoRegexNewRecording.filterNewRecording(recording);
+        autoRegexNewRecording.filterNewRecording(recording, new FilterContext(Collections.singletonList(autoRegexNewRecording)));
 
         final String expectedHeader =
                 "^Accept: \\*/\\*\n" +
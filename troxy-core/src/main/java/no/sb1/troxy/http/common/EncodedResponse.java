@@ -0,0 +1,142 @@
+package no.sb1.troxy.http.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A Response where the content is already encoded, as segments of bytes in the character set of the response.
+ * The segments are written to the client as they are, the content is only decoded into a String if it's asked for (e.g. by a filter).
+ * Setting the content, or a header with another character set, drops the segments and the content is encoded when sent as usual.
+
+ */
+public class EncodedResponse extends Response {
+    /**
+     * The encoded content, <code>null</code> if the content must be encoded from the String.
+     */
+    private byte[][] segments;
+    /**
+     * Total length of the segments.
+     */
+    private int length;
+    /**
+     * The character set the segments are encoded with.
+     */
+    private final Charset charset;
+    /**
+     * Whether the content String is decoded from the segments.
+     */
+    private boolean decoded;
+
+    /**
+     * Create a Response with encoded content.
+     * @param segments The encoded content, written in order.
+     * @param length Total length of the segments.
+     * @param charset The character set the segments are encoded with, which must be the character set of the header.
+     */
+    public EncodedResponse(byte[][] segments, int length, Charset charset) {
+        this.segments = segments;
+        this.length = length;
+        this.charset = charset;
+    }
+
+    /**
+     * Check whether the content is still encoded, and can be written with {@link #getContentBuffers()}.
+     * @return <code>true</code> if the content is encoded, <code>false</code> if the content must be encoded from the String.
+     */
+    public boolean isEncoded() {
+        return segments != null;
+    }
+
+    /**
+     * Get the length of the encoded content.
+     * @return The length of the encoded content in bytes.
+     */
+    public int getContentLength() {
+        return length;
+    }
+
+    /**
+     * Get the encoded content as buffers, for writing without blocking.
+     * Empty segments (e.g. a variable with an empty value) are left out.
+     * @return The non-empty segments wrapped in buffers, in order.
+     */
+    public ByteBuffer[] getContentBuffers() {
+        int count = 0;
+        for (byte[] segment : segments) {
+            if (segment.length > 0)
+                ++count;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int index = 0;
+        for (byte[] segment : segments) {
+            if (segment.length > 0)
+                buffers[index++] = ByteBuffer.wrap(segment);
+        }
+        return buffers;
+    }
+
+    /**
+     * Get content, decoded from the segments the first time it's asked for.
+     * @return The content.
+     */
+    @Override
+    public String getContent() {
+        if (segments != null && !decoded) {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            for (byte[] segment : segments) {
+                System.arraycopy(segment, 0, bytes, offset, segment.length);
+                offset += segment.length;
+            }
+            super.setContent(new String(bytes, charset));
+            decoded = true;
+        }
+        return super.getContent();
+    }
+
+    /**
+     * Set content, dropping the encoded content.
+     * @param content The content.
+     */
+    @Override
+    public void setContent(String content) {
+        super.setContent(content);
+        segments = null;
+    }
+
+    /**
+     * Set header, dropping the encoded content if the header has another character set.
+     * @param header The header.
+     */
+    @Override
+    public void setHeader(String header) {
+        if (segments != null && !charset.equals(lookupCharset(discoverCharset(header)))) {
+            getContent();
+            segments = null;
+        }
+        super.setHeader(header);
+    }
+
+    /**
+     * Look up a character set by name.
+     * @param name Name of the character set.
+     * @return The character set, or <code>null</code> if there's no such character set.
+     */
+    public static Charset lookupCharset(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        if (segments == null)
+            return super.toString();
+        return "[CODE: " + getCode() + "] [REASON: " + getReason() +"] [HEADER: " + getHeader().length() + " characters] [CONTENT: " + length + " bytes]";
+    }
+}
@@ -1,17 +1,15 @@
 package no.sb1.troxy.http.common;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 import no.sb1.troxy.common.Config;
 import no.sb1.troxy.record.v3.Recording;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Base class for filters, extend this class to implement a filter.
+ * Base class for legacy filters, run through {@link LegacyFilterAdapter}.
+ * New filters should extend {@link SharedFilter}, which is instantiated once and shared by all requests.
  * A new instance of the filter is created for each request/response-pair.
  * If you need a filter to affect subsequent requests/response-pairs you'll need to create static data fields in the filter and handle the required logic in the filter.
  * "filterClientRequest()" is called if regular expressions match.
@@ -40,15 +38,9 @@ public abstract class Filter {
      */
     private static final Logger log = LoggerFactory.getLogger(Filter.class);
     /**
-     * Map of groups connected to a map of fields and compiled patterns.
-     * Group may be null, this denotes default expressions for all groups.
-     * Fields may be "request.protocol", "response.header", etc. This is used to compare a Request or Response to the patterns to determine whether the filter should be applied or not.
+     * Map of filter classes connected to their configuration and the patterns deciding when they're applied.
      */
-    private static Map<Class, Map<String, Map<String, List<Pattern>>>> groupPatterns = new HashMap<>();
-    /**
-     * Map saying which filters are enabled.
-     */
-    private static Map<String, Boolean> filterEnabled = new HashMap<>();
+    private static Map<Class, FilterPatterns> filterPatterns = new ConcurrentHashMap<>();
     /**
      * If we've already evaluated regular expressions used to find configuration group for request.
      * This is an optimization, no need to check regular expressions both for filterClientRequest() and filterServerRequest().
@@ -81,21 +73,11 @@ public abstract class Filter {
         if (!checkedPatterns) {
             /* prevent us from comparing regular expressions again for successive calls to this method */
             checkedPatterns = true;
-            /* iterate through the groups and see if any groups match the request */
-            for (Map.Entry<String, Map<String, List<Pattern>>> group : groupPatterns.get(getClass()).entrySet()) {
-                /* the null group is the default if no group match, we test that last */
-                if (group.getKey() == null)
-                    continue;
-                if (compareRequestWithPatternGroup(request, group.getValue())) {
-                    /* request match a group, set doFilter and filterGroup */
-                    doFilter = true;
-                    filterGroup = group.getKey();
-                    break;
-                }
-            }
-            if (!doFilter) {
-                /* no groups match, check if the default patterns match */
-                doFilter = compareRequestWithPatternGroup(request, groupPatterns.get(getClass()).get(null));
+            String group = getPatterns().matchRequest(request);
+            if (group != FilterPatterns.NO_MATCH) {
+                /* request match a group, set doFilter and filterGroup */
+                doFilter = true;
+                filterGroup = group;
             }
         }
         if (!doFilter)
@@ -130,21 +112,11 @@ public abstract class Filter {
         if (!doFilter && !checkedResponsePatterns) {
             /* prevent us from comparing regular expressions again for successive calls to this method */
             checkedResponsePatterns = true;
-            /* iterate through the groups and see if any groups match the response */
-            for (Map.Entry<String, Map<String, List<Pattern>>> group : groupPatterns.get(getClass()).entrySet()) {
-                /* the null group is the default if no group match, we test that last */
-                if (group.getKey() == null)
-                    continue;
-                if (compareResponseWithPatternGroup(response, group.getValue())) {
-                    /* response match a group, set doFilter and filterGroup */
-                    doFilter = true;
-                    filterGroup = group.getKey();
-                    break;
-                }
-            }
-            if (!doFilter) {
-                /* no groups match, check if the default patterns match */
-                doFilter = compareResponseWithPatternGroup(response, groupPatterns.get(getClass()).get(null));
+            String group = getPatterns().matchResponse(response);
+            if (group != FilterPatterns.NO_MATCH) {
+                /* response match a group, set doFilter and filterGroup */
+                doFilter = true;
+                filterGroup = group;
             }
         }
         if (!doFilter)
@@ -184,121 +156,23 @@ public abstract class Filter {
         log.debug("{}.filterNewRecording() finished", getClass().getName());
     }
 
-        /**
-         * Check whether this filter is enabled.
-         * @return Whether filter is enabled.
-         */
+    /**
+     * Check whether this filter is enabled.
+     * @return Whether filter is enabled.
+     */
     public final boolean isEnabled() {
-        return Boolean.TRUE.equals(filterEnabled.get(getClass().getSimpleName()));
+        return getPatterns().isEnabled();
     }
 
     /**
      * Reload configuration common for all filters.
      */
     public final void reload(final Config config) {
-        String className = getClass().getSimpleName();
-        String key = "filter." + className + ".";
-        /* is filter enabled? */
-        boolean enabled = "true".equalsIgnoreCase(config.getValue(key + "enabled", "false"));
-        filterEnabled.put(className, enabled);
-        if (!groupPatterns.containsKey(getClass()))
-            groupPatterns.put(getClass(), new HashMap<>());
-        if (enabled) {
-            /* load regular expressions for triggering filter and filter specific configuration */
-            groupPatterns.get(getClass()).clear();
-            Map<String, Map<String, String>> filterConfiguration = new HashMap<>();
-            Map<String, String> expressions = config.getKeysAndValues(key);
-            for (Map.Entry<String, String> entry : expressions.entrySet()) {
-                String[] keyArray = entry.getKey().split("\\.");
-                /* configuration "enabled" is a bit special, and shouldn't be parsed, so skip it */
-                if (keyArray.length == 3 && "enabled".equals(keyArray[2]))
-                    continue;
-                String group = null;
-                String type = null;
-                String field = null;
-                if (keyArray.length == 4) {
-                    /* filter.<name>.<type>.<field>=<value> */
-                    type = keyArray[2];
-                    field = keyArray[3];
-                } else if (keyArray.length == 5) {
-                    /* filter.<name>.<group>.(request|response|config).<field>=<value>
-                     * or
-                     * filter.<name>.(request|response).<field>.<id>=<value>
-                     * or
-                     * filter.<name>.config.<field_with_dot>=<value>
-                     */
-                    group = keyArray[2];
-                    type = keyArray[3];
-                    field = keyArray[4];
-                    if (!"request".equals(type) && !"response".equals(type) && !"config".equals(type)) {
-                        /* filter.<name>.(request|response).<field>.<id>=<value>
-                         * or
-                         * filter.<name>.config.<field_with_dot>=<value>
-                         */
-                        field = type;
-                        type = group;
-                        group = null;
-                        if ("config".equals(type)) {
-                            /* filter.<name>.config.<field_with_dot>=<value> */
-                            field += '.' + keyArray[4];
-                        }
-                    }
-                } else if (keyArray.length >= 6) {
-                    /* filter.<name>.<group>.(request|response|config).<field>.<id>=<value>
-                     * or
-                     * filter.<name>.<group>.config.<field_with_dots>=<value>
-                     * or
-                     * filter.<name>.config.<field_with_dots>=<value>
-                     */
-                    group = keyArray[2];
-                    type = keyArray[3];
-                    field = keyArray[4];
-                    if ("config".equals(type)) {
-                        /* filter.<name>.<group>.config.<field_with_dots>=<value> */
-                        for (int i = 5; i < keyArray.length; ++i)
-                            field += '.' + keyArray[i];
-                    } else if ("config".equals(group)) {
-                        /* filter.<name>.config.<field_with_dots>=<value> */
-                        field = type;
-                        type = group;
-                        group = null;
-                        for (int i = 4; i < keyArray.length; ++i)
-                            field += '.' + keyArray[i];
-                    }
-                }
-                /* if (request.<protocol/host/port/path/query/method/header/content> || response.<code/header/content>) */
-                if (("request".equals(type) && ("protocol".equals(field) || "host".equals(field) || "port".equals(field) || "path".equals(field) || "query".equals(field) || "method".equals(field) || "header".equals(field) || "content".equals(field))) || ("response".equals(type) && ("code".equals(field) || "header".equals(field) || "content".equals(field)))) {
-                    /* regular expression common for all filters */
-                    Map<String, List<Pattern>> fieldPatterns = groupPatterns.get(getClass()).get(group);
-                    if (fieldPatterns == null) {
-                        fieldPatterns = new HashMap<>();
-                        groupPatterns.get(getClass()).put(group, fieldPatterns);
-                    }
-                    String typeAndField = type + "." + field;
-                    List<Pattern> patterns = fieldPatterns.get(typeAndField);
-                    if (patterns == null) {
-                        patterns = new ArrayList<>();
-                        fieldPatterns.put(typeAndField, patterns);
-                    }
-                    patterns.add(Pattern.compile(entry.getValue(), Pattern.DOTALL));
-                } else if ("config".equals(type)) {
-                    /* filter specific configuration */
-                    Map<String, String> conf = filterConfiguration.get(group);
-                    if (conf == null) {
-                        conf = new HashMap<>();
-                        filterConfiguration.put(group, conf);
-                    }
-                    conf.put(field, entry.getValue());
-                } else {
-                    log.warn("Unable to parse filter setting (type: {}): {}={}", type, entry.getKey(), entry.getValue());
-                }
-            }
-            /* in case there's no configuration for the default group, we need to create that */
-            if (!filterConfiguration.containsKey(null)) {
-                filterConfiguration.put(null, new HashMap<>());
-            }
+        FilterPatterns patterns = FilterPatterns.parse(getClass().getSimpleName(), config);
+        filterPatterns.put(getClass(), patterns);
+        if (patterns.isEnabled()) {
             /* tell filter to reload its configuration */
-            loadConfig(filterConfiguration);
+            loadConfig(patterns.getConfiguration());
         }
     }
 
@@ -358,92 +232,10 @@ public abstract class Filter {
     }
 
     /**
-     * Check that the request match the given pattern group.
-     * @param request The incoming request.
-     * @param group The pattern group to match the request with.
-     * @return Whether the request match the given pattern group.
+     * Get the configuration and patterns of this filter.
+     * @return The configuration and patterns of this filter, disabled if it's not loaded.
      */
-    private boolean compareRequestWithPatternGroup(Request request, Map<String, List<Pattern>> group) {
-        if (group == null || group.size() <= 0) {
-            /* no regular expressions at all for this group, all match */
-            return true;
-        }
-        List<Pattern> protocolPatterns = group.get("request.protocol");
-        List<Pattern> hostPatterns = group.get("request.host");
-        List<Pattern> portPatterns = group.get("request.port");
-        List<Pattern> pathPatterns = group.get("request.path");
-        List<Pattern> queryPatterns = group.get("request.query");
-        List<Pattern> methodPatterns = group.get("request.method");
-        List<Pattern> headerPatterns = group.get("request.header");
-        List<Pattern> contentPatterns = group.get("request.content");
-        if (protocolPatterns == null && hostPatterns == null && portPatterns == null && pathPatterns == null && queryPatterns == null && methodPatterns == null && headerPatterns == null && contentPatterns == null) {
-            /* no pattern for neither of the request fields, no match */
-            return false;
-        }
-        if (!compareValueWithRegularExpressions(request.getProtocol(), protocolPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getHost(), hostPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getPort(), portPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getPath(), pathPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getQuery(), queryPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getMethod(), methodPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getHeader(), headerPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(request.getContent(), contentPatterns))
-            return false;
-        return true;
-    }
-
-    /**
-     * Check that the response match the given pattern group.
-     * @param response The outgoing response.
-     * @param group The pattern group to match the response with.
-     * @return Whether the response match the given pattern group.
-     */
-    private boolean compareResponseWithPatternGroup(Response response, Map<String, List<Pattern>> group) {
-        if (group == null || group.size() <= 0) {
-            /* no regular expressions at all for this group, all match */
-            return true;
-        }
-        List<Pattern> codePatterns = group.get("response.code");
-        List<Pattern> headerPatterns = group.get("response.header");
-        List<Pattern> contentPatterns = group.get("response.content");
-        if (codePatterns == null && headerPatterns == null && contentPatterns == null) {
-            /* no pattern for neither of the response fields, no match */
-            return false;
-        }
-        if (!compareValueWithRegularExpressions(response.getCode(), codePatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(response.getHeader(), headerPatterns))
-            return false;
-        if (!compareValueWithRegularExpressions(response.getContent(), contentPatterns))
-            return false;
-        return true;
-    }
-
-    /**
-     * Compare a value with regular expressions for a given field.
-     * @param value The value to compare with regular expressions.
-     * @param patterns The regular expressions to compare with the value.
-     * @return <code>true</code> if there are no regular expressions for the given field or if one or more of the regular expressions match, <code>false</code> otherwise.
-     */
-    private boolean compareValueWithRegularExpressions(String value, List<Pattern> patterns) {
-        if (patterns == null) {
-            /* no regular expressions, same as specifying a ".*" regular pattern */
-            return true;
-        }
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(value).matches()) {
-                /* this regular pattern match */
-                return true;
-            }
-        }
-        /* no regular pattern match */
-        return false;
+    FilterPatterns getPatterns() {
+        return filterPatterns.getOrDefault(getClass(), FilterPatterns.DISABLED);
     }
 }
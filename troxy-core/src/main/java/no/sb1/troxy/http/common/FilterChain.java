@@ -0,0 +1,50 @@
+package no.sb1.troxy.http.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The filters executed for each request, with their regular expressions compiled together.
+ * The filters are replaced when they're reloaded, while requests being handled keep using the filters they started with.
+ */
+public final class FilterChain {
+    /**
+     * The current filters and their compiled regular expressions.
+     */
+    private volatile FilterDispatch dispatch = new FilterDispatch(Collections.emptyList());
+
+    /**
+     * Replace the filters, compiling their regular expressions.
+     * The configuration of the filters must be loaded first.
+     * @param filters The filters, in the order they're executed.
+     */
+    public void setFilters(List<SharedFilter> filters) {
+        dispatch = new FilterDispatch(filters);
+    }
+
+    /**
+     * Get the filters.
+     * @return The filters, in the order they're executed.
+     */
+    public List<SharedFilter> getFilters() {
+        return Collections.unmodifiableList(Arrays.asList(dispatch.filters));
+    }
+
+    /**
+     * Create a context for a new request/response-pair.
+     * @return A new context using the current filters.
+     */
+    public FilterContext newContext() {
+        return new FilterContext(dispatch);
+    }
+
+    /**
+     * Get how many times, and for how long, each filter is invoked since the filters were loaded.
+     * @return Name, invocations and total time in nanoseconds for each filter, in the order they're executed.
+     */
+    public List<Map<String, Object>> getStatistics() {
+        return dispatch.getStatistics();
+    }
+}
@@ -0,0 +1,246 @@
+package no.sb1.troxy.http.common;
+
+import java.util.List;
+import no.sb1.troxy.record.v3.Recording;
+
+/**
+ * The state of the filters for a single request/response-pair.
+ * One context is created for each request and passed to the filters, which are shared by all requests.
+ * It remembers which group each filter matched, so the regular expressions are only evaluated once per request,
+ * and holds whatever state a filter needs to carry from the request to the response.
+ * The result of each regular expression is shared by all filters using it, and only evaluated again if a filter changes the field.
+ * A context is only used by one request at a time, and is not thread-safe.
+ */
+public final class FilterContext {
+    /**
+     * Result of a regular expression that isn't evaluated.
+     */
+    private static final byte UNKNOWN = 0;
+    /**
+     * Result of a regular expression that match.
+     */
+    private static final byte MATCH = 1;
+    /**
+     * Result of a regular expression that doesn't match.
+     */
+    private static final byte NO_MATCH = 2;
+    /**
+     * The filters and their compiled regular expressions.
+     */
+    private final FilterDispatch dispatch;
+    /**
+     * Whether we've evaluated the regular expressions for the request, for each filter.
+     */
+    private final boolean[] checkedRequest;
+    /**
+     * Whether we've evaluated the regular expressions for the response, for each filter.
+     */
+    private final boolean[] checkedResponse;
+    /**
+     * Whether the request or response matched the regular expressions, for each filter.
+     */
+    private final boolean[] matched;
+    /**
+     * The name of the configuration group the request or response matched, for each filter.
+     */
+    private final String[] groups;
+    /**
+     * State set by each filter.
+     */
+    private final Object[] states;
+    /**
+     * Result of each request regular expression.
+     */
+    private final byte[] requestResults;
+    /**
+     * The value each request regular expression was evaluated against, the result is only valid for the same value.
+     */
+    private final String[] requestValues;
+    /**
+     * Result of each response regular expression.
+     */
+    private final byte[] responseResults;
+    /**
+     * The value each response regular expression was evaluated against, the result is only valid for the same value.
+     */
+    private final String[] responseValues;
+    /**
+     * Index of the filter currently being executed.
+     */
+    private int current;
+
+    /**
+     * Create a context for a new request/response-pair, compiling the regular expressions of the filters.
+     * When handling requests, create the context with {@link FilterChain#newContext()} instead, where the regular expressions are compiled once.
+     * @param filters The filters, in the order they're executed.
+     */
+    public FilterContext(List<SharedFilter> filters) {
+        this(new FilterDispatch(filters));
+    }
+
+    /**
+     * Create a context for a new request/response-pair.
+     * @param dispatch The filters and their compiled regular expressions.
+     */
+    FilterContext(FilterDispatch dispatch) {
+        this.dispatch = dispatch;
+        int filters = dispatch.filters.length;
+        checkedRequest = new boolean[filters];
+        checkedResponse = new boolean[filters];
+        matched = new boolean[filters];
+        groups = new String[filters];
+        states = new Object[filters];
+        requestResults = new byte[dispatch.requestMatchers.length];
+        requestValues = new String[dispatch.requestMatchers.length];
+        responseResults = new byte[dispatch.responseMatchers.length];
+        responseValues = new String[dispatch.responseMatchers.length];
+    }
+
+    /**
+     * Get the configuration group the request or response matched, for the filter currently being executed.
+     * @return The name of the group, <code>null</code> for the default group.
+     */
+    public String getGroup() {
+        return groups[current];
+    }
+
+    /**
+     * Get the state of the filter currently being executed.
+     * @param <T> The type of the state.
+     * @return The state set earlier for this request/response-pair, or <code>null</code> if no state is set.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getState() {
+        return (T) states[current];
+    }
+
+    /**
+     * Set the state of the filter currently being executed, kept until the request/response-pair is handled.
+     * @param state The state.
+     */
+    public void setState(Object state) {
+        states[current] = state;
+    }
+
+    /**
+     * Run filters on the request, for the filters where the request match the regular expressions.
+     * @param request The incoming request.
+     * @param remoteRequest Should be <code>true</code> when we're forwarding the request to a remote server.
+     */
+    public void filterRequest(Request request, boolean remoteRequest) {
+        SharedFilter[] filters = dispatch.filters;
+        for (current = 0; current < filters.length; ++current) {
+            /* did we check the regular expressions earlier? */
+            if (!checkedRequest[current]) {
+                checkedRequest[current] = true;
+                for (FilterDispatch.Group group : dispatch.groups[current]) {
+                    if (matchRequest(group.requestClauses, request)) {
+                        matched[current] = true;
+                        groups[current] = group.name;
+                        break;
+                    }
+                }
+            }
+            if (matched[current]) {
+                long start = System.nanoTime();
+                filters[current].invokeRequest(request, remoteRequest, this);
+                dispatch.recordInvocation(current, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Run filters on the response, for the filters where the request or the response match the regular expressions.
+     * @param response The outgoing response.
+     * @param remoteResponse Should be <code>true</code> when we're filtering the response from a remote server.
+     */
+    public void filterResponse(Response response, boolean remoteResponse) {
+        SharedFilter[] filters = dispatch.filters;
+        for (current = 0; current < filters.length; ++current) {
+            /* did we check the regular expressions earlier? */
+            if (!matched[current] && !checkedResponse[current]) {
+                checkedResponse[current] = true;
+                for (FilterDispatch.Group group : dispatch.groups[current]) {
+                    if (matchResponse(group.responseClauses, response)) {
+                        matched[current] = true;
+                        groups[current] = group.name;
+                        break;
+                    }
+                }
+            }
+            if (matched[current]) {
+                long start = System.nanoTime();
+                filters[current].invokeResponse(response, remoteResponse, this);
+                dispatch.recordInvocation(current, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Run all filters on a new recording.
+     * @param recording The recording.
+     */
+    public void filterRecording(Recording recording) {
+        SharedFilter[] filters = dispatch.filters;
+        /* no regular expressions limiting when this method should be called, it's always invoked */
+        for (current = 0; current < filters.length; ++current) {
+            long start = System.nanoTime();
+            filters[current].invokeRecording(recording, this);
+            dispatch.recordInvocation(current, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Check whether the request match the clauses of a group.
+     * @param clauses For each field, the regular expressions where one must match.
+     * @param request The incoming request.
+     * @return Whether the request match all clauses.
+     */
+    private boolean matchRequest(int[][] clauses, Request request) {
+        if (clauses == null)
+            return false;
+        for (int[] clause : clauses) {
+            boolean match = false;
+            for (int i = 0; i < clause.length && !match; ++i) {
+                int index = clause[i];
+                String value = FilterDispatch.getRequestValue(request, dispatch.requestMatcherFields[index]);
+                /* the result is reused as long as no filter changed the field */
+                if (requestResults[index] == UNKNOWN || requestValues[index] != value) {
+                    requestValues[index] = value;
+                    requestResults[index] = dispatch.requestMatchers[index].matches(value) ? MATCH : NO_MATCH;
+                }
+                match = requestResults[index] == MATCH;
+            }
+            if (!match)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the response match the clauses of a group.
+     * @param clauses For each field, the regular expressions where one must match.
+     * @param response The outgoing response.
+     * @return Whether the response match all clauses.
+     */
+    private boolean matchResponse(int[][] clauses, Response response) {
+        if (clauses == null)
+            return false;
+        for (int[] clause : clauses) {
+            boolean match = false;
+            for (int i = 0; i < clause.length && !match; ++i) {
+                int index = clause[i];
+                String value = FilterDispatch.getResponseValue(response, dispatch.responseMatcherFields[index]);
+                /* the result is reused as long as no filter changed the field */
+                if (responseResults[index] == UNKNOWN || responseValues[index] != value) {
+                    responseValues[index] = value;
+                    responseResults[index] = dispatch.responseMatchers[index].matches(value) ? MATCH : NO_MATCH;
+                }
+                match = responseResults[index] == MATCH;
+            }
+            if (!match)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,228 @@
+package no.sb1.troxy.http.common;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import no.sb1.troxy.util.FieldMatcher;
+
+/**
+ * The regular expressions of all filters, compiled into one structure when the filters are loaded.
+ * Each distinct pair of field and regular expression is given an index, and the groups of each filter refer to the pairs by index.
+ * This lets a {@link FilterContext} evaluate a pair used by several filters only once per request,
+ * rather than each filter evaluating all its regular expressions for itself.
+ * Also counts how many times, and for how long, each filter is invoked.
+ */
+final class FilterDispatch {
+    /**
+     * The request fields regular expressions may be given for, in the order the fields are checked.
+     */
+    private static final String[] REQUEST_FIELDS = {"request.protocol", "request.host", "request.port", "request.path", "request.query", "request.method", "request.header", "request.content"};
+    /**
+     * The response fields regular expressions may be given for, in the order the fields are checked.
+     */
+    private static final String[] RESPONSE_FIELDS = {"response.code", "response.header", "response.content"};
+    /**
+     * Clauses of a group that match everything.
+     */
+    private static final int[][] MATCH_ALL = new int[0][];
+    /**
+     * The filters, in the order they're executed.
+     */
+    final SharedFilter[] filters;
+    /**
+     * The groups of each filter, the named groups first and the default group last.
+     */
+    final Group[][] groups;
+    /**
+     * The distinct regular expressions for the request.
+     */
+    final FieldMatcher[] requestMatchers;
+    /**
+     * The request field each regular expression is evaluated against, index into {@link #REQUEST_FIELDS}.
+     */
+    final int[] requestMatcherFields;
+    /**
+     * The distinct regular expressions for the response.
+     */
+    final FieldMatcher[] responseMatchers;
+    /**
+     * The response field each regular expression is evaluated against, index into {@link #RESPONSE_FIELDS}.
+     */
+    final int[] responseMatcherFields;
+    /**
+     * How many times each filter is invoked.
+     */
+    private final LongAdder[] invocations;
+    /**
+     * Total time spent in each filter, in nanoseconds.
+     */
+    private final LongAdder[] nanos;
+
+    /**
+     * Compile the regular expressions of the filters.
+     * The configuration of the filters must be loaded, later changes to the configuration are not seen.
+     * @param filters The filters, in the order they're executed.
+     */
+    FilterDispatch(List<SharedFilter> filters) {
+        this.filters = filters.toArray(new SharedFilter[0]);
+        groups = new Group[this.filters.length][];
+        invocations = new LongAdder[this.filters.length];
+        nanos = new LongAdder[this.filters.length];
+        /* FieldMatchers for identical regular expressions are the same instance, so identity is enough to find distinct pairs */
+        List<Map<FieldMatcher, Integer>> requestIndexes = newIndexes(REQUEST_FIELDS.length);
+        List<Map<FieldMatcher, Integer>> responseIndexes = newIndexes(RESPONSE_FIELDS.length);
+        List<FieldMatcher> requestMatchers = new ArrayList<>();
+        List<Integer> requestMatcherFields = new ArrayList<>();
+        List<FieldMatcher> responseMatchers = new ArrayList<>();
+        List<Integer> responseMatcherFields = new ArrayList<>();
+        for (int i = 0; i < this.filters.length; ++i) {
+            Map<String, Map<String, List<FieldMatcher>>> groupPatterns = this.filters[i].getPatterns().getGroupPatterns();
+            List<Group> filterGroups = new ArrayList<>();
+            /* the null group is the default if no group match, it's tested last */
+            for (Map.Entry<String, Map<String, List<FieldMatcher>>> group : groupPatterns.entrySet()) {
+                if (group.getKey() != null)
+                    filterGroups.add(new Group(group.getKey(), compileClauses(group.getValue(), REQUEST_FIELDS, requestIndexes, requestMatchers, requestMatcherFields), compileClauses(group.getValue(), RESPONSE_FIELDS, responseIndexes, responseMatchers, responseMatcherFields)));
+            }
+            Map<String, List<FieldMatcher>> defaultPatterns = groupPatterns.get(null);
+            filterGroups.add(new Group(null, compileClauses(defaultPatterns, REQUEST_FIELDS, requestIndexes, requestMatchers, requestMatcherFields), compileClauses(defaultPatterns, RESPONSE_FIELDS, responseIndexes, responseMatchers, responseMatcherFields)));
+            groups[i] = filterGroups.toArray(new Group[0]);
+            invocations[i] = new LongAdder();
+            nanos[i] = new LongAdder();
+        }
+        this.requestMatchers = requestMatchers.toArray(new FieldMatcher[0]);
+        this.requestMatcherFields = requestMatcherFields.stream().mapToInt(Integer::intValue).toArray();
+        this.responseMatchers = responseMatchers.toArray(new FieldMatcher[0]);
+        this.responseMatcherFields = responseMatcherFields.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Get the value of a request field.
+     * @param request The request.
+     * @param field Index into the request fields.
+     * @return The value of the field.
+     */
+    static String getRequestValue(Request request, int field) {
+        switch (field) {
+            case 0: return request.getProtocol();
+            case 1: return request.getHost();
+            case 2: return request.getPort();
+            case 3: return request.getPath();
+            case 4: return request.getQuery();
+            case 5: return request.getMethod();
+            case 6: return request.getHeader();
+            default: return request.getContent();
+        }
+    }
+
+    /**
+     * Get the value of a response field.
+     * @param response The response.
+     * @param field Index into the response fields.
+     * @return The value of the field.
+     */
+    static String getResponseValue(Response response, int field) {
+        switch (field) {
+            case 0: return response.getCode();
+            case 1: return response.getHeader();
+            default: return response.getContent();
+        }
+    }
+
+    /**
+     * Count an invocation of a filter.
+     * @param filter Index of the filter.
+     * @param elapsedNanos Time spent in the filter, in nanoseconds.
+     */
+    void recordInvocation(int filter, long elapsedNanos) {
+        invocations[filter].increment();
+        nanos[filter].add(elapsedNanos);
+    }
+
+    /**
+     * Get how many times, and for how long, each filter is invoked.
+     * @return Name, invocations and total time in nanoseconds for each filter, in the order they're executed.
+     */
+    List<Map<String, Object>> getStatistics() {
+        List<Map<String, Object>> statistics = new ArrayList<>();
+        for (int i = 0; i < filters.length; ++i) {
+            Map<String, Object> filter = new LinkedHashMap<>();
+            filter.put("filter", filters[i].getName());
+            filter.put("invocations", invocations[i].sum());
+            filter.put("nanos", nanos[i].sum());
+            statistics.add(filter);
+        }
+        return statistics;
+    }
+
+    /**
+     * Create a map from regular expression to index for each field.
+     * @param fields Amount of fields.
+     * @return A map for each field.
+     */
+    private static List<Map<FieldMatcher, Integer>> newIndexes(int fields) {
+        List<Map<FieldMatcher, Integer>> indexes = new ArrayList<>();
+        for (int i = 0; i < fields; ++i)
+            indexes.add(new IdentityHashMap<>());
+        return indexes;
+    }
+
+    /**
+     * Compile the regular expressions of a group for either the request or the response.
+     * @param patterns The regular expressions of the group, keyed by field.
+     * @param fields The request or response fields.
+     * @param indexes Index of each distinct regular expression, for each field.
+     * @param matchers The distinct regular expressions.
+     * @param matcherFields The field of each distinct regular expression.
+     * @return One clause for each field with regular expressions, where one of the regular expressions must match,
+     * an empty array if the group has no regular expressions at all (everything match), or <code>null</code> if the group has
+     * regular expressions, but none for these fields (nothing match).
+     */
+    private static int[][] compileClauses(Map<String, List<FieldMatcher>> patterns, String[] fields, List<Map<FieldMatcher, Integer>> indexes, List<FieldMatcher> matchers, List<Integer> matcherFields) {
+        if (patterns == null || patterns.isEmpty())
+            return MATCH_ALL;
+        List<int[]> clauses = new ArrayList<>();
+        for (int field = 0; field < fields.length; ++field) {
+            List<FieldMatcher> fieldPatterns = patterns.get(fields[field]);
+            if (fieldPatterns == null)
+                continue;
+            int[] clause = new int[fieldPatterns.size()];
+            for (int i = 0; i < clause.length; ++i) {
+                final int matcherField = field;
+                clause[i] = indexes.get(field).computeIfAbsent(fieldPatterns.get(i), matcher -> {
+                    matchers.add(matcher);
+                    matcherFields.add(matcherField);
+                    return matchers.size() - 1;
+                });
+            }
+            clauses.add(clause);
+        }
+        return clauses.isEmpty() ? null : clauses.toArray(new int[0][]);
+    }
+
+    /**
+     * A configuration group of a filter.
+     */
+    static final class Group {
+        /**
+         * Name of the group, <code>null</code> for the default group.
+         */
+        final String name;
+        /**
+         * The clauses that must match the request, see {@link #compileClauses(Map, String[], List, List, List)}.
+         */
+        final int[][] requestClauses;
+        /**
+         * The clauses that must match the response, see {@link #compileClauses(Map, String[], List, List, List)}.
+         */
+        final int[][] responseClauses;
+
+        private Group(String name, int[][] requestClauses, int[][] responseClauses) {
+            this.name = name;
+            this.requestClauses = requestClauses;
+            this.responseClauses = responseClauses;
+        }
+    }
+}
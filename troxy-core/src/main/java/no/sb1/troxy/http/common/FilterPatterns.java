@@ -0,0 +1,287 @@
+package no.sb1.troxy.http.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import no.sb1.troxy.common.Config;
+import no.sb1.troxy.util.FieldMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The configuration of a filter: whether it's enabled, the regular expressions deciding which group a request or response belongs to,
+ * and the filter specific configuration for each group.
+ * Parsed from the settings "filter.&lt;name&gt;.*", and never modified afterwards.
+ */
+final class FilterPatterns {
+    /**
+     * Logger for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FilterPatterns.class);
+    /**
+     * Returned when a request or response match no group, compared by identity as <code>null</code> is the default group.
+     */
+    static final String NO_MATCH = new String("");
+    /**
+     * A disabled filter without regular expressions.
+     */
+    static final FilterPatterns DISABLED = new FilterPatterns(false, Collections.emptyMap(), Collections.emptyMap());
+    /**
+     * Whether the filter is enabled.
+     */
+    private final boolean enabled;
+    /**
+     * Map of groups connected to a map of fields and compiled patterns.
+     * Group may be null, this denotes default expressions for all groups.
+     * Fields may be "request.protocol", "response.header", etc. This is used to compare a Request or Response to the patterns to determine whether the filter should be applied or not.
+     */
+    private final Map<String, Map<String, List<FieldMatcher>>> groupPatterns;
+    /**
+     * Filter specific configuration, keys and values for each group.
+     */
+    private final Map<String, Map<String, String>> configuration;
+
+    private FilterPatterns(boolean enabled, Map<String, Map<String, List<FieldMatcher>>> groupPatterns, Map<String, Map<String, String>> configuration) {
+        this.enabled = enabled;
+        this.groupPatterns = groupPatterns;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Parse the configuration of a filter.
+     * @param name The simple class name of the filter.
+     * @param config The configuration.
+     * @return The configuration of the filter, {@link #DISABLED} if it's not enabled.
+     */
+    static FilterPatterns parse(String name, Config config) {
+        String key = "filter." + name + ".";
+        /* is filter enabled? */
+        if (!"true".equalsIgnoreCase(config.getValue(key + "enabled", "false")))
+            return DISABLED;
+        /* load regular expressions for triggering filter and filter specific configuration */
+        Map<String, Map<String, List<FieldMatcher>>> groupPatterns = new HashMap<>();
+        Map<String, Map<String, String>> filterConfiguration = new HashMap<>();
+        Map<String, String> expressions = config.getKeysAndValues(key);
+        for (Map.Entry<String, String> entry : expressions.entrySet()) {
+            String[] keyArray = entry.getKey().split("\\.");
+            /* configuration "enabled" is a bit special, and shouldn't be parsed, so skip it */
+            if (keyArray.length == 3 && "enabled".equals(keyArray[2]))
+                continue;
+            String group = null;
+            String type = null;
+            String field = null;
+            if (keyArray.length == 4) {
+                /* filter.<name>.<type>.<field>=<value> */
+                type = keyArray[2];
+                field = keyArray[3];
+            } else if (keyArray.length == 5) {
+                /* filter.<name>.<group>.(request|response|config).<field>=<value>
+                 * or
+                 * filter.<name>.(request|response).<field>.<id>=<value>
+                 * or
+                 * filter.<name>.config.<field_with_dot>=<value>
+                 */
+                group = keyArray[2];
+                type = keyArray[3];
+                field = keyArray[4];
+                if (!"request".equals(type) && !"response".equals(type) && !"config".equals(type)) {
+                    /* filter.<name>.(request|response).<field>.<id>=<value>
+                     * or
+                     * filter.<name>.config.<field_with_dot>=<value>
+                     */
+                    field = type;
+                    type = group;
+                    group = null;
+                    if ("config".equals(type)) {
+                        /* filter.<name>.config.<field_with_dot>=<value> */
+                        field += '.' + keyArray[4];
+                    }
+                }
+            } else if (keyArray.length >= 6) {
+                /* filter.<name>.<group>.(request|response|config).<field>.<id>=<value>
+                 * or
+                 * filter.<name>.<group>.config.<field_with_dots>=<value>
+                 * or
+                 * filter.<name>.config.<field_with_dots>=<value>
+                 */
+                group = keyArray[2];
+                type = keyArray[3];
+                field = keyArray[4];
+                if ("config".equals(type)) {
+                    /* filter.<name>.<group>.config.<field_with_dots>=<value> */
+                    for (int i = 5; i < keyArray.length; ++i)
+                        field += '.' + keyArray[i];
+                } else if ("config".equals(group)) {
+                    /* filter.<name>.config.<field_with_dots>=<value> */
+                    field = type;
+                    type = group;
+                    group = null;
+                    for (int i = 4; i < keyArray.length; ++i)
+                        field += '.' + keyArray[i];
+                }
+            }
+            /* if (request.<protocol/host/port/path/query/method/header/content> || response.<code/header/content>) */
+            if (("request".equals(type) && ("protocol".equals(field) || "host".equals(field) || "port".equals(field) || "path".equals(field) || "query".equals(field) || "method".equals(field) || "header".equals(field) || "content".equals(field))) || ("response".equals(type) && ("code".equals(field) || "header".equals(field) || "content".equals(field)))) {
+                /* regular expression common for all filters */
+                groupPatterns.computeIfAbsent(group, k -> new HashMap<>()).computeIfAbsent(type + "." + field, k -> new ArrayList<>()).add(FieldMatcher.compile(entry.getValue()));
+            } else if ("config".equals(type)) {
+                /* filter specific configuration */
+                filterConfiguration.computeIfAbsent(group, k -> new HashMap<>()).put(field, entry.getValue());
+            } else {
+                log.warn("Unable to parse filter setting (type: {}): {}={}", type, entry.getKey(), entry.getValue());
+            }
+        }
+        /* in case there's no configuration for the default group, we need to create that */
+        filterConfiguration.computeIfAbsent(null, k -> new HashMap<>());
+        return new FilterPatterns(true, groupPatterns, filterConfiguration);
+    }
+
+    /**
+     * Check whether the filter is enabled.
+     * @return Whether the filter is enabled.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the filter specific configuration.
+     * In the returned map, the first string is the group name, and the map associated with this group contains keys and values.
+     * @return The filter specific configuration.
+     */
+    Map<String, Map<String, String>> getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Get the regular expressions, for compiling them together with the regular expressions of other filters.
+     * @return The regular expressions for each group and field.
+     */
+    Map<String, Map<String, List<FieldMatcher>>> getGroupPatterns() {
+        return groupPatterns;
+    }
+
+    /**
+     * Find the group the request match.
+     * @param request The incoming request.
+     * @return The name of the group, <code>null</code> for the default group, or {@link #NO_MATCH} if the request match no group.
+     */
+    String matchRequest(Request request) {
+        /* iterate through the groups and see if any groups match the request */
+        for (Map.Entry<String, Map<String, List<FieldMatcher>>> group : groupPatterns.entrySet()) {
+            /* the null group is the default if no group match, we test that last */
+            if (group.getKey() != null && compareRequestWithPatternGroup(request, group.getValue()))
+                return group.getKey();
+        }
+        /* no groups match, check if the default patterns match */
+        return compareRequestWithPatternGroup(request, groupPatterns.get(null)) ? null : NO_MATCH;
+    }
+
+    /**
+     * Find the group the response match.
+     * @param response The outgoing response.
+     * @return The name of the group, <code>null</code> for the default group, or {@link #NO_MATCH} if the response match no group.
+     */
+    String matchResponse(Response response) {
+        /* iterate through the groups and see if any groups match the response */
+        for (Map.Entry<String, Map<String, List<FieldMatcher>>> group : groupPatterns.entrySet()) {
+            /* the null group is the default if no group match, we test that last */
+            if (group.getKey() != null && compareResponseWithPatternGroup(response, group.getValue()))
+                return group.getKey();
+        }
+        /* no groups match, check if the default patterns match */
+        return compareResponseWithPatternGroup(response, groupPatterns.get(null)) ? null : NO_MATCH;
+    }
+
+    /**
+     * Check that the request match the given pattern group.
+     * @param request The incoming request.
+     * @param group The pattern group to match the request with.
+     * @return Whether the request match the given pattern group.
+     */
+    private static boolean compareRequestWithPatternGroup(Request request, Map<String, List<FieldMatcher>> group) {
+        if (group == null || group.size() <= 0) {
+            /* no regular expressions at all for this group, all match */
+            return true;
+        }
+        List<FieldMatcher> protocolPatterns = group.get("request.protocol");
+        List<FieldMatcher> hostPatterns = group.get("request.host");
+        List<FieldMatcher> portPatterns = group.get("request.port");
+        List<FieldMatcher> pathPatterns = group.get("request.path");
+        List<FieldMatcher> queryPatterns = group.get("request.query");
+        List<FieldMatcher> methodPatterns = group.get("request.method");
+        List<FieldMatcher> headerPatterns = group.get("request.header");
+        List<FieldMatcher> contentPatterns = group.get("request.content");
+        if (protocolPatterns == null && hostPatterns == null && portPatterns == null && pathPatterns == null && queryPatterns == null && methodPatterns == null && headerPatterns == null && contentPatterns == null) {
+            /* no pattern for neither of the request fields, no match */
+            return false;
+        }
+        if (!compareValueWithRegularExpressions(request.getProtocol(), protocolPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getHost(), hostPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getPort(), portPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getPath(), pathPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getQuery(), queryPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getMethod(), methodPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getHeader(), headerPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(request.getContent(), contentPatterns))
+            return false;
+        return true;
+    }
+
+    /**
+     * Check that the response match the given pattern group.
+     * @param response The outgoing response.
+     * @param group The pattern group to match the response with.
+     * @return Whether the response match the given pattern group.
+     */
+    private static boolean compareResponseWithPatternGroup(Response response, Map<String, List<FieldMatcher>> group) {
+        if (group == null || group.size() <= 0) {
+            /* no regular expressions at all for this group, all match */
+            return true;
+        }
+        List<FieldMatcher> codePatterns = group.get("response.code");
+        List<FieldMatcher> headerPatterns = group.get("response.header");
+        List<FieldMatcher> contentPatterns = group.get("response.content");
+        if (codePatterns == null && headerPatterns == null && contentPatterns == null) {
+            /* no pattern for neither of the response fields, no match */
+            return false;
+        }
+        if (!compareValueWithRegularExpressions(response.getCode(), codePatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(response.getHeader(), headerPatterns))
+            return false;
+        if (!compareValueWithRegularExpressions(response.getContent(), contentPatterns))
+            return false;
+        return true;
+    }
+
+    /**
+     * Compare a value with regular expressions for a given field.
+     * @param value The value to compare with regular expressions.
+     * @param patterns The regular expressions to compare with the value.
+     * @return <code>true</code> if there are no regular expressions for the given field or if one or more of the regular expressions match, <code>false</code> otherwise.
+     */
+    private static boolean compareValueWithRegularExpressions(String value, List<FieldMatcher> patterns) {
+        if (patterns == null) {
+            /* no regular expressions, same as specifying a ".*" regular pattern */
+            return true;
+        }
+        for (FieldMatcher pattern : patterns) {
+            if (pattern.matches(value)) {
+                /* this regular pattern match */
+                return true;
+            }
+        }
+        /* no regular pattern match */
+        return false;
+    }
+}
@@ -0,0 +1,104 @@
+package no.sb1.troxy.http.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of a header, as names and values in the order they appear in the header.
+ * A header is stored as text with one "Name: value" field per line, parsing it once saves scanning the text for each use.
+ * Immutable, so the fields of a header that never changes can be shared.
+ */
+public final class HeaderFields {
+    /**
+     * A header without fields.
+     */
+    public static final HeaderFields EMPTY = new HeaderFields(new String[0], new String[0]);
+    /**
+     * The names of the fields.
+     */
+    private final String[] names;
+    /**
+     * The values of the fields, in the same order as the names.
+     */
+    private final String[] values;
+
+    /**
+     * Create header fields from names and values.
+     * @param names The names of the fields.
+     * @param values The values of the fields, in the same order as the names.
+     */
+    public HeaderFields(String[] names, String[] values) {
+        if (names.length != values.length)
+            throw new IllegalArgumentException("Got " + names.length + " header names, but " + values.length + " values");
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Parse the fields of a header.
+     * Each line is a field, the name is separated from the value by a colon and an optional space.
+     * Empty lines and lines without a name are skipped.
+     * @param header The header.
+     * @return The fields of the header.
+     */
+    public static HeaderFields parse(String header) {
+        if (header == null || header.isEmpty())
+            return EMPTY;
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        int start = 0;
+        while (start < header.length()) {
+            int end = header.indexOf('\n', start);
+            if (end < 0)
+                end = header.length();
+            int colon = header.indexOf(':', start);
+            if (colon > start && colon < end) {
+                int valueStart = colon + 1 < end && header.charAt(colon + 1) == ' ' ? colon + 2 : colon + 1;
+                names.add(header.substring(start, colon));
+                values.add(header.substring(valueStart, end));
+            }
+            start = end + 1;
+        }
+        return new HeaderFields(names.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    /**
+     * Get the amount of fields.
+     * @return The amount of fields.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get the name of a field.
+     * @param index Index of the field.
+     * @return The name of the field.
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Get the value of a field.
+     * @param index Index of the field.
+     * @return The value of the field.
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; ++i) {
+            if (i > 0)
+                sb.append('\n');
+            sb.append(names[i]).append(": ").append(values[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package no.sb1.troxy.http.common;
+
+import java.util.Map;
+import no.sb1.troxy.common.Config;
+import no.sb1.troxy.record.v3.Recording;
+
+/**
+ * Runs a filter written for {@link Filter} as a {@link SharedFilter}.
+ * A legacy filter keeps state for the request/response-pair in its fields, so an instance is still created for each request,
+ * but only when the request or response match a group of the filter, and it's kept in the {@link FilterContext}.
+ * The regular expressions of the legacy filter are evaluated together with those of the other filters,
+ * and the filter methods are called directly with the group that matched.
+ */
+public class LegacyFilterAdapter extends SharedFilter {
+    /**
+     * The class of the legacy filter.
+     */
+    private final Class<? extends Filter> filterClass;
+
+    /**
+     * Adapt a legacy filter.
+     * @param filterClass The class of the legacy filter.
+     */
+    public LegacyFilterAdapter(Class<? extends Filter> filterClass) {
+        this.filterClass = filterClass;
+    }
+
+    /**
+     * Get the name of the legacy filter.
+     * @return The class name of the legacy filter.
+     */
+    @Override
+    public String getName() {
+        return filterClass.getName();
+    }
+
+    /**
+     * Reload the configuration of the legacy filter, and use its regular expressions for deciding when the filter is applied.
+     * @param config The configuration.
+     */
+    @Override
+    public void reload(final Config config) {
+        Filter filter = newFilter();
+        filter.reload(config);
+        setPatterns(filter.getPatterns());
+    }
+
+    /**
+     * The legacy filter loads its configuration in {@link #reload(Config)}.
+     * @param configuration Not used.
+     */
+    @Override
+    protected void loadConfig(Map<String, Map<String, String>> configuration) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void filterClientRequest(Request request, FilterContext context) {
+        getFilter(context).filterClientRequest(request, context.getGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void filterServerRequest(Request request, FilterContext context) {
+        getFilter(context).filterServerRequest(request, context.getGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void filterServerResponse(Response response, FilterContext context) {
+        getFilter(context).filterServerResponse(response, context.getGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void filterNewRecording(Recording recording, FilterContext context) {
+        getFilter(context).filterNewRecording(recording);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void filterClientResponse(Response response, FilterContext context) {
+        getFilter(context).filterClientResponse(response, context.getGroup());
+    }
+
+    /**
+     * Get the instance of the legacy filter for the request/response-pair, creating it the first time.
+     * @param context The context of the request/response-pair.
+     * @return The instance of the legacy filter.
+     */
+    private Filter getFilter(FilterContext context) {
+        Filter filter = context.getState();
+        if (filter == null) {
+            filter = newFilter();
+            context.setState(filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Create an instance of the legacy filter.
+     * @return A new instance of the legacy filter.
+     */
+    private Filter newFilter() {
+        try {
+            return filterClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to instantiate filter \"" + filterClass.getName() + "\"", e);
+        }
+    }
+}
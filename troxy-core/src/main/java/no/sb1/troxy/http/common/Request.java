@@ -4,11 +4,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.bind.annotation.XmlTransient;
+import no.sb1.troxy.util.ContentExtractor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +22,15 @@ public class Request extends Packet {
      * Logger for this class.
      */
     private static final Logger log = LoggerFactory.getLogger(Request.class);
+    /**
+     * Matches a URL where one slash is normalized away, i.e. "http:/host".
+     */
+    private static final Pattern NORMALIZED_URL_PATTERN = Pattern.compile("http[s]?:/[^/]");
+    /**
+     * The largest buffer allocated up front for the content from the Content-Length of a request.
+     * Kept small as the Content-Length is sent by the client, a slow client shouldn't make us hold on to much memory before sending any content.
+     */
+    public static final int MAX_PREALLOCATED_CONTENT = 1 << 16;
     /**
      * Which protocol is used. This is usually "http" or "https".
      */
@@ -57,6 +68,18 @@ public class Request extends Packet {
      */
     private transient long received;
     private byte[] rawByteContent;
+    /**
+     * The fields of the header, parsed from the header when first needed.
+     */
+    private transient HeaderFields headerFields;
+    /**
+     * The header values by lower case header name, made from the header fields when first needed.
+     */
+    private transient Map<String, String> headerValues;
+    /**
+     * Values extracted from the content by path, paths not found in the content have a <code>null</code> value.
+     */
+    private transient Map<String, String> contentValues;
 
     /**
      * Empty constructor, needed to create a Request object from a serialized state.
@@ -65,37 +88,40 @@ public class Request extends Packet {
     }
 
     /**
-     * Constructor for creating a Request object from a HttpServletRequest.
+     * Constructor for creating a Request object from a HttpServletRequest, reading the content from the request.
      * @param request The incoming HttpServletRequest.
      * @param received The time the request was received (milliseconds since epoch).
      */
     public Request(HttpServletRequest request, long received) {
+        this(request, readContent(request), received);
+    }
+
+    /**
+     * Constructor for creating a Request object from a HttpServletRequest where the content is already read.
+     * @param request The incoming HttpServletRequest.
+     * @param content The content of the request.
+     * @param received The time the request was received (milliseconds since epoch).
+     */
+    public Request(HttpServletRequest request, byte[] content, long received) {
         /* path is "/<protocol>://<host>[:port][/path]" or just "/path" */
         String pathInfo = request.getPathInfo();
         pathInfo = restoreNormalizedURL(pathInfo);
-        URL url = null;
-        try {
-            if (pathInfo.contains("://")) {
-                url = new URL(pathInfo.substring(1));
-            } else {
-                // protocol, host & port isn't defined in path, may be some proxy rewriting the Host header
-                // assume http(s) and attempt to guess these values
-                String host = request.getHeader("Host");
-                if (host != null && !host.isEmpty()) {
-                    url = new URL("http" + (request.isSecure() ? "s" : "") + "://" + host + pathInfo);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Couldn't parse URL: " + pathInfo.substring(1), e);
+        String url = null;
+        if (pathInfo.contains("://")) {
+            url = pathInfo.substring(1);
+        } else {
+            // protocol, host & port isn't defined in path, may be some proxy rewriting the Host header
+            // assume http(s) and attempt to guess these values
+            String host = request.getHeader("Host");
+            if (host != null && !host.isEmpty())
+                url = "http" + (request.isSecure() ? "s" : "") + "://" + host + pathInfo;
         }
-        setProtocol(url != null ? url.getProtocol() : "");
-        setHost(url != null ? url.getHost() : "");
-        determinePort(url);
-        setPath(url != null ? url.getPath() : pathInfo);
+        if (url == null || !parseSimpleURL(url))
+            parseURL(url, pathInfo);
         setQuery(request.getQueryString());
         setMethod(request.getMethod());
         sortAndSetHeader(request);
-        copyContent(request);
+        copyContent(request, content);
         this.received = received;
     }
 
@@ -105,9 +131,10 @@ public class Request extends Packet {
      * Finds the first occurrence of "http:/" and inserts a slash, producing "http://", while taking care to not
      * insert a slash if we already have "://".
      */
-    private String restoreNormalizedURL(String pathInfo) {
-        Pattern pattern = Pattern.compile("http[s]?:/[^/]");
-        Matcher matcher = pattern.matcher(pathInfo);
+    private static String restoreNormalizedURL(String pathInfo) {
+        if (pathInfo.indexOf(":/") < 0)
+            return pathInfo;
+        Matcher matcher = NORMALIZED_URL_PATTERN.matcher(pathInfo);
         if (matcher.find()) {
             int slashIndex = matcher.end() - 1;
             return pathInfo.substring(0, slashIndex) + "/" + pathInfo.substring(slashIndex);
@@ -116,6 +143,71 @@ public class Request extends Packet {
         }
     }
 
+    /**
+     * Set protocol, host, port and path from a plain http or https URL without creating a {@link URL}.
+     * Gives the same result as {@link #parseURL(String, String)}, URLs with user info, IPv6 addresses, references or anything else
+     * that takes more than splitting the URL are left for {@link #parseURL(String, String)}.
+     * @param url The URL.
+     * @return Whether the URL was parsed.
+     */
+    boolean parseSimpleURL(String url) {
+        String protocol;
+        if (url.regionMatches(true, 0, "http://", 0, 7))
+            protocol = "http";
+        else if (url.regionMatches(true, 0, "https://", 0, 8))
+            protocol = "https";
+        else
+            return false;
+        int hostStart = protocol.length() + 3;
+        int pathStart = url.indexOf('/', hostStart);
+        if (pathStart < 0)
+            pathStart = url.length();
+        int portStart = -1;
+        for (int i = hostStart; i < pathStart; ++i) {
+            char c = url.charAt(i);
+            if (c == ':' && portStart < 0)
+                portStart = i + 1;
+            else if (c == '@' || c == '[' || c == '\\' || (portStart >= 0 && (c < '0' || c > '9')))
+                return false;
+        }
+        if (url.indexOf('?', hostStart) >= 0 || url.indexOf('#', hostStart) >= 0 || (portStart >= 0 && pathStart - portStart > 5))
+            return false;
+        int port = portStart >= 0 && portStart < pathStart ? Integer.parseInt(url.substring(portStart, pathStart)) : -1;
+        setProtocol(protocol);
+        setHost(url.substring(hostStart, portStart >= 0 ? portStart - 1 : pathStart));
+        determinePort(port);
+        setPath(url.substring(pathStart));
+        return true;
+    }
+
+    /**
+     * Set protocol, host, port and path from a URL.
+     * If the URL can't be parsed, protocol, host and port are empty and the path is the path of the request.
+     * @param url The URL, may be <code>null</code>.
+     * @param pathInfo The path of the request.
+     */
+    void parseURL(String url, String pathInfo) {
+        URL parsed = null;
+        if (url != null) {
+            try {
+                parsed = new URL(url);
+            } catch (Exception e) {
+                log.warn("Couldn't parse URL: " + pathInfo.substring(1), e);
+            }
+        }
+        if (parsed != null) {
+            setProtocol(parsed.getProtocol());
+            setHost(parsed.getHost());
+            determinePort(parsed.getPort());
+            setPath(parsed.getPath());
+        } else {
+            setProtocol("");
+            setHost("");
+            setPort("");
+            setPath(pathInfo);
+        }
+    }
+
     /**
      * Sort and set headers
      *
@@ -123,29 +215,40 @@ public class Request extends Packet {
      * elements, which is perfectly legal, but it messes up our pattern matching
      */
     private void sortAndSetHeader(HttpServletRequest request) {
-        Enumeration enumeration = request.getHeaderNames();
-        SortedSet<String> headerSet = new TreeSet<>();
+        Enumeration<String> enumeration = request.getHeaderNames();
+        List<String> headerLines = new ArrayList<>();
         while (enumeration.hasMoreElements()) {
-            String key = (String) enumeration.nextElement();
+            String key = enumeration.nextElement();
             if ("Accept-Encoding".equalsIgnoreCase(key))
                 continue;
-            String value = request.getHeader(key);
-            headerSet.add(key + ": " + value);
+            headerLines.add(key + ": " + request.getHeader(key));
         }
-        setHeader(String.join("\n", headerSet));
+        Collections.sort(headerLines);
+        StringBuilder sb = new StringBuilder();
+        String previous = null;
+        for (String line : headerLines) {
+            /* identical lines are only included once */
+            if (line.equals(previous))
+                continue;
+            if (previous != null)
+                sb.append('\n');
+            sb.append(line);
+            previous = line;
+        }
+        setHeader(sb.toString());
     }
 
-    private void determinePort(URL url) {
-        if (url != null) {
-            if (url.getPort() > 0)
-                setPort("" + url.getPort());
-            else if ("https".equalsIgnoreCase(protocol))
-                setPort("443");
-            else
-                setPort("80");
-        } else {
-            setPort("");
-        }
+    /**
+     * Set port, using the default port for the protocol if the URL has no port.
+     * @param port The port of the URL, or -1 if the URL has no port.
+     */
+    private void determinePort(int port) {
+        if (port > 0)
+            setPort(Integer.toString(port));
+        else if ("https".equalsIgnoreCase(protocol))
+            setPort("443");
+        else
+            setPort("80");
     }
 
     /**
@@ -167,30 +270,73 @@ public class Request extends Packet {
      * concerned with the actual content of requests, but rather if it matches previous requests, and that should not
      * change even if troxy is seeing a payload that slightly incorrectly encoded.
      */
-    private void copyContent(HttpServletRequest request) {
-        byte[] buffer = new byte[32_768];
+    private void copyContent(HttpServletRequest request, byte[] content) {
+        setRawByteContent(content);
+
+        try {
+            String encoding = request.getCharacterEncoding();
+            String contentAsString = encoding == null ? new String(rawByteContent, StandardCharsets.ISO_8859_1) : new String(rawByteContent, encoding);
+            setContent(normalizeLineBreaks(contentAsString));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replace all "\r\n" with "\n" in a single pass, without allocating anything if there's no "\r\n".
+     * @param text The text.
+     * @return The text with "\n" as line breaks.
+     */
+    static String normalizeLineBreaks(String text) {
+        int index = text.indexOf("\r\n");
+        if (index < 0)
+            return text;
+        char[] chars = new char[text.length() - 1];
+        int length = 0;
+        int start = 0;
+        while (index >= 0) {
+            /* copy up to and excluding '\r' */
+            text.getChars(start, index, chars, length);
+            length += index - start;
+            start = index + 1;
+            index = text.indexOf("\r\n", start);
+        }
+        text.getChars(start, text.length(), chars, length);
+        length += text.length() - start;
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Read the content of the original request.
+     * The buffer is sized from the Content-Length of the request, so content of the declared length is read without copying.
+     * @param request The incoming HttpServletRequest.
+     * @return The bytes read, which may be incomplete if reading fails.
+     */
+    private static byte[] readContent(HttpServletRequest request) {
+        int contentLength = request.getContentLength();
+        /* don't trust the client with more than the preallocated size, larger content grows the buffer as it's read */
+        byte[] buffer = new byte[contentLength >= 0 ? Math.min(contentLength, MAX_PREALLOCATED_CONTENT) : 32_768];
         int totalRead = 0;
         try (InputStream is = request.getInputStream()) {
-            int read;
-            while ((read = is.read(buffer, totalRead, buffer.length - totalRead)) != -1) {
-                totalRead += read;
+            while (true) {
                 if (totalRead == buffer.length) {
-                    buffer = Arrays.copyOf(buffer, buffer.length * 4);
+                    /* buffer is full, only grow it if there's more content */
+                    int next = is.read();
+                    if (next < 0)
+                        break;
+                    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, 32_768));
+                    buffer[totalRead++] = (byte) next;
                 }
+                int read = is.read(buffer, totalRead, buffer.length - totalRead);
+                if (read < 0)
+                    break;
+                totalRead += read;
             }
         } catch (IOException e) {
             log.warn("Failed reading content from request", e);
         }
         // Arrays.copyOf(buffer, totalRead) will truncate the buffer down to actual number of bytes read
-        setRawByteContent(Arrays.copyOf(buffer, totalRead));
-
-        try {
-            String encoding = Optional.ofNullable(request.getCharacterEncoding()).orElse("iso-8859-1");
-            String contentAsString = new String(rawByteContent, encoding).replace("\r\n", "\n");
-            setContent(contentAsString);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        return totalRead == buffer.length ? buffer : Arrays.copyOf(buffer, totalRead);
     }
 
     private void setRawByteContent(byte[] buffer) {
@@ -307,6 +453,8 @@ public class Request extends Packet {
      */
     public void setHeader(String header) {
         this.header = header == null ? "" : header;
+        this.headerFields = null;
+        this.headerValues = null;
     }
 
     /**
@@ -317,12 +465,73 @@ public class Request extends Packet {
         return header;
     }
 
+    /**
+     * Get the fields of the header.
+     * The header is parsed the first time this method is called.
+     * @return The fields of the header.
+     */
+    @XmlTransient
+    public HeaderFields getHeaderFields() {
+        HeaderFields fields = headerFields;
+        if (fields == null) {
+            fields = HeaderFields.parse(header);
+            headerFields = fields;
+        }
+        return fields;
+    }
+
+    /**
+     * Get the value of a single header.
+     * The header fields are put in a map the first time this method is called, later calls only look up the name.
+     * If the header occurs multiple times, the first value is returned.
+     * @param name Name of the header, case insensitive.
+     * @return The value of the header, or <code>null</code> if the request has no such header.
+     */
+    public String getHeaderValue(String name) {
+        Map<String, String> values = headerValues;
+        if (values == null) {
+            HeaderFields fields = getHeaderFields();
+            values = new HashMap<>();
+            for (int i = 0; i < fields.size(); ++i)
+                values.putIfAbsent(fields.getName(i).toLowerCase(Locale.ROOT), fields.getValue(i));
+            headerValues = values;
+        }
+        return values.get(name.toLowerCase(Locale.ROOT));
+    }
+
     /**
      * Set content. Null value is set to "".
      * @param content The content.
      */
     public void setContent(String content) {
         this.content = content == null ? "" : content;
+        this.contentValues = null;
+    }
+
+    /**
+     * Get values from JSON or XML content by path.
+     * Paths not extracted earlier are extracted in a single read of the content, which stops when all of them are found.
+     * @param paths The paths to the values, see {@link ContentExtractor}.
+     * @return The extracted values by path, including paths extracted earlier. Paths not found in the content have a <code>null</code> value.
+     */
+    public Map<String, String> getContentValues(Collection<String> paths) {
+        Map<String, String> values = contentValues == null ? Collections.emptyMap() : contentValues;
+        List<String> missing = null;
+        for (String path : paths) {
+            if (!values.containsKey(path)) {
+                if (missing == null)
+                    missing = new ArrayList<>();
+                missing.add(path);
+            }
+        }
+        if (missing != null) {
+            Map<String, String> extracted = ContentExtractor.extract(content, missing);
+            values = new HashMap<>(values);
+            for (String path : missing)
+                values.put(path, extracted.get(path));
+            contentValues = values;
+        }
+        return values;
     }
 
     /**
@@ -29,6 +29,10 @@ public class Response extends Packet {
      * Header for response.
      */
     private String header = "";
+    /**
+     * The fields of the header, parsed from the header when first needed.
+     */
+    private transient HeaderFields headerFields;
     /**
      * Content for response.
      */
@@ -139,6 +143,17 @@ public class Response extends Packet {
      */
     public void setHeader(String header) {
         this.header = header == null ? "" : header;
+        this.headerFields = null;
+    }
+
+    /**
+     * Set header along with its fields, when they're known and don't have to be parsed from the header.
+     * @param header The header.
+     * @param headerFields The fields of the header, <code>null</code> to parse them from the header when needed.
+     */
+    public void setHeader(String header, HeaderFields headerFields) {
+        setHeader(header);
+        this.headerFields = headerFields;
     }
 
     /**
@@ -149,6 +164,21 @@ public class Response extends Packet {
         return header;
     }
 
+    /**
+     * Get the fields of the header.
+     * The header is parsed the first time this method is called, unless the fields were given with the header.
+     * @return The fields of the header.
+     */
+    @XmlTransient
+    public HeaderFields getHeaderFields() {
+        HeaderFields fields = headerFields;
+        if (fields == null) {
+            fields = HeaderFields.parse(header);
+            headerFields = fields;
+        }
+        return fields;
+    }
+
     /**
      * Set content. Null value is set to "".
      * @param content The content.
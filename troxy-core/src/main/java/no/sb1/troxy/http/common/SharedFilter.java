@@ -0,0 +1,194 @@
+package no.sb1.troxy.http.common;
+
+import java.util.Map;
+import no.sb1.troxy.common.Config;
+import no.sb1.troxy.record.v3.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for filters shared by all requests, extend this class to implement a filter.
+ * This is version 2 of the filter interface, replacing {@link Filter}, of which a new instance is created for each request/response-pair.
+ * Only one instance of the filter is created, and it's used by all requests at the same time, so it must be thread-safe.
+ * State for a single request/response-pair is kept in the {@link FilterContext} given to each method rather than in fields of the filter,
+ * see {@link FilterContext#getState()} and {@link FilterContext#setState(Object)}.
+ * The methods are called in the same order and under the same conditions as for {@link Filter}:
+ * <code>
+ * &lt;receive request&gt;
+ * filterClientRequest(request, context)
+ * &lt;load response from cache&gt;
+ * &lt;if connecting to remote server&gt;
+ * filterServerRequest(request, context)
+ * &lt;transmit request to and receive response from remote server&gt;
+ * filterServerResponse(response, context)
+ * &lt;end if&gt;
+ * &lt;save request and response to cache&gt;
+ * filterClientResponse(response, context)
+ * &lt;transmit response&gt;
+ * </code>
+ * Filters written for {@link Filter} keep working through {@link LegacyFilterAdapter}.
+ */
+public abstract class SharedFilter {
+    /**
+     * Logger for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(SharedFilter.class);
+    /**
+     * The configuration and the patterns deciding when the filter is applied, replaced when the configuration is reloaded.
+     */
+    private volatile FilterPatterns patterns = FilterPatterns.DISABLED;
+
+    /**
+     * Get the name of this filter, used when logging and for ordering filters.
+     * @return The name of this filter.
+     */
+    public String getName() {
+        return getClass().getName();
+    }
+
+    /**
+     * Check whether this filter is enabled.
+     * @return Whether filter is enabled.
+     */
+    public boolean isEnabled() {
+        return patterns.isEnabled();
+    }
+
+    /**
+     * Reload configuration common for all filters, and the filter specific configuration if the filter is enabled.
+     * @param config The configuration.
+     */
+    public void reload(final Config config) {
+        FilterPatterns patterns = FilterPatterns.parse(getClass().getSimpleName(), config);
+        if (patterns.isEnabled()) {
+            /* tell filter to reload its configuration */
+            loadConfig(patterns.getConfiguration());
+        }
+        setPatterns(patterns);
+    }
+
+    /**
+     * Load filter specific configuration.
+     * The filter must handle multiple groups and optimize the data in this method rather than doing so in the filter-methods.
+     * In the given configuration map, the first string is the group name, and the map associated with this group contains keys and values.
+     * @param configuration Configuration to be loaded.
+     */
+    protected abstract void loadConfig(Map<String, Map<String, String>> configuration);
+
+    /**
+     * Filter incoming Request before sending it to the remote server and saving it to the Cache.
+     * This method is called for all requests to the simulator, regardless of its current mode.
+     * @param request The incoming Request.
+     * @param context The context of the request/response-pair, with the group the request matched.
+     */
+    protected void filterClientRequest(Request request, FilterContext context) {
+    }
+
+    /**
+     * Filter incoming Request after checking the Cache for a matching response and before sending the request to a remote server.
+     * This method is only called when in record mode and the request is sent to a remote server.
+     * @param request The incoming Request.
+     * @param context The context of the request/response-pair, with the group the request matched.
+     */
+    protected void filterServerRequest(Request request, FilterContext context) {
+    }
+
+    /**
+     * Filter outgoing Response after receiving a response from the remote server and before saving it to the Cache.
+     * This method is only called when in record mode and a response is received from the remote server.
+     * @param response The outgoing Response.
+     * @param context The context of the request/response-pair, with the group the response matched.
+     */
+    protected void filterServerResponse(Response response, FilterContext context) {
+    }
+
+    /**
+     * Filter a Recording before it's serialized to disk.
+     * If the filter is only meant to modify Recordings from requests or responses limited by a set of regular expressions,
+     * then this limitation should be set up in the methods filterClientRequest() or filterServerResponse().
+     * @param recording The newly created Recording.
+     * @param context The context of the request/response-pair.
+     */
+    protected void filterNewRecording(Recording recording, FilterContext context) {
+    }
+
+    /**
+     * Filter outgoing Response after receiving a response from the remote server or after loading it from the Cache.
+     * This method is called for all responses sent from the simulator (except generated error responses), regardless of its current mode.
+     * @param response The outgoing Response.
+     * @param context The context of the request/response-pair, with the group the response matched.
+     */
+    protected void filterClientResponse(Response response, FilterContext context) {
+    }
+
+    /**
+     * Get the configuration and patterns of this filter.
+     * @return The configuration and patterns of this filter.
+     */
+    FilterPatterns getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Set the configuration and patterns of this filter, for filters loading their configuration some other way.
+     * @param patterns The configuration and patterns of this filter.
+     */
+    void setPatterns(FilterPatterns patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * Invoke the filter on a request that matched the patterns of the filter.
+     * @param request The incoming request.
+     * @param remoteRequest Should be <code>true</code> when we're forwarding the request to a remote server.
+     * @param context The context of the request/response-pair.
+     */
+    final void invokeRequest(Request request, boolean remoteRequest, FilterContext context) {
+        String method = remoteRequest ? "filterServerRequest()" : "filterClientRequest()";
+        log.debug("{}.{} start for filter group {}", getName(), method, context.getGroup());
+        try {
+            if (remoteRequest)
+                filterServerRequest(request, context);
+            else
+                filterClientRequest(request, context);
+        } catch (Exception e) {
+            log.warn("{}.{} failed", getName(), method, e);
+        }
+        log.debug("{}.{} finished", getName(), method);
+    }
+
+    /**
+     * Invoke the filter on a response that matched the patterns of the filter.
+     * @param response The outgoing response.
+     * @param remoteResponse Should be <code>true</code> when we're filtering the response from a remote server.
+     * @param context The context of the request/response-pair.
+     */
+    final void invokeResponse(Response response, boolean remoteResponse, FilterContext context) {
+        String method = remoteResponse ? "filterServerResponse()" : "filterClientResponse()";
+        log.debug("{}.{} start for filter group {}", getName(), method, context.getGroup());
+        try {
+            if (remoteResponse)
+                filterServerResponse(response, context);
+            else
+                filterClientResponse(response, context);
+        } catch (Exception e) {
+            log.warn("{}.{} failed", getName(), method, e);
+        }
+        log.debug("{}.{} finished", getName(), method);
+    }
+
+    /**
+     * Invoke the filter on a new recording.
+     * @param recording The recording.
+     * @param context The context of the request/response-pair.
+     */
+    final void invokeRecording(Recording recording, FilterContext context) {
+        log.debug("{}.filterNewRecording() start", getName());
+        try {
+            filterNewRecording(recording, context);
+        } catch (Exception e) {
+            log.warn("{}.filterNewRecording() failed", getName(), e);
+        }
+        log.debug("{}.filterNewRecording() finished", getName());
+    }
+}
@@ -0,0 +1,130 @@
+package no.sb1.troxy.http.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Response created from a template without variables, where everything needed to send it is prepared when the template is loaded.
+ * The status and the header fields are parsed and the content is encoded into a read-only direct buffer,
+ * shared by all responses from the same template.
+ * Setting the code, header or content (e.g. in a filter) drops the prepared response and it's sent as usual.
+ */
+public class StaticResponse extends Response {
+    /**
+     * The prepared response, <code>null</code> if the response is modified.
+     */
+    private Prepared prepared;
+
+    /**
+     * Create a Response from a prepared response.
+     * @param prepared The prepared response.
+     */
+    public StaticResponse(Prepared prepared) {
+        super.setCode(prepared.code);
+        super.setHeader(prepared.header, prepared.headerFields);
+        super.setContent(prepared.content);
+        this.prepared = prepared;
+    }
+
+    /**
+     * Get the prepared response.
+     * @return The prepared response, or <code>null</code> if the code, header or content is modified.
+     */
+    public Prepared getPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Set code, dropping the prepared response.
+     * @param code The code.
+     */
+    @Override
+    public void setCode(String code) {
+        super.setCode(code);
+        prepared = null;
+    }
+
+    /**
+     * Set header, dropping the prepared response.
+     * @param header The header.
+     */
+    @Override
+    public void setHeader(String header) {
+        super.setHeader(header);
+        prepared = null;
+    }
+
+    /**
+     * Set content, dropping the prepared response.
+     * @param content The content.
+     */
+    @Override
+    public void setContent(String content) {
+        super.setContent(content);
+        prepared = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        if (prepared == null)
+            return super.toString();
+        return "[CODE: " + getCode() + "] [REASON: " + getReason() +"] [HEADER: " + getHeaderFields().size() + " fields] [CONTENT: " + prepared.body.capacity() + " bytes]";
+    }
+
+    /**
+     * The parts of a response that never change, prepared once.
+     */
+    public static final class Prepared {
+        private final String code;
+        private final String header;
+        private final String content;
+        private final int status;
+        private final HeaderFields headerFields;
+        private final ByteBuffer body;
+
+        /**
+         * Prepare a response.
+         * @param code The code.
+         * @param header The header.
+         * @param content The content.
+         * @param status The code parsed as a status.
+         * @param headerFields The fields of the header.
+         * @param body The encoded content, which is made read-only.
+         */
+        public Prepared(String code, String header, String content, int status, HeaderFields headerFields, ByteBuffer body) {
+            this.code = code;
+            this.header = header;
+            this.content = content;
+            this.status = status;
+            this.headerFields = headerFields;
+            this.body = body.asReadOnlyBuffer();
+        }
+
+        /**
+         * Get the status.
+         * @return The status.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the length of the encoded content.
+         * @return The length of the encoded content in bytes.
+         */
+        public int getContentLength() {
+            return body.capacity();
+        }
+
+        /**
+         * Get the encoded content.
+         * The content itself isn't copied, but each caller gets its own position and limit, so the buffer can be consumed when sent.
+         * @return A read-only view of the encoded content.
+         */
+        public ByteBuffer getBody() {
+            return body.duplicate();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package no.sb1.troxy.record.v3;
+
+/**
+ * A condition for a value in JSON or XML request content in a RequestPattern.
+ * The value is found by a path, see {@link no.sb1.troxy.util.ContentExtractor}, and must match the given regular expression.
+ * Named groups in the regular expression become variables in the response, like named groups in the other fields.
+ * A request without the value never matches the condition.
+ */
+public class ContentPredicate {
+    /**
+     * Path to the value, "$..." for JSON and "/..." for XML.
+     */
+    private String path = "";
+    /**
+     * The regular expression the value must match.
+     */
+    private String regex = "";
+
+    /**
+     * Empty constructor.
+     */
+    public ContentPredicate() {
+    }
+
+    /**
+     * Default constructor.
+     * @param path Path to the value.
+     * @param regex The regular expression the value must match.
+     */
+    public ContentPredicate(String path, String regex) {
+        setPath(path);
+        setRegex(regex);
+    }
+
+    /**
+     * Get the path to the value.
+     * @return Path to the value.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Set the path to the value. Null value is set to "".
+     * @param path Path to the value.
+     */
+    public void setPath(String path) {
+        this.path = path == null ? "" : path;
+    }
+
+    /**
+     * Get the regular expression the value must match.
+     * @return The regular expression the value must match.
+     */
+    public String getRegex() {
+        return regex;
+    }
+
+    /**
+     * Set the regular expression the value must match. Null value is set to "".
+     * @param regex The regular expression the value must match.
+     */
+    public void setRegex(String regex) {
+        this.regex = regex == null ? "" : regex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return path + " ~ " + regex;
+    }
+}
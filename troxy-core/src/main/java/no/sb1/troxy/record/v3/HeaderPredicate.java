@@ -0,0 +1,95 @@
+package no.sb1.troxy.record.v3;
+
+/**
+ * A condition for a single request header in a RequestPattern.
+ * The header is found by name (case insensitive), and its value must either equal the given value or match the given regular expression.
+ * A request without the header never matches the condition.
+ */
+public class HeaderPredicate {
+    /**
+     * Name of the header.
+     */
+    private String name = "";
+    /**
+     * The value, or regular expression, the header value is compared with.
+     */
+    private String value = "";
+    /**
+     * Whether the value is a regular expression rather than a text the header value must be equal to.
+     */
+    private boolean regex;
+
+    /**
+     * Empty constructor.
+     */
+    public HeaderPredicate() {
+    }
+
+    /**
+     * Default constructor.
+     * @param name Name of the header.
+     * @param value The value, or regular expression, the header value is compared with.
+     * @param regex Whether the value is a regular expression.
+     */
+    public HeaderPredicate(String name, String value, boolean regex) {
+        setName(name);
+        setValue(value);
+        this.regex = regex;
+    }
+
+    /**
+     * Get the name of the header.
+     * @return Name of the header.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the name of the header. Null value is set to "".
+     * @param name Name of the header.
+     */
+    public void setName(String name) {
+        this.name = name == null ? "" : name;
+    }
+
+    /**
+     * Get the value, or regular expression, the header value is compared with.
+     * @return The value, or regular expression, the header value is compared with.
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Set the value, or regular expression, the header value is compared with. Null value is set to "".
+     * @param value The value, or regular expression, the header value is compared with.
+     */
+    public void setValue(String value) {
+        this.value = value == null ? "" : value;
+    }
+
+    /**
+     * Get whether the value is a regular expression.
+     * @return <code>true</code> if the value is a regular expression, <code>false</code> if the header value must be equal to the value.
+     */
+    public boolean isRegex() {
+        return regex;
+    }
+
+    /**
+     * Set whether the value is a regular expression.
+     * @param regex <code>true</code> if the value is a regular expression, <code>false</code> if the header value must be equal to the value.
+     */
+    public void setRegex(boolean regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return name + (regex ? " ~ " : " = ") + value;
+    }
+}
@@ -69,6 +69,11 @@ public class Recording {
      * The response strategy used for this Recording.
      */
     private ResponseStrategy responseStrategy = ResponseStrategy.SEQUENTIAL;
+    /**
+     * Priority of this Recording when several Recordings match a request, the highest priority is used.
+     * Recordings with the same priority are chosen by how specific their patterns are.
+     */
+    private int priority;
     /**
      * The RequestTemplate with regular expressions, used to match incoming requests.
      */
@@ -183,6 +188,22 @@ public class Recording {
         this.responseStrategy = responseStrategy;
     }
 
+    /**
+     * Get priority of this Recording when several Recordings match a request.
+     * @return Priority of this Recording, 0 unless set.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set priority of this Recording when several Recordings match a request.
+     * @param priority Priority of this Recording, the highest priority is used.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     /**
      * Get the RequestPattern for this Recording.
      * @return RequestPattern for this Recording.
@@ -1,5 +1,7 @@
 package no.sb1.troxy.record.v3;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import no.sb1.troxy.http.common.Request;
 
@@ -21,6 +23,22 @@ public class RequestPattern extends Request {
      * This value should under normal circumstances never be modified.
      */
     private Request originalRequest;
+    /**
+     * Conditions for single headers, checked in addition to the regular expression for the header.
+     */
+    private List<HeaderPredicate> headerPredicates = new ArrayList<>();
+    /**
+     * Whether the regular expression for the header is ignored, leaving only the conditions for single headers.
+     */
+    private boolean ignoreOtherHeaders;
+    /**
+     * Conditions for values in JSON or XML content, checked in addition to the regular expression for the content.
+     */
+    private List<ContentPredicate> contentPredicates = new ArrayList<>();
+    /**
+     * Whether the regular expression for the content is ignored, leaving only the conditions for values in the content.
+     */
+    private boolean ignoreOtherContent;
 
     /**
      * Empty constructor.
@@ -60,6 +78,70 @@ public class RequestPattern extends Request {
         this.originalRequest = originalRequest;
     }
 
+    /**
+     * Get the conditions for single headers.
+     * @return The conditions for single headers.
+     */
+    public List<HeaderPredicate> getHeaderPredicates() {
+        return headerPredicates;
+    }
+
+    /**
+     * Set the conditions for single headers. Null value is set to an empty list.
+     * @param headerPredicates The conditions for single headers.
+     */
+    public void setHeaderPredicates(List<HeaderPredicate> headerPredicates) {
+        this.headerPredicates = headerPredicates == null ? new ArrayList<>() : headerPredicates;
+    }
+
+    /**
+     * Get whether the regular expression for the header is ignored, leaving only the conditions for single headers.
+     * @return <code>true</code> if the regular expression for the header is ignored, <code>false</code> otherwise.
+     */
+    public boolean isIgnoreOtherHeaders() {
+        return ignoreOtherHeaders;
+    }
+
+    /**
+     * Set whether the regular expression for the header is ignored, leaving only the conditions for single headers.
+     * @param ignoreOtherHeaders <code>true</code> if the regular expression for the header is ignored, <code>false</code> otherwise.
+     */
+    public void setIgnoreOtherHeaders(boolean ignoreOtherHeaders) {
+        this.ignoreOtherHeaders = ignoreOtherHeaders;
+    }
+
+    /**
+     * Get the conditions for values in JSON or XML content.
+     * @return The conditions for values in the content.
+     */
+    public List<ContentPredicate> getContentPredicates() {
+        return contentPredicates;
+    }
+
+    /**
+     * Set the conditions for values in JSON or XML content. Null value is set to an empty list.
+     * @param contentPredicates The conditions for values in the content.
+     */
+    public void setContentPredicates(List<ContentPredicate> contentPredicates) {
+        this.contentPredicates = contentPredicates == null ? new ArrayList<>() : contentPredicates;
+    }
+
+    /**
+     * Get whether the regular expression for the content is ignored, leaving only the conditions for values in the content.
+     * @return <code>true</code> if the regular expression for the content is ignored, <code>false</code> otherwise.
+     */
+    public boolean isIgnoreOtherContent() {
+        return ignoreOtherContent;
+    }
+
+    /**
+     * Set whether the regular expression for the content is ignored, leaving only the conditions for values in the content.
+     * @param ignoreOtherContent <code>true</code> if the regular expression for the content is ignored, <code>false</code> otherwise.
+     */
+    public void setIgnoreOtherContent(boolean ignoreOtherContent) {
+        this.ignoreOtherContent = ignoreOtherContent;
+    }
+
     /**
      * Escape characters that may be mistaken as a regular expression.
      * @param text The text to be escaped.
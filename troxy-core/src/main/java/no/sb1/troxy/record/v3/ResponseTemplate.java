@@ -1,12 +1,19 @@
 package no.sb1.troxy.record.v3;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import no.sb1.troxy.http.common.EncodedResponse;
+import no.sb1.troxy.http.common.HeaderFields;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.StaticResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -115,17 +122,10 @@ public class ResponseTemplate extends Response {
     private static final Pattern ESCAPE_VARIABLE_PREFIX_PATTERN = Pattern.compile("(\\$)");
 
     /**
-     * A list of static text and variables used for the code field.
+     * The code, header and content split up into static text and variables, <code>null</code> until compiled.
+     * Replaced as a whole, so concurrent requests never see a partly compiled template.
      */
-    private List<Entry> code;
-    /**
-     * A list of static text and variables used for the header field.
-     */
-    private List<Entry> header;
-    /**
-     * A list of static text and variables used for the content field.
-     */
-    private List<Entry> content;
+    private volatile Compiled compiled;
     /**
      * The original response for this ResponseTemplate.
      * This is the response from the server when first creating a recording.
@@ -176,19 +176,144 @@ public class ResponseTemplate extends Response {
      * @return A Response from this template.
      */
     public Response createResponse(Map<String, Matcher> variables) {
-        if (code == null) {
-            code = createArray(getCode());
-            header = createArray(getHeader());
-            content = createArray(getContent());
+        Compiled current = compiled;
+        if (current == null)
+            current = compileTemplate(null);
+        if (current.prepared != null) {
+            /* nothing to render, the response was prepared when the template was compiled */
+            Response response = new StaticResponse(current.prepared);
+            response.setDelay(delayStrategy.calculateDelay(this));
+            return response;
+        }
+        String header = current.headerFields != null ? current.headerText : createString(current.header, variables);
+        Response response;
+        if (current.charset != null && current.charsetName.equals(discoverCharset(header))) {
+            /* static text is encoded once, only the values of the variables are encoded for each response */
+            byte[][] segments = new byte[current.content.size()][];
+            int length = 0;
+            for (int i = 0; i < segments.length; ++i) {
+                Entry entry = current.content.get(i);
+                segments[i] = entry.encoded != null ? entry.encoded : String.valueOf(getText(entry, variables)).getBytes(current.charset);
+                length += segments[i].length;
+            }
+            response = new EncodedResponse(segments, length, current.charset);
+        } else {
+            response = new Response();
+            response.setContent(createString(current.content, variables));
         }
-        Response response = new Response();
-        response.setCode(createString(code, variables));
-        response.setHeader(createString(header, variables));
-        response.setContent(createString(content, variables));
+        response.setCode(createString(current.code, variables));
+        response.setHeader(header, createHeaderFields(current, variables));
         response.setDelay(delayStrategy.calculateDelay(this));
         return response;
     }
 
+    /**
+     * Compile the code, header and content of this template, binding each variable to the groups of the given patterns.
+     * The patterns are the ones the Matchers given to {@link #createResponse(Map)} are created from, keyed like the Matchers.
+     * A variable naming a field (e.g. <code>$PATH:id$</code>) is bound to the group in the pattern for that field,
+     * a variable without a field (e.g. <code>$id$</code>) to the first pattern with that group in the order of the given map.
+     * Environment variables (e.g. <code>$ENV:HOME$</code>) are read once, here.
+     * Templates not compiled with patterns, or given Matchers for other patterns, look up the groups of the Matchers when a response is created.
+     * @param patterns The patterns the variables are matched with, <code>null</code> if not known.
+     */
+    public void compile(Map<String, Pattern> patterns) {
+        compileTemplate(patterns);
+    }
+
+    /**
+     * Compile the code, header and content of this template, see {@link #compile(Map)}.
+     * @param patterns The patterns the variables are matched with, <code>null</code> if not known.
+     * @return The compiled template.
+     */
+    private Compiled compileTemplate(Map<String, Pattern> patterns) {
+        Map<String, Map<String, Integer>> groups = new HashMap<>();
+        if (patterns != null) {
+            for (Map.Entry<String, Pattern> pattern : patterns.entrySet())
+                groups.put(pattern.getKey(), groupIndexes(pattern.getValue()));
+        }
+        List<Entry> header = createArray(getHeader(), patterns, groups);
+        List<HeaderLine> headerLines = splitHeader(header);
+        String headerText = null;
+        HeaderFields headerFields = null;
+        if (!hasVariables(header)) {
+            headerText = createString(header, null);
+            headerFields = createHeaderFields(headerLines, null);
+        }
+        /* the static text of the content is encoded with the character set of the header, unless the header has variables */
+        String charsetName = headerText == null ? null : discoverCharset(headerText);
+        Charset charset = charsetName == null ? null : EncodedResponse.lookupCharset(charsetName);
+        List<Entry> content = createArray(getContent(), patterns, groups);
+        /* a variable first or last in the content leaves empty static text, which would only become empty segments */
+        content.removeIf(entry -> !entry.isVariable() && entry.getText().isEmpty());
+        if (charset != null) {
+            for (Entry entry : content) {
+                if (!entry.isVariable())
+                    entry.encoded = entry.getText().getBytes(charset);
+            }
+        }
+        List<Entry> code = createArray(getCode(), patterns, groups);
+        StaticResponse.Prepared prepared = charset == null ? null : prepare(code, headerText, headerFields, content, charset);
+        Compiled current = new Compiled(code, header, headerLines, headerText, headerFields, content, charsetName, charset, prepared);
+        compiled = current;
+        return current;
+    }
+
+    /**
+     * Prepare the response of a template without variables, so it can be sent without being rendered and parsed for each request.
+     * @param code The compiled code.
+     * @param header The header.
+     * @param headerFields The fields of the header.
+     * @param content The compiled content.
+     * @param charset The character set of the header.
+     * @return The prepared response, or <code>null</code> if the template has variables, or a code that must be handled when sent.
+     */
+    private static StaticResponse.Prepared prepare(List<Entry> code, String header, HeaderFields headerFields, List<Entry> content, Charset charset) {
+        if (hasVariables(code) || hasVariables(content))
+            return null;
+        String codeText = createString(code, null);
+        String contentText = createString(content, null);
+        int status;
+        try {
+            status = Integer.parseInt(codeText);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        byte[] bytes = contentText.getBytes(charset);
+        ByteBuffer body = ByteBuffer.allocateDirect(bytes.length);
+        body.put(bytes).flip();
+        return new StaticResponse.Prepared(codeText, header, contentText, status, headerFields, body);
+    }
+
+    /**
+     * Set the code, discarding the compiled template.
+     * @param code The code.
+     */
+    @Override
+    public void setCode(String code) {
+        super.setCode(code);
+        compiled = null;
+    }
+
+    /**
+     * Set the header, discarding the compiled template.
+     * @param header The header.
+     */
+    @Override
+    public void setHeader(String header) {
+        super.setHeader(header);
+        compiled = null;
+    }
+
+    /**
+     * Set the content, discarding the compiled template.
+     * @param content The content.
+     */
+    @Override
+    public void setContent(String content) {
+        super.setContent(content);
+        compiled = null;
+    }
+
     /**
      * Get the delay strategy for this recording.
      * @return Delay strategy for this recording.
@@ -299,9 +424,11 @@ public class ResponseTemplate extends Response {
     /**
      * Helper method to split up a templated text into a list of static text and variables.
      * @param text The templated text.
+     * @param patterns The patterns the variables are matched with, <code>null</code> if not known.
+     * @param groups The group indexes by name for each of the patterns.
      * @return An array of static text and variables.
      */
-    private List<Entry> createArray(String text) {
+    private List<Entry> createArray(String text, Map<String, Pattern> patterns, Map<String, Map<String, Integer>> groups) {
         List<Entry> entries = new ArrayList<>();
         int index = 0;
         int previousIndex = 0;
@@ -316,59 +443,211 @@ public class ResponseTemplate extends Response {
                 continue;
             }
             index -= detectVariable ? charCount : 1;
-            Entry entry = new Entry(detectVariable, text.substring(previousIndex, index));
+            Entry entry = new Entry(detectVariable, text.substring(previousIndex, index), patterns, groups);
             log.debug("Adding {} to array: {}", entry.isVariable() ? "variable" : "static text", entry.getText());
             entries.add(entry);
             detectVariable = !detectVariable;
             previousIndex = ++index;
         }
-        Entry entry = new Entry(false, text.substring(previousIndex));
+        Entry entry = new Entry(false, text.substring(previousIndex), patterns, groups);
         log.debug("Adding {} to array: {}", entry.isVariable() ? "variable" : "static text", entry.getText());
         entries.add(entry);
         return entries;
     }
 
+    /**
+     * Helper method to split up a compiled header into fields, so the header doesn't have to be parsed for each response.
+     * Lines are parsed like {@link HeaderFields#parse(String)}, a variable can only be a part of the value.
+     * @param header The compiled header.
+     * @return The fields of the header, or <code>null</code> if the name of a field has a variable.
+     */
+    private static List<HeaderLine> splitHeader(List<Entry> header) {
+        List<List<Entry>> lines = new ArrayList<>();
+        List<Entry> line = new ArrayList<>();
+        for (Entry entry : header) {
+            if (entry.isVariable()) {
+                line.add(entry);
+                continue;
+            }
+            String text = entry.getText();
+            int start = 0;
+            int end;
+            while ((end = text.indexOf('\n', start)) >= 0) {
+                if (end > start)
+                    line.add(new Entry(text.substring(start, end)));
+                lines.add(line);
+                line = new ArrayList<>();
+                start = end + 1;
+            }
+            if (start < text.length())
+                line.add(new Entry(text.substring(start)));
+        }
+        lines.add(line);
+        List<HeaderLine> headerLines = new ArrayList<>();
+        for (List<Entry> entries : lines) {
+            if (entries.isEmpty())
+                continue;
+            Entry first = entries.get(0);
+            int colon = first.isVariable() ? -1 : first.getText().indexOf(':');
+            if (colon <= 0) {
+                if (hasVariables(entries))
+                    return null;
+                continue; // no name, skipped like when parsed
+            }
+            String text = first.getText();
+            int valueStart = colon + 1 < text.length() && text.charAt(colon + 1) == ' ' ? colon + 2 : colon + 1;
+            List<Entry> value = new ArrayList<>();
+            if (valueStart < text.length())
+                value.add(new Entry(text.substring(valueStart)));
+            value.addAll(entries.subList(1, entries.size()));
+            headerLines.add(new HeaderLine(text.substring(0, colon), value));
+        }
+        return headerLines;
+    }
+
+    /**
+     * Helper method to create the fields of the header of a response.
+     * @param current The compiled template.
+     * @param variables The variables to insert into the values.
+     * @return The fields of the header, or <code>null</code> if they must be parsed from the header.
+     */
+    private static HeaderFields createHeaderFields(Compiled current, Map<String, Matcher> variables) {
+        return current.headerFields != null ? current.headerFields : createHeaderFields(current.headerLines, variables);
+    }
+
+    /**
+     * Helper method to create the fields of a header from the split up header.
+     * @param headerLines The split up header, may be <code>null</code>.
+     * @param variables The variables to insert into the values.
+     * @return The fields of the header, or <code>null</code> if they must be parsed from the header (e.g. a value has a line break).
+     */
+    private static HeaderFields createHeaderFields(List<HeaderLine> headerLines, Map<String, Matcher> variables) {
+        if (headerLines == null)
+            return null;
+        String[] names = new String[headerLines.size()];
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            HeaderLine headerLine = headerLines.get(i);
+            names[i] = headerLine.name;
+            values[i] = createString(headerLine.value, variables);
+            if (values[i].indexOf('\n') >= 0)
+                return null;
+        }
+        return new HeaderFields(names, values);
+    }
+
+    /**
+     * Helper method to check whether code, header or content has variables.
+     * @param entries The entries of the code, header or content.
+     * @return Whether any of the entries is a variable.
+     */
+    private static boolean hasVariables(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (entry.isVariable())
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Helper method to build up code, header or content.
      * @param entries The entries to build this String from.
      * @param variables The variables to insert into the String.
      * @return A String for code, header or content where variables are replaced by values.
      */
-    private String createString(List<Entry> entries, Map<String, Matcher> variables) {
+    private static String createString(List<Entry> entries, Map<String, Matcher> variables) {
         StringBuilder sb = new StringBuilder();
         log.debug("Building String from Entry array");
-        for (Entry entry : entries) {
-            String text = null;
-            if (entry.isVariable()) {
-                String variable = entry.getText();
-                int colonIndex = variable.indexOf(':');
-                if (colonIndex > 0) {
-                    if(variable.substring(0, colonIndex).toUpperCase().equals("ENV")){
-                        text = System.getenv(variable.substring(colonIndex + 1));
-                        if(text == null){
-                            log.info("Environment variable \"{}\" is not set. Variable will be replaced by text \"null\"", variable.substring(colonIndex + 1));
-                        }
-                    }
-                    else{
-                        /* field specified */
-                        text = getVariable(variables.get(variable.substring(0, colonIndex).toUpperCase()), variable.substring(colonIndex + 1));
-                    }
-                } else {
-                    /* field not specified, have to go through all */
-                    for (String key : variables.keySet()) {
-                        text = getVariable(variables.get(key.toUpperCase()), variable);
-                        if (text != null)
-                            break;
+        for (Entry entry : entries)
+            sb.append(getText(entry, variables));
+        return sb.toString();
+    }
+
+    /**
+     * Helper method to get the text of an entry.
+     * @param entry The entry.
+     * @param variables The variables to insert.
+     * @return The static text, or the value of the variable (may be <code>null</code>).
+     */
+    private static String getText(Entry entry, Map<String, Matcher> variables) {
+        String text = null;
+        if (entry.bindings != null) {
+            text = entry.resolve(variables);
+            log.info("Inserting value for variable \"{}\": {}", entry.getText(), text);
+        } else if (entry.isVariable()) {
+            String variable = entry.getText();
+            int colonIndex = variable.indexOf(':');
+            if (colonIndex > 0) {
+                if(variable.substring(0, colonIndex).toUpperCase().equals("ENV")){
+                    text = System.getenv(variable.substring(colonIndex + 1));
+                    if(text == null){
+                        log.info("Environment variable \"{}\" is not set. Variable will be replaced by text \"null\"", variable.substring(colonIndex + 1));
                     }
                 }
-                log.info("Inserting value for variable \"{}\": {}", variable, text);
+                else{
+                    /* field specified */
+                    text = getVariable(variables.get(variable.substring(0, colonIndex).toUpperCase()), variable.substring(colonIndex + 1));
+                }
             } else {
-                text = entry.getText();
-                log.debug("Inserting static text: {}", text);
+                /* field not specified, have to go through all */
+                for (String key : variables.keySet()) {
+                    text = getVariable(variables.get(key.toUpperCase()), variable);
+                    if (text != null)
+                        break;
+                }
             }
-            sb.append(text);
+            log.info("Inserting value for variable \"{}\": {}", variable, text);
+        } else {
+            text = entry.getText();
+            log.debug("Inserting static text: {}", text);
         }
-        return sb.toString();
+        return text;
+    }
+
+    /**
+     * Find the index of each named group in a regular expression, as Pattern doesn't tell.
+     * Counts the capturing groups, skipping escaped characters, quoted text and character classes.
+     * @param pattern The regular expression.
+     * @return The index of each named group by name, or <code>null</code> if the groups couldn't be counted (e.g. with the COMMENTS flag).
+     */
+    static Map<String, Integer> groupIndexes(Pattern pattern) {
+        String regex = pattern.pattern();
+        Map<String, Integer> indexes = new HashMap<>();
+        int count = 0;
+        int classDepth = 0;
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    i = end < 0 ? regex.length() : end + 1;
+                } else {
+                    ++i;
+                }
+            } else if (c == '[') {
+                ++classDepth;
+                /* a ']' first in a class (possibly after '^') is a literal */
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^')
+                    ++i;
+                if (classDepth == 1 && i + 1 < regex.length() && regex.charAt(i + 1) == ']')
+                    ++i;
+            } else if (c == ']' && classDepth > 0) {
+                --classDepth;
+            } else if (c == '(' && classDepth == 0) {
+                if (i + 1 >= regex.length() || regex.charAt(i + 1) != '?') {
+                    ++count;
+                } else if (i + 3 < regex.length() && regex.charAt(i + 2) == '<' && regex.charAt(i + 3) != '=' && regex.charAt(i + 3) != '!') {
+                    int end = regex.indexOf('>', i + 3);
+                    if (end < 0)
+                        return null;
+                    indexes.put(regex.substring(i + 3, end), ++count);
+                }
+            }
+        }
+        if (count != pattern.matcher("").groupCount())
+            return null;
+        indexes.put("", count); // group names can't be empty, so this is where the group count is kept
+        return indexes;
     }
 
     /**
@@ -377,7 +656,7 @@ public class ResponseTemplate extends Response {
      * @param variable Name (or index) of variable value to retrieve.
      * @return Value of variable, or null if not found.
      */
-    private String getVariable(Matcher matcher, String variable) {
+    private static String getVariable(Matcher matcher, String variable) {
         if (matcher == null)
             return null;
         try {
@@ -393,11 +672,99 @@ public class ResponseTemplate extends Response {
         return null;
     }
 
+    /**
+     * The code, header and content of a ResponseTemplate split up into static text and variables.
+     */
+    private static final class Compiled {
+        private final List<Entry> code;
+        private final List<Entry> header;
+        /**
+         * The header split up into fields, <code>null</code> if the name of a field has a variable.
+         */
+        private final List<HeaderLine> headerLines;
+        /**
+         * The header if it has no variables, otherwise <code>null</code>.
+         */
+        private final String headerText;
+        /**
+         * The fields of the header if it has no variables, otherwise <code>null</code>.
+         */
+        private final HeaderFields headerFields;
+        private final List<Entry> content;
+        /**
+         * Name of the character set in the header, <code>null</code> if the header has variables.
+         */
+        private final String charsetName;
+        /**
+         * The character set the static text of the content is encoded with, <code>null</code> if the content isn't encoded in advance.
+         */
+        private final Charset charset;
+        /**
+         * The prepared response if the template has no variables, otherwise <code>null</code>.
+         */
+        private final StaticResponse.Prepared prepared;
+
+        private Compiled(List<Entry> code, List<Entry> header, List<HeaderLine> headerLines, String headerText, HeaderFields headerFields, List<Entry> content, String charsetName, Charset charset, StaticResponse.Prepared prepared) {
+            this.code = code;
+            this.header = header;
+            this.headerLines = headerLines;
+            this.headerText = headerText;
+            this.headerFields = headerFields;
+            this.content = content;
+            this.charsetName = charsetName;
+            this.charset = charset;
+            this.prepared = prepared;
+        }
+    }
+
+    /**
+     * A field of a compiled header.
+     */
+    private static final class HeaderLine {
+        /**
+         * The name of the field.
+         */
+        private final String name;
+        /**
+         * The value of the field, split up into static text and variables.
+         */
+        private final List<Entry> value;
+
+        private HeaderLine(String name, List<Entry> value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A group of a pattern a variable is bound to.
+     */
+    private static final class Binding {
+        /**
+         * The key of the Matcher for the pattern.
+         */
+        private final String key;
+        /**
+         * The pattern.
+         */
+        private final Pattern pattern;
+        /**
+         * The index of the group in the pattern.
+         */
+        private final int group;
+
+        private Binding(String key, Pattern pattern, int group) {
+            this.key = key;
+            this.pattern = pattern;
+            this.group = group;
+        }
+    }
+
     /**
      * An Entry is either static text or a variable.
      * When the variable is set then the text is the key used to find the value of the variable.
      */
-    private class Entry {
+    private static class Entry {
         /**
          * Whether this Entry is a variable.
          */
@@ -406,15 +773,87 @@ public class ResponseTemplate extends Response {
          * Either static text or the key for the variable.
          */
         private String text;
+        /**
+         * The name (or index) of the group for the variable, without the field.
+         */
+        private String name;
+        /**
+         * The groups this variable is bound to, tried in order, or <code>null</code> if the variable must be looked up when a response is created.
+         * Environment variables are turned into static text instead.
+         */
+        private Binding[] bindings;
+        /**
+         * The static text encoded with the character set of the response, <code>null</code> if not encoded in advance.
+         */
+        private byte[] encoded;
+
+        /**
+         * Create static text that is already unescaped.
+         * @param text The static text.
+         */
+        private Entry(String text) {
+            this.text = text;
+        }
 
         /**
-         * Default constructor, sets both values.
+         * Default constructor, sets both values and binds a variable to the groups of the patterns.
          * @param variable Whether the entry is a variable.
          * @param text Static text of key for variable.
+         * @param patterns The patterns the variables are matched with, <code>null</code> if not known.
+         * @param groups The group indexes by name for each of the patterns.
          */
-        public Entry(boolean variable, String text) {
+        public Entry(boolean variable, String text, Map<String, Pattern> patterns, Map<String, Map<String, Integer>> groups) {
             this.variable = variable;
             this.text = variable ? text : text.replace("$$", "$");
+            if (!variable)
+                return;
+            int colonIndex = text.indexOf(':');
+            String key = colonIndex > 0 ? text.substring(0, colonIndex).toUpperCase() : null;
+            if ("ENV".equals(key)) {
+                String name = text.substring(colonIndex + 1);
+                this.variable = false;
+                this.text = System.getenv(name);
+                if (this.text == null) {
+                    log.info("Environment variable \"{}\" is not set. Variable will be replaced by text \"null\"", name);
+                    this.text = "null";
+                }
+                return;
+            }
+            name = colonIndex > 0 ? text.substring(colonIndex + 1) : text;
+            if (patterns == null)
+                return;
+            List<Binding> candidates = new ArrayList<>();
+            for (Map.Entry<String, Pattern> pattern : key == null ? patterns.entrySet() : Collections.singletonMap(key, patterns.get(key)).entrySet()) {
+                if (pattern.getValue() == null)
+                    continue;
+                Map<String, Integer> indexes = groups.get(pattern.getKey());
+                if (indexes == null)
+                    return; // groups couldn't be counted, look up the variable when a response is created
+                Integer group = indexes.get(name);
+                if (group == null && name.matches("\\d{1,9}") && Integer.parseInt(name) <= indexes.get(""))
+                    group = Integer.parseInt(name);
+                if (group != null)
+                    candidates.add(new Binding(pattern.getKey(), pattern.getValue(), group));
+            }
+            bindings = candidates.toArray(new Binding[0]);
+        }
+
+        /**
+         * Get the value of a bound variable.
+         * @param variables The Matchers to get the value from.
+         * @return The value from the first group bound to that participated in the match, or <code>null</code> if none did.
+         */
+        private String resolve(Map<String, Matcher> variables) {
+            for (Binding binding : bindings) {
+                Matcher matcher = variables.get(binding.key);
+                if (matcher == null)
+                    continue;
+                /* a Matcher for another pattern than the template was compiled with, e.g. after the recording is edited */
+                String value = matcher.pattern() == binding.pattern ? matcher.group(binding.group) : getVariable(matcher, name);
+                if (value != null)
+                    return value;
+            }
+            return null;
         }
 
         /**
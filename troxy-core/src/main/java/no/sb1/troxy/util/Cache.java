@@ -1,14 +1,27 @@
 package no.sb1.troxy.util;
 
+import no.sb1.troxy.common.Config;
 import no.sb1.troxy.http.common.Request;
+import no.sb1.troxy.record.v3.ContentPredicate;
+import no.sb1.troxy.record.v3.HeaderPredicate;
 import no.sb1.troxy.record.v3.Recording;
+import no.sb1.troxy.record.v3.RequestPattern;
+import no.sb1.troxy.record.v3.ResponseTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * The Cache contains all the loaded/activated Recordings.
@@ -22,6 +35,9 @@ import java.util.regex.Pattern;
  *       \                     \
  *        \- ...                \- ...
  * </code>
+ * The tree is never modified after it has been published to readers.
+ * Changes are made to a copy of the affected branches, and the new tree is published by swapping the reference to the root.
+ * This way a search never needs to lock and never sees a partially built tree, even while recordings are being (re)loaded.
  */
 public class Cache {
     /**
@@ -121,7 +137,21 @@ public class Cache {
 
     public static class Result {
         private Recording recording;
-        private Map<String, Matcher> variables;
+        private volatile Map<String, Matcher> variables;
+        private long[] rank;
+        private long score;
+        /**
+         * The branches leading to the Recording by field, <code>null</code> if the variables were given.
+         */
+        private Node[] path;
+        /**
+         * The values of the request by field, matched with the branches leading to the Recording.
+         */
+        private String[] values;
+        /**
+         * The values of the request by path, matched with the content conditions leading to the Recording, <code>null</code> if there are none.
+         */
+        private Map<String, String> contentValues;
 
         public Result(Recording recording, Map<String, Matcher> variables) {
             this.recording = recording;
@@ -132,8 +162,34 @@ public class Cache {
             return recording;
         }
 
+        /**
+         * Get the Matchers for the fields and content conditions, for inserting values from the request in the response.
+         * For entries found in the Cache the Matchers are created the first time this is called, so only the entry that is used pays for them.
+         *
+         * @return The Matchers by field name, and by upper case path for content conditions.
+         */
         public Map<String, Matcher> getVariables() {
-            return variables;
+            Map<String, Matcher> current = variables;
+            if (current == null) {
+                current = new HashMap<>();
+                for (Node node : path) {
+                    if (node == null)
+                        continue;
+                    if (node.contentChecks != null) {
+                        for (ContentCheck contentCheck : node.contentChecks) {
+                            String value = contentValues.get(contentCheck.path);
+                            Matcher m = value == null ? null : contentCheck.pattern.matcher(value);
+                            if (m != null && m.find())
+                                current.put(contentCheck.variable, m);
+                        }
+                    }
+                    Matcher m = node.pattern.matcher(values[node.field.ordinal()]);
+                    if (m.find())
+                        current.put(node.field.toString(), m);
+                }
+                variables = current;
+            }
+            return current;
         }
     }
 
@@ -142,40 +198,131 @@ public class Cache {
      */
     private static final Logger log = LoggerFactory.getLogger(Cache.class);
     /**
-     * The root of the cache.
+     * Configuration key for how many threads to use when loading recordings.
+     */
+    private static final String KEY_LOAD_PARALLELISM = "troxy.load.parallelism";
+    /**
+     * Configuration key for how many search results to remember, 0 disables the match cache.
+     */
+    private static final String KEY_MATCH_CACHE_SIZE = "troxy.match_cache.size";
+    /**
+     * Configuration key for the max amount of characters in the header and content of a request for its search result to be remembered.
+     */
+    private static final String KEY_MATCH_CACHE_MAX_REQUEST_SIZE = "troxy.match_cache.max_request_size";
+    /**
+     * Default for the max amount of characters in the header and content of a request for its search result to be remembered.
+     */
+    public static final int DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE = 8192;
+    /**
+     * Configuration key for whether the levels of the tree are ordered by how selective the fields are.
+     */
+    private static final String KEY_ADAPTIVE_FIELD_ORDER = "troxy.adaptive_field_order";
+    /**
+     * Configuration key for how many times a regular expression may read each character of a value on average, 0 disables the limit.
+     */
+    private static final String KEY_REGEX_BUDGET = "troxy.regex.budget";
+    /**
+     * Default for how many times a regular expression may read each character of a value on average.
+     */
+    private static final long DEFAULT_REGEX_BUDGET = 100;
+    /**
+     * Configuration key for whether requests are matched with the first matching recording rather than all matching recordings.
+     */
+    private static final String KEY_FIRST_MATCH = "troxy.first_match";
+    /**
+     * Configuration key for whether the recordings are checked for requests matching several recordings when they're loaded.
+     */
+    private static final String KEY_AMBIGUITY_ANALYSIS = "troxy.ambiguity_analysis";
+    /**
+     * Max amount of ambiguous pairs logged after an analysis, all of them are listed in the report.
+     */
+    private static final int MAX_LOGGED_AMBIGUOUS_PAIRS = 10;
+    /**
+     * How many first match searches there are for every search checking in the background that the request matches only one recording.
+     */
+    private static final int AMBIGUITY_CHECK_INTERVAL = 100;
+    /**
+     * How many times a branch is searched for the first match before its regex branches are ordered by how often they have led to an entry again.
+     */
+    private static final int REORDER_INTERVAL = 1024;
+    /**
+     * Amount of fields, including Field.NONE.
+     */
+    private static final int FIELD_COUNT = Field.values().length;
+    /**
+     * Reusable state for searching, one for each thread.
+     */
+    private static final ThreadLocal<SearchContext> SEARCH_CONTEXT = ThreadLocal.withInitial(SearchContext::new);
+    /**
+     * The default order of the levels in the tree.
+     * Results are always listed in the order they would be found in a tree with this order.
+     */
+    private static final Field[] DEFAULT_FIELD_ORDER = {Field.PROTOCOL, Field.HOST, Field.PORT, Field.PATH, Field.QUERY, Field.METHOD, Field.HEADER, Field.CONTENT};
+    /**
+     * Sorts results in the order they would be found in a tree with the default field order.
+     */
+    private static final Comparator<Result> RANK_COMPARATOR = (r1, r2) -> {
+        for (int i = 0; i < r1.rank.length; ++i) {
+            int result = Long.compare(r1.rank[i], r2.rank[i]);
+            if (result != 0)
+                return result;
+        }
+        return 0;
+    };
+    /**
+     * The root of the currently published tree.
+     */
+    private final AtomicReference<Node> tree = new AtomicReference<>(new Node(null, Field.NONE, null));
+    /**
+     * The generation of the last published tree, increased every time the tree is replaced.
+     */
+    private long generation;
+    /**
+     * Search results for recent requests, <code>null</code> when disabled.
      */
-    private final Cache root; // = new Cache(Field.NONE, null);
+    private volatile MatchCache matchCache;
     /**
-     * The field of this level in the cache.
+     * Whether the levels of the tree are ordered by how selective the fields are when the tree is built.
      */
-    private final Field field;
+    private volatile boolean adaptiveFieldOrder = true;
     /**
-     * The regular expression for this field and branch.
+     * Limits the work of the regular expressions when searching, and remembers the regular expressions exceeding the limit.
      */
-    private final Pattern pattern;
+    private final RegexBudget regexBudget = new RegexBudget(DEFAULT_REGEX_BUDGET);
     /**
-     * All the branches forking out from this branch.
+     * Whether requests are matched with the first matching recording rather than all matching recordings.
      */
-    private List<Cache> children = new ArrayList<>();
+    private volatile boolean firstMatch;
     /**
-     * At the end of a branch a single Recording may exist.
+     * Amount of first match searches, used for choosing which searches to check for ambiguity.
      */
-    private Recording recording;
+    private final AtomicLong firstMatchSearches = new AtomicLong();
+    /**
+     * Amount of first match searches checked for ambiguity, and how many of them matched more than one recording.
+     */
+    private final LongAdder ambiguityChecks = new LongAdder();
+    private final LongAdder ambiguousRequests = new LongAdder();
+    /**
+     * Whether the recordings are checked for requests matching several recordings when they're loaded.
+     */
+    private volatile boolean ambiguityAnalysis;
+    /**
+     * The report of the last ambiguity analysis, <code>null</code> if the recordings haven't been analyzed.
+     */
+    private volatile Map<String, Object> ambiguityReport;
+    /**
+     * The ranks of the Recordings in the tree, <code>null</code> when the tree has the default field order.
+     */
+    private Ranks ranks;
 
     public static Cache createCacheRoot() {
-        return new Cache(null, Field.NONE, null);
+        return new Cache();
     }
 
     /**
-     * Private constructor setting field & pattern.
-     *
-     * @param field   The field for this branch.
-     * @param pattern The pattern for this branch.
+     * Private constructor, use createCacheRoot() to create a Cache.
      */
-    private Cache(Cache root, Field field, Pattern pattern) {
-        this.root = root;
-        this.field = field;
-        this.pattern = pattern;
+    private Cache() {
     }
 
     /**
@@ -184,210 +331,1919 @@ public class Cache {
      * @param paths Files to load.
      */
     public static void loadRecordings(final Cache root, final TroxyFileHandler troxyFileHandler, final Set<String> paths) {
-        if (root.root != null) {
-            throw new IllegalStateException("Trying to add records to non root cache node");
-        }
-
-        for (String path : paths) {
-            if (path.endsWith(".troxy") || path.endsWith(".xml")) {
-                try {
-                    Recording recording = troxyFileHandler.loadRecording(path);
-                    if (recording != null)
-                        root.addRecoding(recording);
-                } catch (Exception e) {
-                    log.warn("Error reading file: {}", path, e);
-                }
-            } else if (!troxyFileHandler.isDirectory(path)) {
-                log.info("Skipping file (unknown type): {}", path);
-            }
-        }
+        loadRecordings(root, troxyFileHandler, paths, 1);
+    }
+
+    /**
+     * Load Recordings into Cache, reading the files in parallel.
+     *
+     * @param paths       Files to load.
+     * @param parallelism How many threads to use when reading the files.
+     */
+    public static void loadRecordings(final Cache root, final TroxyFileHandler troxyFileHandler, final Set<String> paths, int parallelism) {
+        root.loadRecordings(troxyFileHandler, paths, false, parallelism, false);
     }
 
     public static void loadRecordingsWithPaths(final Cache root, final TroxyFileHandler troxyFileHandler, final Set<String> paths) {
-        if (root.root != null) {
-            throw new IllegalStateException("Trying to add records to non root cache node");
-        }
-
-        for (String path : paths) {
-            if (path.endsWith(".troxy") || path.endsWith(".xml")) {
-                try {
-                    Recording recording = troxyFileHandler.loadRecording(new File(path).getParent(), new File(path).getName());
-                    if (recording != null)
-                        root.addRecoding(recording);
-                } catch (Exception e) {
-                    log.warn("Error reading file: {}", path, e);
-                }
-            } else if (!troxyFileHandler.isDirectory(path)) {
-                log.info("Skipping file (unknown type): {}", path);
-            }
-        }
+        root.loadRecordings(troxyFileHandler, paths, true, 1, false);
     }
 
+    /**
+     * Replace all Recordings in the Cache with the Recordings in the given files.
+     * The new tree is built before it replaces the current tree, requests will be matched against the current tree until then.
+     *
+     * @param paths Files to load.
+     */
+    public static void reloadRecordings(final Cache root, final TroxyFileHandler troxyFileHandler, final Set<String> paths) {
+        reloadRecordings(root, troxyFileHandler, paths, 1);
+    }
 
     /**
-     * Add a Recording to the Cache.
+     * Replace all Recordings in the Cache with the Recordings in the given files, reading the files in parallel.
      *
-     * @param recording The Recording to add.
+     * @param paths       Files to load.
+     * @param parallelism How many threads to use when reading the files.
      */
-    public void addRecoding(Recording recording) {
-        log.info("Adding recording to Cache: {}", recording);
-        Queue<Field> queue = new ArrayDeque<>();
-        queue.add(Field.PROTOCOL);
-        queue.add(Field.HOST);
-        queue.add(Field.PORT);
-        queue.add(Field.PATH);
-        queue.add(Field.QUERY);
-        queue.add(Field.METHOD);
-        queue.add(Field.HEADER);
-        queue.add(Field.CONTENT);
-
-        Cache root = this.root == null ? this : this.root;
-        Cache current = root;
-        while (!queue.isEmpty()) {
-            Field f = queue.poll();
-            String value = f.getValue(recording.getRequestPattern());
-            boolean found = false;
-            log.debug("Looking for Cache branch with field \"{}\" and pattern: {}", f, value);
-            for (Cache c : current.children) {
-                if (value.equals(c.pattern.pattern())) {
-                    log.debug("Branch found");
-                    current = c;
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                log.debug("Branch not found, creating one");
-                Cache tmp = new Cache(root, f, Pattern.compile(value, Pattern.DOTALL));
-                current.children.add(tmp);
-                current = tmp;
-            }
-        }
-        if (current.recording == null) {
-            /* new Recording  */
-            log.debug("Recording added to cache");
-        } else {
-            /* overwriting existing Recording, hmm */
-            log.info("Overwriting existing recording in cache");
+    public static void reloadRecordings(final Cache root, final TroxyFileHandler troxyFileHandler, final Set<String> paths, int parallelism) {
+        root.loadRecordings(troxyFileHandler, paths, false, parallelism, true);
+    }
+
+    /**
+     * Get how many threads to use when loading recordings from the configuration.
+     *
+     * @param config The configuration.
+     * @return How many threads to use when loading recordings, defaults to the number of available processors.
+     */
+    public static int parseLoadParallelism(Config config) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        try {
+            return Math.max(1, Integer.parseInt(config.getValue(KEY_LOAD_PARALLELISM, "" + processors).trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse configuration value for {}, falling back to {}", KEY_LOAD_PARALLELISM, processors);
+            return processors;
         }
-        current.recording = recording;
     }
 
     /**
-     * Clear entire cache.
+     * Get how many search results to remember from the configuration.
+     *
+     * @param config The configuration.
+     * @return How many search results to remember, defaults to 0 (disabled).
      */
-    public void clear() {
-        /* we'll rely on the garbage collector and just create a new root */
-        log.info("Clearing Cache");
+    public static int parseMatchCacheSize(Config config) {
+        try {
+            return Math.max(0, Integer.parseInt(config.getValue(KEY_MATCH_CACHE_SIZE, "0").trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse configuration value for {}, disabling match cache", KEY_MATCH_CACHE_SIZE);
+            return 0;
+        }
+    }
 
-        if (root != null) {
-            throw new IllegalStateException("Trying to clear records to non root cache node");
+    /**
+     * Get the max amount of characters in the header and content of a request for its search result to be remembered from the configuration.
+     *
+     * @param config The configuration.
+     * @return The max amount of characters in the header and content of a request, defaults to {@link #DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE}.
+     */
+    public static int parseMatchCacheMaxRequestSize(Config config) {
+        try {
+            return Math.max(0, Integer.parseInt(config.getValue(KEY_MATCH_CACHE_MAX_REQUEST_SIZE, "" + DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE).trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse configuration value for {}, using default value: {}", KEY_MATCH_CACHE_MAX_REQUEST_SIZE, DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE);
+            return DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE;
         }
+    }
 
-        children.clear();
+    /**
+     * Set how many search results to remember, for requests up to the default size.
+     *
+     * @param size How many search results to remember, 0 disables the match cache.
+     * @see #setMatchCacheSize(int, int)
+     */
+    public void setMatchCacheSize(int size) {
+        setMatchCacheSize(size, DEFAULT_MATCH_CACHE_MAX_REQUEST_SIZE);
     }
 
     /**
-     * Search cache for entries matching given Request.
+     * Set how many search results to remember.
+     * Requests identical to a remembered request get the remembered result without searching the tree, until the tree is modified.
+     * Requests with a larger header and content than the max request size are always searched, so the remembered requests don't use too much memory.
+     * Changing the size discards all remembered results.
      *
-     * @param request The Request to search for.
-     * @return A list of entries matching the Request.
+     * @param size           How many search results to remember, 0 disables the match cache.
+     * @param maxRequestSize Max amount of characters in the header and content of a request for its search result to be remembered.
      */
-    public List<Cache.Result> searchCache(Request request) {
+    public synchronized void setMatchCacheSize(int size, int maxRequestSize) {
+        MatchCache current = matchCache;
+        if (current != null && current.getCapacity() == size && current.getMaxRequestSize() == maxRequestSize)
+            return;
+        log.info("Setting match cache size to {}, for requests up to {} characters", size, maxRequestSize);
+        matchCache = size > 0 ? new MatchCache(size, maxRequestSize) : null;
+    }
+
+    /**
+     * Get whether the levels of the tree should be ordered by how selective the fields are from the configuration.
+     *
+     * @param config The configuration.
+     * @return Whether the levels of the tree should be ordered by how selective the fields are, defaults to <code>true</code>.
+     */
+    public static boolean parseAdaptiveFieldOrder(Config config) {
+        return Boolean.parseBoolean(config.getValue(KEY_ADAPTIVE_FIELD_ORDER, "true").trim());
+    }
 
-        if (root != null) {
-            throw new IllegalStateException("Trying to search records to non root cache node");
+    /**
+     * Set whether the levels of the tree should be ordered by how selective the fields are.
+     * The order is chosen when the tree is built from an empty tree, i.e. when recordings are loaded or reloaded, and is kept when recordings are added or removed.
+     *
+     * @param adaptiveFieldOrder Whether the levels of the tree should be ordered by how selective the fields are.
+     */
+    public void setAdaptiveFieldOrder(boolean adaptiveFieldOrder) {
+        this.adaptiveFieldOrder = adaptiveFieldOrder;
+    }
+
+    /**
+     * Get how many times a regular expression may read each character of a value on average from the configuration.
+     *
+     * @param config The configuration.
+     * @return How many times a regular expression may read each character of a value on average, 0 if unlimited.
+     */
+    public static long parseRegexBudget(Config config) {
+        try {
+            return Math.max(0, Long.parseLong(config.getValue(KEY_REGEX_BUDGET, "" + DEFAULT_REGEX_BUDGET).trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse configuration value for {}, falling back to {}", KEY_REGEX_BUDGET, DEFAULT_REGEX_BUDGET);
+            return DEFAULT_REGEX_BUDGET;
         }
+    }
 
-        log.info("Searching Cache for Recording matching Request: {}", request);
-        return searchCache(new ArrayList<>(), new HashMap<>(), request);
+    /**
+     * Set how many times a regular expression may read each character of a value on average when searching.
+     * A regular expression exceeding this budget is treated as not matching, and is listed in {@link #getSlowPatterns()}.
+     *
+     * @param readsPerChar How many times a regular expression may read each character of a value on average, 0 for unlimited.
+     */
+    public void setRegexBudget(long readsPerChar) {
+        if (regexBudget.getReadsPerChar() != readsPerChar)
+            log.info("Setting regular expression budget to {} reads per character", readsPerChar);
+        regexBudget.setReadsPerChar(readsPerChar);
     }
 
     /**
-     * Get all the Recordings in the cache.
+     * Get whether requests should be matched with the first matching recording from the configuration.
      *
-     * @return All the Recordings in the cache.
+     * @param config The configuration.
+     * @return Whether requests should be matched with the first matching recording, defaults to <code>false</code>.
      */
-    public Set<Recording> getRecordings() {
+    public static boolean parseFirstMatch(Config config) {
+        return Boolean.parseBoolean(config.getValue(KEY_FIRST_MATCH, "false").trim());
+    }
 
-        if (root != null) {
-            throw new IllegalStateException("Trying to get all records to non root cache node");
-        }
+    /**
+     * Set whether requests should be matched with the first matching recording rather than all matching recordings.
+     * This is faster, but a request matching several recordings is no longer detected when it's handled, see {@link #searchFirstMatch(Request)}.
+     *
+     * @param firstMatch Whether requests should be matched with the first matching recording.
+     */
+    public void setFirstMatch(boolean firstMatch) {
+        if (this.firstMatch != firstMatch)
+            log.info("Setting first match search to {}", firstMatch);
+        this.firstMatch = firstMatch;
+    }
 
-        Set<Recording> recordings = new HashSet<>();
-        List<Cache> queue = new ArrayList<>();
-        queue.add(this);
-        while (!queue.isEmpty()) {
-            Cache current = queue.remove(0);
-            queue.addAll(current.children);
-            if (current.recording != null)
-                recordings.add(current.recording);
-        }
-        return recordings;
+    /**
+     * Get whether requests should be matched with the first matching recording rather than all matching recordings.
+     *
+     * @return Whether requests should be matched with the first matching recording.
+     */
+    public boolean isFirstMatch() {
+        return firstMatch;
     }
 
-    public Map<String, Integer> getRequestCounterPerPath(){
-        Map<String, Integer> totalRequests = new HashMap<>();
-        for (Recording recording : getRecordings()) {
-            String path = getTrimmedPath(recording);
-            int count = totalRequests.getOrDefault(path, 0);
-            totalRequests.put(path, count + recording.getResponseCounterTotal());
+    /**
+     * Get whether the recordings should be checked for requests matching several recordings when they're loaded from the configuration.
+     *
+     * @param config The configuration.
+     * @return Whether the recordings should be analyzed when they're loaded, defaults to <code>false</code>.
+     */
+    public static boolean parseAmbiguityAnalysis(Config config) {
+        return Boolean.parseBoolean(config.getValue(KEY_AMBIGUITY_ANALYSIS, "false").trim());
+    }
+
+    /**
+     * Set whether the recordings should be checked for requests matching several recordings when they're loaded.
+     * The analysis runs in the background after the recordings are loaded, see {@link #analyzeAmbiguity()}.
+     *
+     * @param ambiguityAnalysis Whether the recordings should be analyzed when they're loaded.
+     */
+    public void setAmbiguityAnalysis(boolean ambiguityAnalysis) {
+        this.ambiguityAnalysis = ambiguityAnalysis;
+    }
+
+    /**
+     * Get statistics for the first match searches.
+     *
+     * @return Amount of first match searches, how many of them were checked for ambiguity and how many of those matched more than one recording.
+     */
+    public Map<String, Long> getFirstMatchStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("searches", firstMatchSearches.get());
+        statistics.put("ambiguityChecks", ambiguityChecks.sum());
+        statistics.put("ambiguous", ambiguousRequests.sum());
+        return statistics;
+    }
+
+    /**
+     * Get the budget limiting the work of the regular expressions, for matching regular expressions outside the Cache the same way.
+     *
+     * @return The budget limiting the work of the regular expressions.
+     */
+    public RegexBudget getRegexBudget() {
+        return regexBudget;
+    }
+
+    /**
+     * Get the regular expressions that exceeded the budget when searching, the most frequent first.
+     *
+     * @return Field, pattern, recordings, count and last time (millis since epoch) for each regular expression that exceeded the budget.
+     */
+    public List<Map<String, Object>> getSlowPatterns() {
+        return regexBudget.getSlowPatterns();
+    }
+
+    /**
+     * Get the shape of the tree and the branches that are evaluated the most and take the most time, to find the Recordings to optimize.
+     * The counters of a branch are kept when the tree is modified, as long as the branch remains in the tree.
+     *
+     * @param limit How many branches to list as the hottest and the slowest.
+     * @return Statistics for the tree, each level of the tree, and the hottest and slowest branches.
+     */
+    public Map<String, Object> getProfile(int limit) {
+        Node root = tree.get();
+        List<Node> nodes = new ArrayList<>();
+        List<Map<String, Object>> levels = new ArrayList<>();
+        List<Node> level = Collections.singletonList(root);
+        for (int depth = 0; depth < root.order.length && !level.isEmpty(); ++depth) {
+            List<Node> next = new ArrayList<>();
+            int maxFanOut = 0;
+            for (Node node : level) {
+                next.addAll(node.children);
+                maxFanOut = Math.max(maxFanOut, node.children.size());
+            }
+            if (next.isEmpty())
+                break;
+            int literal = 0;
+            int trivial = 0;
+            int conditions = 0;
+            for (Node node : next) {
+                if (node.literal != null)
+                    ++literal;
+                else if (node.matcher.isTrivial())
+                    ++trivial;
+                if (node.headerChecks != null || node.contentChecks != null)
+                    ++conditions;
+            }
+            Map<String, Object> statistics = new LinkedHashMap<>();
+            statistics.put("field", root.order[depth].name());
+            statistics.put("nodes", next.size());
+            statistics.put("literal", literal);
+            statistics.put("trivial", trivial);
+            statistics.put("regex", next.size() - literal - trivial);
+            statistics.put("conditions", conditions);
+            statistics.put("averageFanOut", (double) next.size() / level.size());
+            statistics.put("maxFanOut", maxFanOut);
+            levels.add(statistics);
+            nodes.addAll(next);
+            level = next;
         }
-        return totalRequests;
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("generation", root.generation);
+        profile.put("totalNodes", nodes.size());
+        profile.put("recordings", nodes.stream().filter(node -> node.recording != null).count());
+        profile.put("depth", levels.size());
+        profile.put("levels", levels);
+        profile.put("hottest", nodes.stream()
+                .sorted(Comparator.comparingLong((Node node) -> node.stats.evaluations.sum()).reversed())
+                .limit(limit).map(Node::profile).collect(Collectors.toList()));
+        profile.put("slowest", nodes.stream()
+                .sorted(Comparator.comparingLong((Node node) -> node.stats.nanos.sum()).reversed())
+                .limit(limit).map(Node::profile).collect(Collectors.toList()));
+        return profile;
     }
 
-    public void resetTotalStatisticCounter(){
-        getRecordings()
-                .forEach(Recording::resetResponseCounterTotal);
+    /**
+     * Get the order of the levels in the tree.
+     *
+     * @return The fields of the levels in the tree, from the root and down.
+     */
+    public List<String> getFieldOrder() {
+        return Arrays.stream(tree.get().order).map(Field::name).collect(Collectors.toList());
     }
 
-    public Map<String, Integer> getRequestCounterPerRecording() {
-        Map<String, Integer> totalRequests = new HashMap<>();
-        getRecordings()
-                .forEach(recording -> totalRequests.put(
-                        recording.getFilename(),
-                        recording.getResponseCounterTotal()
-                ));
-        return totalRequests;
+    /**
+     * Get statistics for the match cache.
+     *
+     * @return Capacity, size, hits and misses for the match cache, and the current generation of the tree.
+     */
+    public Map<String, Long> getMatchCacheStatistics() {
+        MatchCache current = matchCache;
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("generation", tree.get().generation);
+        statistics.put("capacity", current == null ? 0L : current.getCapacity());
+        statistics.put("size", current == null ? 0L : current.size());
+        statistics.put("hits", current == null ? 0L : current.getHits());
+        statistics.put("misses", current == null ? 0L : current.getMisses());
+        statistics.put("skipped", current == null ? 0L : current.getSkipped());
+        return statistics;
     }
 
-    private static String getTrimmedPath(Recording recording) {
-        String path = recording.getRequestPattern().getPath();
+    /**
+     * Read Recordings from files and add them to the Cache.
+     * The files are read and the patterns compiled first (in parallel if requested), then the Recordings are added to the tree in one go.
+     *
+     * @param troxyFileHandler The file handler used to read the files.
+     * @param paths            Files to read.
+     * @param withPaths        Whether the paths include the directory of the file.
+     * @param parallelism      How many threads to use when reading the files.
+     * @param replace          Whether to replace all Recordings in the Cache rather than adding to them.
+     */
+    private void loadRecordings(final TroxyFileHandler troxyFileHandler, final Set<String> paths, boolean withPaths, int parallelism, boolean replace) {
+        long start = System.nanoTime();
+        Map<String, FieldMatcher> patterns = new ConcurrentHashMap<>();
+        List<Recording> recordings;
+        if (parallelism > 1 && paths.size() > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                recordings = pool.submit(() -> paths.parallelStream()
+                        .map(path -> readRecording(troxyFileHandler, path, withPaths, patterns))
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList())).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading recordings", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unable to load recordings", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            recordings = new ArrayList<>();
+            for (String path : paths) {
+                Recording recording = readRecording(troxyFileHandler, path, withPaths, patterns);
+                if (recording != null)
+                    recordings.add(recording);
+            }
+        }
+        addRecordings(recordings, patterns, replace);
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        log.info("Loaded {} recordings from {} files in {}ms ({} files/s, {} threads)", recordings.size(), paths.size(), millis, paths.size() * 1000L / millis, parallelism);
+        if (ambiguityAnalysis)
+            ForkJoinPool.commonPool().execute(this::analyzeAmbiguity);
+    }
 
-        if(path.endsWith("$"))
-        {
-            path = path.substring(0, path.length() - 1);
+    /**
+     * Read a Recording from file and compile its patterns.
+     *
+     * @param troxyFileHandler The file handler used to read the file.
+     * @param path             File to read.
+     * @param withPaths        Whether the path include the directory of the file.
+     * @param patterns         Compiled patterns, new patterns in the Recording are added to this map.
+     * @return The Recording, or <code>null</code> if the file isn't a recording or couldn't be read.
+     */
+    private static Recording readRecording(final TroxyFileHandler troxyFileHandler, final String path, boolean withPaths, Map<String, FieldMatcher> patterns) {
+        if (path.endsWith(".troxy") || path.endsWith(".xml")) {
+            try {
+                Recording recording = withPaths ? troxyFileHandler.loadRecording(new File(path).getParent(), new File(path).getName()) : troxyFileHandler.loadRecording(path);
+                if (recording != null) {
+                    RequestPattern requestPattern = recording.getRequestPattern();
+                    for (Field field : Field.values()) {
+                        if (field != Field.NONE)
+                            patterns.computeIfAbsent(branchRegex(field, requestPattern), FieldMatcher::compile);
+                    }
+                    /* compile the regular expressions of the conditions too, so an invalid one only keeps this Recording out of the tree */
+                    for (HeaderPredicate headerPredicate : requestPattern.getHeaderPredicates()) {
+                        if (headerPredicate.isRegex())
+                            patterns.computeIfAbsent(headerPredicate.getValue(), FieldMatcher::compile);
+                    }
+                    for (ContentPredicate contentPredicate : requestPattern.getContentPredicates())
+                        patterns.computeIfAbsent(contentPredicate.getRegex(), FieldMatcher::compile);
+                }
+                return recording;
+            } catch (Exception | StackOverflowError e) {
+                log.warn("Error reading file: {}", path, e);
+            }
+        } else if (!troxyFileHandler.isDirectory(path)) {
+            log.info("Skipping file (unknown type): {}", path);
         }
-        if(path.startsWith("^"))
-        {
-            path = path.substring(1);
+        return null;
+    }
+
+    /**
+     * Add a Recording to the Cache.
+     *
+     * @param recording The Recording to add.
+     */
+    public void addRecoding(Recording recording) {
+        addRecordings(Collections.singletonList(recording), Collections.emptyMap(), false);
+    }
+
+    /**
+     * Add Recordings to the Cache in one go.
+     *
+     * @param recordings The Recordings to add.
+     */
+    public void addRecordings(Collection<Recording> recordings) {
+        addRecordings(recordings, Collections.emptyMap(), false);
+    }
+
+    /**
+     * Add Recordings to a copy of the tree and publish the copy.
+     * Writers are serialized, readers keep using the previous tree until the new tree is published.
+     *
+     * @param recordings The Recordings to add.
+     * @param patterns   Patterns already compiled, patterns not in this map are compiled when needed.
+     * @param replace    Whether to start with an empty tree rather than a copy of the current tree.
+     */
+    private synchronized void addRecordings(Collection<Recording> recordings, Map<String, FieldMatcher> patterns, boolean replace) {
+        Node base = replace ? new Node(null, Field.NONE, null) : tree.get();
+        if (base.children.isEmpty()) {
+            /* building from an empty tree, choose the field order */
+            Field[] order = chooseFieldOrder(recordings, patterns);
+            ranks = order == DEFAULT_FIELD_ORDER ? null : new Ranks();
+            if (order != DEFAULT_FIELD_ORDER)
+                log.info("Ordering Cache levels by selectivity: {}", Arrays.toString(order));
+            base = new Node(null, Field.NONE, null);
+            base.order = order;
         }
-        return path;
+        Builder builder = new Builder(base, patterns, ranks);
+        for (Recording recording : recordings)
+            builder.add(recording);
+        publish(builder.build());
     }
 
     /**
-     * Helper method for searching the cache for an entry matching the Request.
-     * Variables discovered while searching the cache is passed on.
+     * Choose the order of the levels in the tree.
+     * The more distinct patterns a field has, the earlier its level, as each level then narrows down the remaining branches more.
+     * Only patterns that are found without evaluating them against the value are counted, i.e. literals, regular expressions with a literal prefix
+     * and header or content conditions, as a level where every regular expression must be evaluated is expensive no matter how many there are.
+     * Fields with the same count keep their default order.
      *
-     * @param results   The found entries matching the Request.
-     * @param variables The keys and values discovered when searching cache.
-     * @param request   The Request to search for.
-     * @return A list of entries matching the Request.
+     * @param recordings The Recordings the tree is built from.
+     * @param patterns   Patterns already compiled.
+     * @return The order of the levels in the tree.
      */
-    private List<Cache.Result> searchCache(List<Cache.Result> results, Map<String, Matcher> variables, Request request) {
-        if (root != null) {
-            /* need to match pattern with current field, except for root where pattern is null */
-            Matcher matcher = pattern.matcher(field.getValue(request));
-            if (!matcher.find()) {
-                log.debug("Field {}: Pattern «{}» did not match value «{}»", field, pattern.pattern(), field.getValue(request));
-                return results;
+    private Field[] chooseFieldOrder(Collection<Recording> recordings, Map<String, FieldMatcher> patterns) {
+        if (!adaptiveFieldOrder || recordings.size() < 2)
+            return DEFAULT_FIELD_ORDER;
+        Map<Field, Integer> selectivity = new EnumMap<>(Field.class);
+        for (Field field : DEFAULT_FIELD_ORDER) {
+            Map<String, RequestPattern> distinct = new HashMap<>();
+            for (Recording recording : recordings)
+                distinct.putIfAbsent(branchKey(field, recording.getRequestPattern()), recording.getRequestPattern());
+            int count = 0;
+            for (RequestPattern requestPattern : distinct.values()) {
+                String regex = branchRegex(field, requestPattern);
+                FieldMatcher matcher = patterns.get(regex);
+                boolean conditions = !regex.equals(branchKey(field, requestPattern));
+                if (conditions || unescapeLiteral(regex) != null || !PrefixAutomaton.requiredPrefix((matcher != null ? matcher : FieldMatcher.compile(regex)).getPattern()).isEmpty())
+                    ++count;
             }
-            variables.put(field.toString(), matcher);
+            selectivity.put(field, count);
+        }
+        Field[] order = DEFAULT_FIELD_ORDER.clone();
+        Arrays.sort(order, Comparator.comparing(selectivity::get, Comparator.reverseOrder()));
+        return Arrays.equals(order, DEFAULT_FIELD_ORDER) ? DEFAULT_FIELD_ORDER : order;
+    }
+
+    /**
+     * Remove the Recording with the given filename from the Cache.
+     * Only the branch leading to the Recording is copied, and branches left empty are removed.
+     *
+     * @param filename The filename of the Recording.
+     * @return <code>true</code> if the Recording was found and removed, <code>false</code> otherwise.
+     */
+    public synchronized boolean removeRecording(String filename) {
+        Builder builder = new Builder(tree.get(), Collections.emptyMap(), ranks);
+        if (!builder.remove(filename))
+            return false;
+        publish(builder.build());
+        return true;
+    }
+
+    /**
+     * Replace the loaded Recording that has the same filename as the given Recording, or add the Recording if it's not loaded.
+     * Only the branches leading to the old and new Recording are copied.
+     *
+     * @param recording The Recording replacing the loaded Recording.
+     */
+    public synchronized void replaceRecording(Recording recording) {
+        Builder builder = new Builder(tree.get(), Collections.emptyMap(), ranks);
+        builder.remove(recording.getFilename());
+        builder.add(recording);
+        publish(builder.build());
+    }
+
+    /**
+     * Clear entire cache.
+     */
+    public synchronized void clear() {
+        /* we'll rely on the garbage collector and just create a new root */
+        log.info("Clearing Cache");
+        ranks = null;
+        publish(new Node(null, Field.NONE, null));
+    }
+
+    /**
+     * Publish a new tree, replacing the current tree.
+     * The tree is given the next generation, which invalidates all results in the match cache.
+     * Must be called while holding the lock on this Cache.
+     *
+     * @param root The root of the new tree.
+     */
+    private void publish(Node root) {
+        root.generation = ++generation;
+        tree.set(root);
+        MatchCache current = matchCache;
+        if (current != null)
+            current.clear();
+    }
+
+    /**
+     * Search cache for entries matching given Request.
+     *
+     * @param request The Request to search for.
+     * @return A list of entries matching the Request.
+     */
+    public List<Cache.Result> searchCache(Request request) {
+        log.info("Searching Cache for Recording matching Request: {}", request);
+        Node root = tree.get();
+        MatchCache current = matchCache;
+        if (current == null || !current.accepts(request))
+            return search(root, request);
+        MatchCache.Fingerprint fingerprint = new MatchCache.Fingerprint(request);
+        List<Cache.Result> results = current.get(fingerprint, root.generation);
+        if (results != null) {
+            log.info("Found {} matching Recordings in match cache", results.size());
+            return results;
+        }
+        results = search(root, request);
+        current.put(fingerprint, root.generation, results);
+        return results;
+    }
+
+    /**
+     * Search a tree for entries matching given Request.
+     * The entries are listed in the order they would be found in a tree with the default field order.
+     *
+     * @param root    The root of the tree.
+     * @param request The Request to search for.
+     * @return A list of entries matching the Request.
+     */
+    private List<Cache.Result> search(Node root, Request request) {
+        SearchContext context = acquireSearchContext();
+        try {
+            root.searchCache(context, request);
+            List<Cache.Result> results = new ArrayList<>(context.results);
+            if (root.order != DEFAULT_FIELD_ORDER && results.size() > 1)
+                results.sort(RANK_COMPARATOR);
+            return results;
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Get the search context of this thread, ready for a new search.
+     * Must be released when the search is done.
+     *
+     * @return The search context of this thread, or a new search context if this thread is already searching.
+     */
+    private SearchContext acquireSearchContext() {
+        SearchContext context = SEARCH_CONTEXT.get();
+        if (context.inUse)
+            context = new SearchContext();
+        context.inUse = true;
+        context.budget = regexBudget;
+        return context;
+    }
+
+    /**
+     * Search cache for the best entry matching given Request, used when several Recordings may match a request.
+     * The best entry has the highest priority, then the most specific patterns, then comes first in the results of {@link #searchCache(Request)}.
+     * Every branch knows the highest score of the Recordings in it, so branches that can't beat the best entry found so far are skipped.
+     *
+     * @param request The Request to search for.
+     * @return A list with the best entry matching the Request, or an empty list if no entry matches.
+     */
+    public List<Cache.Result> searchBestMatch(Request request) {
+        MatchCache current = matchCache;
+        if (current != null) {
+            /* the match cache holds all entries, pick the best of them */
+            Result best = null;
+            for (Result result : searchCache(request)) {
+                if (best == null || result.score > best.score)
+                    best = result;
+            }
+            return best == null ? new ArrayList<>() : new ArrayList<>(Collections.singletonList(best));
+        }
+        log.info("Searching Cache for best Recording matching Request: {}", request);
+        Node root = tree.get();
+        SearchContext context = acquireSearchContext();
+        try {
+            context.bestOnly = true;
+            context.best.byRank = root.order != DEFAULT_FIELD_ORDER;
+            root.searchCache(context, request);
+            Node best = context.best.node;
+            return best == null ? new ArrayList<>() : new ArrayList<>(Collections.singletonList(best.result(context.best.path, request)));
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Search cache for the first entry matching given Request, stopping as soon as an entry is found.
+     * Meant for recordings known not to overlap, as a request matching several recordings isn't detected and any of them may be returned.
+     * Literal branches are tried before regex branches, and regex branches are tried in order of how often they have led to an entry.
+     * Every {@value #AMBIGUITY_CHECK_INTERVAL}th search is repeated in the background with {@link #searchCache(Request)},
+     * and a warning is logged if the request matches more than one recording.
+     *
+     * @param request The Request to search for.
+     * @return A list with the first entry found matching the Request, or an empty list if no entry matches.
+     */
+    public List<Cache.Result> searchFirstMatch(Request request) {
+        MatchCache current = matchCache;
+        if (current != null) {
+            /* the match cache holds all entries, the first of them is the one searchCache would return */
+            List<Cache.Result> results = searchCache(request);
+            return results.size() > 1 ? new ArrayList<>(results.subList(0, 1)) : results;
+        }
+        log.info("Searching Cache for first Recording matching Request: {}", request);
+        Node root = tree.get();
+        Result result;
+        SearchContext context = acquireSearchContext();
+        try {
+            Node first = root.searchFirst(context, request);
+            result = first == null ? null : first.result(context.path, request);
+        } finally {
+            context.release();
+        }
+        if (firstMatchSearches.incrementAndGet() % AMBIGUITY_CHECK_INTERVAL == 0)
+            checkAmbiguity(root, request);
+        return result == null ? new ArrayList<>() : new ArrayList<>(Collections.singletonList(result));
+    }
+
+    /**
+     * Check in the background whether a request matches more than one recording, logging a warning if it does.
+     * The request is copied, as the original request is still being handled.
+     *
+     * @param root    The root of the tree the request was searched in.
+     * @param request The Request to check.
+     */
+    private void checkAmbiguity(Node root, Request request) {
+        Request copy = copyOf(request);
+        ForkJoinPool.commonPool().execute(() -> {
+            List<Cache.Result> results = search(root, copy);
+            ambiguityChecks.increment();
+            if (results.size() > 1) {
+                ambiguousRequests.increment();
+                log.warn("Request matches multiple recordings, but only the first match is searched for: {}, recordings: {}",
+                        copy, results.stream().map(result -> result.getRecording().getFilename()).collect(Collectors.joining(", ")));
+            }
+        });
+    }
+
+    /**
+     * Find the recordings that match the same requests, by searching for the original request of every recording in parallel.
+     * A recording matched by the original request of another recording is reported as an ambiguous pair, as a request like it
+     * is rejected with "Multiple recordings match request", or answered by either of them in first match mode.
+     * Recordings not matched by their own original request are reported too, as their original request tells little about what they match.
+     * Recordings without an original request are skipped.
+     *
+     * @return The report, also available from {@link #getAmbiguityReport()} until the next analysis.
+     */
+    public Map<String, Object> analyzeAmbiguity() {
+        long start = System.nanoTime();
+        Node root = tree.get();
+        List<Recording> recordings = new ArrayList<>();
+        List<Node> queue = new ArrayList<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Node current = queue.remove(queue.size() - 1);
+            queue.addAll(current.children);
+            if (current.recording != null && current.recording.getRequestPattern().getOriginalRequest() != null)
+                recordings.add(current.recording);
+        }
+        /* the Recordings matching the original request of each Recording, in the same order as the Recordings */
+        List<List<Recording>> matches = recordings.parallelStream()
+                .map(recording -> search(root, copyOf(recording.getRequestPattern().getOriginalRequest())).stream().map(Result::getRecording).collect(Collectors.toList()))
+                .collect(Collectors.toList());
+        List<String> unmatched = new ArrayList<>();
+        Map<List<String>, Set<String>> pairs = new TreeMap<>(Comparator.comparing((List<String> pair) -> pair.get(0)).thenComparing(pair -> pair.get(1)));
+        for (int i = 0; i < recordings.size(); ++i) {
+            Recording recording = recordings.get(i);
+            String filename = String.valueOf(recording.getFilename());
+            if (!matches.get(i).contains(recording))
+                unmatched.add(filename);
+            for (Recording other : matches.get(i)) {
+                if (other == recording)
+                    continue;
+                String otherFilename = String.valueOf(other.getFilename());
+                List<String> pair = filename.compareTo(otherFilename) <= 0 ? Arrays.asList(filename, otherFilename) : Arrays.asList(otherFilename, filename);
+                pairs.computeIfAbsent(pair, key -> new TreeSet<>()).add(filename);
+            }
+        }
+        Collections.sort(unmatched);
+        List<Map<String, Object>> ambiguous = new ArrayList<>();
+        for (Map.Entry<List<String>, Set<String>> pair : pairs.entrySet()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("recordings", pair.getKey());
+            entry.put("matchedBy", new ArrayList<>(pair.getValue()));
+            ambiguous.add(entry);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("generation", root.generation);
+        report.put("analyzed", (long) recordings.size());
+        report.put("millis", millis);
+        report.put("ambiguous", ambiguous);
+        report.put("unmatched", unmatched);
+        ambiguityReport = report;
+        if (ambiguous.isEmpty()) {
+            log.info("Analyzed {} recordings in {}ms, no requests match multiple recordings", recordings.size(), millis);
+        } else {
+            log.warn("Analyzed {} recordings in {}ms, {} pairs of recordings match the same requests: {}{}", recordings.size(), millis, ambiguous.size(),
+                    pairs.keySet().stream().limit(MAX_LOGGED_AMBIGUOUS_PAIRS).map(Object::toString).collect(Collectors.joining(", ")),
+                    ambiguous.size() > MAX_LOGGED_AMBIGUOUS_PAIRS ? ", ..." : "");
+        }
+        return report;
+    }
+
+    /**
+     * Get the report of the last ambiguity analysis, see {@link #analyzeAmbiguity()}.
+     *
+     * @return The report of the last ambiguity analysis, or <code>null</code> if the recordings haven't been analyzed.
+     */
+    public Map<String, Object> getAmbiguityReport() {
+        return ambiguityReport;
+    }
+
+    /**
+     * Copy the fields of a Request that are matched with the Recordings, so the copy can be searched for without touching the original.
+     *
+     * @param request The Request to copy.
+     * @return The copy.
+     */
+    private static Request copyOf(Request request) {
+        Request copy = new Request();
+        copy.setProtocol(request.getProtocol());
+        copy.setHost(request.getHost());
+        copy.setPort(request.getPort());
+        copy.setPath(request.getPath());
+        copy.setQuery(request.getQuery());
+        copy.setMethod(request.getMethod());
+        copy.setHeader(request.getHeader());
+        copy.setContent(request.getContent());
+        return copy;
+    }
+
+    /**
+     * Calculate the score of a Recording, deciding which Recording is used when several Recordings match a request.
+     * The priority of the Recording is in the upper 32 bits, and the specificity in the lower 32 bits.
+     * The specificity is the total length of the patterns and conditions, as longer patterns usually match fewer requests.
+     *
+     * @param recording The Recording.
+     * @return The score of the Recording, higher is better.
+     */
+    static long score(Recording recording) {
+        RequestPattern requestPattern = recording.getRequestPattern();
+        long specificity = 0;
+        for (Field field : DEFAULT_FIELD_ORDER)
+            specificity += branchRegex(field, requestPattern).length();
+        for (HeaderPredicate headerPredicate : requestPattern.getHeaderPredicates())
+            specificity += headerPredicate.getName().length() + headerPredicate.getValue().length();
+        for (ContentPredicate contentPredicate : requestPattern.getContentPredicates())
+            specificity += contentPredicate.getPath().length() + contentPredicate.getRegex().length();
+        return ((long) recording.getPriority() << 32) + Math.min(specificity, 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get all the Recordings in the cache.
+     *
+     * @return All the Recordings in the cache.
+     */
+    public Set<Recording> getRecordings() {
+        Set<Recording> recordings = new HashSet<>();
+        List<Node> queue = new ArrayList<>();
+        queue.add(tree.get());
+        while (!queue.isEmpty()) {
+            Node current = queue.remove(queue.size() - 1);
+            queue.addAll(current.children);
+            if (current.recording != null)
+                recordings.add(current.recording);
+        }
+        return recordings;
+    }
+
+    public Map<String, Integer> getRequestCounterPerPath(){
+        Map<String, Integer> totalRequests = new HashMap<>();
+        for (Recording recording : getRecordings()) {
+            String path = getTrimmedPath(recording);
+            int count = totalRequests.getOrDefault(path, 0);
+            totalRequests.put(path, count + recording.getResponseCounterTotal());
+        }
+        return totalRequests;
+    }
+
+    public void resetTotalStatisticCounter(){
+        getRecordings()
+                .forEach(Recording::resetResponseCounterTotal);
+    }
+
+    public Map<String, Integer> getRequestCounterPerRecording() {
+        Map<String, Integer> totalRequests = new HashMap<>();
+        getRecordings()
+                .forEach(recording -> totalRequests.put(
+                        recording.getFilename(),
+                        recording.getResponseCounterTotal()
+                ));
+        return totalRequests;
+    }
+
+    private static String getTrimmedPath(Recording recording) {
+        String path = recording.getRequestPattern().getPath();
+
+        if(path.endsWith("$"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+        if(path.startsWith("^"))
+        {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    /**
+     * Get the regular expression a branch for the given field matches the value of the field with.
+     * This is the pattern for the field, except for the header and content when the pattern is ignored in favour of conditions.
+     *
+     * @param field          The field.
+     * @param requestPattern The RequestPattern.
+     * @return The regular expression for the branch.
+     */
+    static String branchRegex(Field field, RequestPattern requestPattern) {
+        if ((field == Field.HEADER && requestPattern.isIgnoreOtherHeaders()) || (field == Field.CONTENT && requestPattern.isIgnoreOtherContent()))
+            return "^.*$";
+        return field.getValue(requestPattern);
+    }
+
+    /**
+     * Get the key identifying a branch for the given field among its siblings.
+     * This is the regular expression for the branch, and for the header and content also the conditions for single headers and values in the content.
+     *
+     * @param field          The field.
+     * @param requestPattern The RequestPattern.
+     * @return The key for the branch.
+     */
+    static String branchKey(Field field, RequestPattern requestPattern) {
+        String regex = branchRegex(field, requestPattern);
+        Stream<String> conditions;
+        if (field == Field.HEADER && !requestPattern.getHeaderPredicates().isEmpty())
+            conditions = requestPattern.getHeaderPredicates().stream().map(predicate -> predicate.getName().toLowerCase(Locale.ROOT) + (predicate.isRegex() ? "~" : "=") + predicate.getValue());
+        else if (field == Field.CONTENT && !requestPattern.getContentPredicates().isEmpty())
+            conditions = requestPattern.getContentPredicates().stream().map(predicate -> predicate.getPath() + "~" + predicate.getRegex());
+        else
+            return regex;
+        /* the order of the conditions doesn't matter, sort them so the same conditions always give the same key */
+        return regex + conditions.map(condition -> "\u0000" + condition).sorted().collect(Collectors.joining());
+    }
+
+    /**
+     * Get the text a pattern matches if the pattern is a plain literal on the form "^&lt;escaped text&gt;$".
+     *
+     * @param regex The regular expression.
+     * @return The unescaped text, or <code>null</code> if the pattern is not a plain literal.
+     */
+    static String unescapeLiteral(String regex) {
+        int end = regex.length() - 1;
+        if (end < 1 || regex.charAt(0) != '^' || regex.charAt(end) != '$')
+            return null;
+        StringBuilder sb = new StringBuilder(end);
+        for (int i = 1; i < end; ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                /* backslash in front of a non-alphabetic character is always a literal */
+                if (++i >= end)
+                    return null;
+                c = regex.charAt(i);
+                if (c >= 128 || Character.isLetterOrDigit(c))
+                    return null;
+            } else if ("*+[](){}$.?^|".indexOf(c) >= 0) {
+                return null;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove a single line terminator from the end of the value.
+     * A "$" at the end of a pattern also matches in front of a line terminator at the end of the input, this is used to find literal branches for such values.
+     *
+     * @param value The value.
+     * @return The value without the trailing line terminator, or <code>null</code> if the value does not end with a line terminator.
+     */
+    static String stripLineTerminator(String value) {
+        int length = value.length();
+        if (length == 0)
+            return null;
+        char c = value.charAt(length - 1);
+        if (c == '\n')
+            return length > 1 && value.charAt(length - 2) == '\r' ? value.substring(0, length - 2) : value.substring(0, length - 1);
+        if (c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+            return value.substring(0, length - 1);
+        return null;
+    }
+
+    /**
+     * A branch in the tree.
+     * A Node is only modified by the Builder that created it, and never after the tree it belongs to has been published.
+     */
+    private static final class Node {
+        /**
+         * The Builder that created this Node, only this Builder may modify the Node.
+         */
+        private final Builder owner;
+        /**
+         * The field of this level in the cache.
+         */
+        private final Field field;
+        /**
+         * The regular expression for this field and branch.
+         */
+        private final Pattern pattern;
+        /**
+         * Checks whether a value matches the regular expression, without evaluating the regular expression if it's trivial.
+         */
+        private final FieldMatcher matcher;
+        /**
+         * Identifies this branch among its siblings, the regular expression and for the header and content also the conditions.
+         */
+        private final String key;
+        /**
+         * Conditions for single headers, <code>null</code> if there are none.
+         */
+        private final HeaderCheck[] headerChecks;
+        /**
+         * Conditions for values in the content, <code>null</code> if there are none.
+         */
+        private final ContentCheck[] contentChecks;
+        /**
+         * The paths of the conditions for values in the content, extracted from the content together.
+         */
+        private final List<String> contentPaths;
+        /**
+         * How often and how long this branch has been evaluated, shared with copies of the branch.
+         */
+        private final NodeStats stats;
+        /**
+         * The unescaped text of the pattern if the pattern is a plain literal, <code>null</code> otherwise.
+         */
+        private final String literal;
+        /**
+         * All the branches forking out from this branch, in the order they were added.
+         */
+        private final List<Node> children;
+        /**
+         * Branches forking out from this branch where the pattern is a plain literal (i.e. "^&lt;escaped text&gt;$").
+         * The key is the unescaped text, which lets us find the branch with a single lookup instead of running the regular expression.
+         */
+        private final Map<String, Node> literalChildren;
+        /**
+         * Branches forking out from this branch where the pattern is a regular expression that must be evaluated.
+         */
+        private final List<Node> regexChildren;
+        /**
+         * Tells which of the regexChildren may match a value, built when the tree is published.
+         */
+        private PrefixAutomaton regexAutomaton;
+        /**
+         * The indexes of the regexChildren in the order they're tried when searching for the first match, the most frequently hit first.
+         * Replaced rather than modified, so a search sees either the previous or the next order.
+         */
+        private volatile int[] hotOrder;
+        /**
+         * How many times this branch may be searched for the first match before the regex branches are ordered again.
+         * Updated without synchronization, a lost update only delays the next ordering.
+         */
+        private int searchesUntilReorder = REORDER_INTERVAL;
+        /**
+         * The position of this branch among its siblings, used to visit siblings in the order they were added.
+         * Removing a sibling does not change the ordinal of the others, so ordinals are increasing but not necessarily consecutive.
+         */
+        private int ordinal;
+        /**
+         * The ordinal given to the next branch added to this branch.
+         */
+        private int nextOrdinal;
+        /**
+         * At the end of a branch a single Recording may exist.
+         */
+        private Recording recording;
+        /**
+         * The rank of the Recording, only set where a Recording exists and the tree doesn't have the default field order.
+         */
+        private long[] rank;
+        /**
+         * The priority and specificity of the Recording, see {@link Cache#score(Recording)}, only set where a Recording exists.
+         */
+        private long score;
+        /**
+         * The highest score of the Recordings in this branch and the branches forking out from it, updated when the tree is built.
+         */
+        private long maxScore = Long.MIN_VALUE;
+        /**
+         * The generation of the tree, only set on the root when the tree is published.
+         */
+        private long generation;
+        /**
+         * The order of the levels in the tree, only used on the root.
+         */
+        private Field[] order = DEFAULT_FIELD_ORDER;
+
+        /**
+         * Constructor for a new, empty branch.
+         *
+         * @param owner   The Builder creating the branch.
+         * @param field   The field for this branch.
+         * @param matcher The pattern for this branch.
+         */
+        private Node(Builder owner, Field field, FieldMatcher matcher) {
+            this(owner, field, matcher, matcher == null ? null : matcher.getPattern().pattern(), null, null);
+        }
+
+        /**
+         * Constructor for a new, empty branch with conditions for single headers or values in the content.
+         *
+         * @param owner         The Builder creating the branch.
+         * @param field         The field for this branch.
+         * @param matcher       The pattern for this branch.
+         * @param key           Identifies this branch among its siblings.
+         * @param headerChecks  Conditions for single headers, <code>null</code> if there are none.
+         * @param contentChecks Conditions for values in the content, <code>null</code> if there are none.
+         */
+        private Node(Builder owner, Field field, FieldMatcher matcher, String key, HeaderCheck[] headerChecks, ContentCheck[] contentChecks) {
+            this.owner = owner;
+            this.field = field;
+            this.matcher = matcher;
+            this.key = key;
+            this.headerChecks = headerChecks;
+            this.contentChecks = contentChecks;
+            this.contentPaths = contentChecks == null ? null : Arrays.stream(contentChecks).map(contentCheck -> contentCheck.path).distinct().collect(Collectors.toList());
+            this.stats = new NodeStats();
+            this.pattern = matcher == null ? null : matcher.getPattern();
+            this.literal = pattern == null ? null : unescapeLiteral(pattern.pattern());
+            this.children = new ArrayList<>();
+            this.literalChildren = new HashMap<>();
+            this.regexChildren = new ArrayList<>();
+        }
+
+        /**
+         * Copy constructor, the copy shares the child branches with the original.
+         *
+         * @param owner    The Builder creating the copy.
+         * @param original The branch to copy.
+         */
+        private Node(Builder owner, Node original) {
+            this.owner = owner;
+            this.field = original.field;
+            this.pattern = original.pattern;
+            this.matcher = original.matcher;
+            this.key = original.key;
+            this.headerChecks = original.headerChecks;
+            this.contentChecks = original.contentChecks;
+            this.contentPaths = original.contentPaths;
+            this.stats = original.stats;
+            this.literal = original.literal;
+            this.children = new ArrayList<>(original.children);
+            this.literalChildren = new HashMap<>(original.literalChildren);
+            this.regexChildren = new ArrayList<>(original.regexChildren);
+            this.regexAutomaton = original.regexAutomaton;
+            this.hotOrder = original.hotOrder;
+            this.ordinal = original.ordinal;
+            this.nextOrdinal = original.nextOrdinal;
+            this.recording = original.recording;
+            this.rank = original.rank;
+            this.score = original.score;
+            this.maxScore = original.maxScore;
+            this.order = original.order;
+        }
+
+        /**
+         * Find the branch with the given key.
+         *
+         * @param key   The key of the branch.
+         * @param regex The pattern of the branch.
+         * @return The branch, or <code>null</code> if there is no such branch.
+         */
+        private Node findChild(String key, String regex) {
+            String text = unescapeLiteral(regex);
+            if (text != null) {
+                Node child = literalChildren.get(text);
+                if (child != null && key.equals(child.key))
+                    return child;
+            }
+            for (Node child : regexChildren) {
+                if (key.equals(child.key))
+                    return child;
+            }
+            return null;
+        }
+
+        /**
+         * Add a branch to this branch, indexing it by its literal value if the pattern is a plain literal.
+         *
+         * @param child The branch to add.
+         */
+        private void addChild(Node child) {
+            child.ordinal = nextOrdinal++;
+            children.add(child);
+            if (child.literal != null && !literalChildren.containsKey(child.literal)) {
+                literalChildren.put(child.literal, child);
+            } else {
+                /* either a regular expression, or a different pattern with the same literal value (e.g. "^a\\/b$" and "^a/b$") */
+                regexChildren.add(child);
+            }
+        }
+
+        /**
+         * Replace a branch with a copy of it.
+         *
+         * @param child The branch to replace.
+         * @param copy  The copy replacing the branch.
+         */
+        private void replaceChild(Node child, Node copy) {
+            children.set(indexOf(child), copy);
+            if (child.literal != null && literalChildren.get(child.literal) == child)
+                literalChildren.put(child.literal, copy);
+            else
+                regexChildren.set(regexChildren.indexOf(child), copy);
+        }
+
+        /**
+         * Remove a branch from this branch.
+         *
+         * @param child The branch to remove.
+         */
+        private void removeChild(Node child) {
+            children.remove(indexOf(child));
+            if (child.literal != null && literalChildren.get(child.literal) == child)
+                literalChildren.remove(child.literal);
+            else
+                regexChildren.remove(child);
+        }
+
+        /**
+         * Find the position of a branch in the list of all branches, which is sorted by ordinal.
+         *
+         * @param child The branch to find.
+         * @return The position of the branch in the list of all branches.
+         */
+        private int indexOf(Node child) {
+            return Collections.binarySearch(children, child, Comparator.comparingInt(node -> node.ordinal));
+        }
+
+        /**
+         * Search for a regular expression in a value, within the budget.
+         * A regular expression exceeding the budget or overflowing the stack is treated as not matching, and remembered with the Recordings using this branch.
+         *
+         * The Matcher in the given slot of the search context is reused, as only the Recording that is used needs a Matcher of its own.
+         *
+         * @param context The search context, limiting the work of the regular expression.
+         * @param slot    The slot of the Matcher to reuse, see {@link SearchContext#matchers}.
+         * @param regex   The regular expression.
+         * @param value   The value.
+         * @return <code>true</code> if the regular expression was found in the value, <code>false</code> otherwise.
+         */
+        private boolean find(SearchContext context, int slot, Pattern regex, String value) {
+            CharSequence text = context.budget.limit(value, context.limited);
+            Matcher m = context.matchers[slot];
+            if (m == null)
+                m = context.matchers[slot] = regex.matcher(text);
+            else if (m.pattern() != regex)
+                m.usePattern(regex).reset(text);
+            else
+                m.reset(text);
+            try {
+                return m.find();
+            } catch (RegexBudget.ExceededException | StackOverflowError e) {
+                context.budget.exceeded(field.toString(), regex.pattern(), () -> {
+                    List<String> filenames = new ArrayList<>();
+                    collectFilenames(filenames);
+                    return filenames;
+                });
+                return false;
+            }
+        }
+
+        /**
+         * Get the counters of this branch, for {@link Cache#getProfile(int)}.
+         *
+         * @return The field, pattern, conditions, counters and Recordings of this branch.
+         */
+        private Map<String, Object> profile() {
+            long evaluations = stats.evaluations.sum();
+            long nanos = stats.nanos.sum();
+            List<String> conditions = new ArrayList<>();
+            if (headerChecks != null)
+                Arrays.stream(headerChecks).map(HeaderCheck::toString).forEach(conditions::add);
+            if (contentChecks != null)
+                Arrays.stream(contentChecks).map(ContentCheck::toString).forEach(conditions::add);
+            List<String> filenames = new ArrayList<>();
+            collectFilenames(filenames);
+            Map<String, Object> profile = new LinkedHashMap<>();
+            profile.put("field", field.name());
+            profile.put("pattern", pattern.pattern());
+            profile.put("conditions", conditions);
+            profile.put("evaluations", evaluations);
+            profile.put("matches", stats.matches.sum());
+            profile.put("hits", stats.hits.sum());
+            profile.put("totalNanos", nanos);
+            profile.put("averageNanos", evaluations == 0 ? 0 : nanos / evaluations);
+            profile.put("recordings", filenames);
+            return profile;
+        }
+
+        /**
+         * Collect the filenames of the Recordings in this branch, at most {@link RegexBudget#MAX_RECORDINGS}.
+         *
+         * @param filenames Where the filenames are added.
+         */
+        private void collectFilenames(List<String> filenames) {
+            if (recording != null && filenames.size() < RegexBudget.MAX_RECORDINGS)
+                filenames.add(recording.getFilename());
+            for (Node child : children) {
+                if (filenames.size() >= RegexBudget.MAX_RECORDINGS)
+                    return;
+                child.collectFilenames(filenames);
+            }
+        }
+
+        /**
+         * Check whether the Request matches the conditions and the pattern of this branch.
+         *
+         * @param context The search context, this branch is added to the path if it has a pattern.
+         * @param request The Request to search for.
+         * @return <code>true</code> if the Request matches this branch, <code>false</code> otherwise.
+         */
+        private boolean match(SearchContext context, Request request) {
+            if (headerChecks != null) {
+                for (HeaderCheck headerCheck : headerChecks) {
+                    if (!headerCheck.test(request, this, context)) {
+                        log.debug("Field {}: Condition «{}» did not match header", field, headerCheck);
+                        return false;
+                    }
+                }
+            }
+            if (contentChecks != null) {
+                /* all paths are extracted in one read of the content, which stops when they are found */
+                Map<String, String> values = request.getContentValues(contentPaths);
+                for (ContentCheck contentCheck : contentChecks) {
+                    String value = values.get(contentCheck.path);
+                    if (value == null || !find(context, SearchContext.CONDITIONS, contentCheck.pattern, value)) {
+                        log.debug("Field {}: Condition «{}» did not match value «{}»", field, contentCheck, value);
+                        return false;
+                    }
+                }
+            }
+            if (matcher != null) {
+                /* need to match pattern with current field, except for root where pattern is null */
+                String value = field.getValue(request);
+                /* trivial patterns are checked without a Matcher */
+                if (matcher.isTrivial() ? !matcher.find(value) : !find(context, field.ordinal(), pattern, value)) {
+                    log.debug("Field {}: Pattern «{}» did not match value «{}»", field, pattern.pattern(), value);
+                    return false;
+                }
+                context.path[field.ordinal()] = this;
+            }
+            return true;
+        }
+
+        /**
+         * Helper method for searching the cache for entries matching the Request.
+         * The entries found are added to the results of the search context, or kept as the best entry if only the best entry is wanted.
+         *
+         * @param context The search context.
+         * @param request The Request to search for.
+         */
+        private void searchCache(SearchContext context, Request request) {
+            if (context.bestOnly && !context.best.mayImprove(maxScore))
+                return;
+            stats.evaluations.increment();
+            long start = System.nanoTime();
+            boolean matched = match(context, request);
+            stats.nanos.add(System.nanoTime() - start);
+            if (!matched)
+                return;
+            stats.matches.increment();
+            if (!children.isEmpty()) {
+                /* all children share the same field, look up literal branches directly and merge them with the regex branches in the order they were added */
+                String value = children.get(0).field.getValue(request);
+                Node first = literalChildren.get(value);
+                String stripped = stripLineTerminator(value);
+                Node second = stripped == null ? null : literalChildren.get(stripped);
+                if (first == null || (second != null && second.ordinal < first.ordinal)) {
+                    Node tmp = first;
+                    first = second;
+                    second = tmp;
+                }
+                /* only visit the regex branches that may match the value, the automaton is null if there are no regex branches */
+                BitSet candidates = regexAutomaton == null ? null : regexAutomaton.candidates(value);
+                for (int i = candidates == null ? -1 : candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                    Node c = regexChildren.get(i);
+                    while (first != null && first.ordinal < c.ordinal) {
+                        first.searchCache(context, request);
+                        first = second;
+                        second = null;
+                    }
+                    c.searchCache(context, request);
+                }
+                while (first != null) {
+                    first.searchCache(context, request);
+                    first = second;
+                    second = null;
+                }
+            }
+            if (recording != null) {
+                if (!context.bestOnly)
+                    context.results.add(result(context.path, request));
+                else if (context.best.isImprovedBy(this))
+                    context.best.set(this, context.path);
+            }
+        }
+
+        /**
+         * Search for the first entry matching given Request, stopping as soon as an entry is found.
+         * The literal branches are looked up first, then the regex branches that may match are tried in the order of {@link #hotOrder}.
+         *
+         * When an entry is found the path of the search context holds the branches leading to it.
+         *
+         * @param context The search context.
+         * @param request The Request to search for.
+         * @return The branch with the Recording of the first entry found, or <code>null</code> if no entry matches the Request.
+         */
+        private Node searchFirst(SearchContext context, Request request) {
+            if (maxScore == Long.MIN_VALUE)
+                return null; // no recordings in this branch
+            stats.evaluations.increment();
+            long start = System.nanoTime();
+            boolean matched = match(context, request);
+            stats.nanos.add(System.nanoTime() - start);
+            if (!matched)
+                return null;
+            stats.matches.increment();
+            Node result = null;
+            if (!children.isEmpty()) {
+                String value = children.get(0).field.getValue(request);
+                Node literalChild = literalChildren.get(value);
+                if (literalChild != null)
+                    result = literalChild.searchFirst(context, request);
+                String stripped = result == null ? stripLineTerminator(value) : null;
+                if (stripped != null && (literalChild = literalChildren.get(stripped)) != null)
+                    result = literalChild.searchFirst(context, request);
+                if (result == null && regexAutomaton != null) {
+                    if (--searchesUntilReorder < 0)
+                        reorder();
+                    BitSet candidates = regexAutomaton.candidates(value);
+                    int[] order = hotOrder;
+                    for (int i = 0; result == null && i < order.length; ++i) {
+                        if (candidates.get(order[i]))
+                            result = regexChildren.get(order[i]).searchFirst(context, request);
+                    }
+                }
+            }
+            if (result == null && recording != null)
+                result = this;
+            if (result != null)
+                stats.hits.increment();
+            return result;
+        }
+
+        /**
+         * Order the regex branches by how often they have led to an entry when searching for the first match, the most frequently hit first.
+         * Branches hit equally often keep the order they were added in.
+         */
+        private void reorder() {
+            searchesUntilReorder = REORDER_INTERVAL;
+            long[] hits = new long[regexChildren.size()];
+            Integer[] indexes = new Integer[hits.length];
+            for (int i = 0; i < hits.length; ++i) {
+                hits[i] = regexChildren.get(i).stats.hits.sum();
+                indexes[i] = i;
+            }
+            Arrays.sort(indexes, (i1, i2) -> Long.compare(hits[i2], hits[i1]));
+            hotOrder = Arrays.stream(indexes).mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * Create the entry for the Recording at the end of this branch.
+         * The entry remembers the branches and values that matched, its Matchers are created when they're needed.
+         *
+         * @param path    The branches leading to this branch, by field.
+         * @param request The Request that matched.
+         * @return The entry for the Recording.
+         */
+        private Result result(Node[] path, Request request) {
+            Result result = new Result(recording, null);
+            result.rank = rank;
+            result.score = score;
+            result.path = path.clone();
+            result.values = new String[path.length];
+            for (Node node : result.path) {
+                if (node == null)
+                    continue;
+                result.values[node.field.ordinal()] = node.field.getValue(request);
+                if (node.contentPaths != null)
+                    result.contentValues = request.getContentValues(node.contentPaths);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Builds a new tree from an existing tree.
+     * Branches of the existing tree are copied the first time they are modified, the rest are shared with the existing tree.
+     */
+    private static final class Builder {
+        /**
+         * The root of the new tree.
+         */
+        private final Node root;
+        /**
+         * Patterns already compiled, patterns not in this map are compiled when needed.
+         */
+        private final Map<String, FieldMatcher> patterns;
+        /**
+         * The ranks of the Recordings in the tree, <code>null</code> when the tree has the default field order.
+         */
+        private final Ranks ranks;
+
+        /**
+         * Start building a new tree from an existing tree.
+         *
+         * @param root     The root of the existing tree.
+         * @param patterns Patterns already compiled.
+         * @param ranks    The ranks of the Recordings in the existing tree, <code>null</code> when the tree has the default field order.
+         */
+        private Builder(Node root, Map<String, FieldMatcher> patterns, Ranks ranks) {
+            this.root = new Node(this, root);
+            this.patterns = patterns;
+            this.ranks = ranks;
+        }
+
+        /**
+         * Finish the new tree, making it ready to be published.
+         * Branches modified by this Builder get a new automaton for their regex branches, the other branches are unchanged.
+         *
+         * @return The root of the new tree.
+         */
+        private Node build() {
+            build(root);
+            return root;
+        }
+
+        private void build(Node node) {
+            node.regexAutomaton = node.regexChildren.isEmpty() ? null : new PrefixAutomaton(node.regexChildren.stream().map(child -> child.pattern).collect(Collectors.toList()));
+            node.reorder();
+            node.maxScore = node.recording != null ? node.score : Long.MIN_VALUE;
+            for (Node child : node.children) {
+                if (child.owner == this)
+                    build(child);
+                node.maxScore = Math.max(node.maxScore, child.maxScore);
+            }
+        }
+
+        /**
+         * Add a Recording to the new tree.
+         *
+         * @param recording The Recording to add.
+         */
+        private void add(Recording recording) {
+            log.info("Adding recording to Cache: {}", recording);
+            Node current = root;
+            Node[] path = new Node[FIELD_COUNT];
+            for (Field f : root.order) {
+                String value = branchRegex(f, recording.getRequestPattern());
+                String key = branchKey(f, recording.getRequestPattern());
+                log.debug("Looking for Cache branch with field \"{}\" and pattern: {}", f, value);
+                Node child = current.findChild(key, value);
+                if (child == null) {
+                    log.debug("Branch not found, creating one");
+                    FieldMatcher matcher = patterns.get(value);
+                    if (matcher == null)
+                        matcher = FieldMatcher.compile(value);
+                    List<HeaderPredicate> headerPredicates = f == Field.HEADER ? recording.getRequestPattern().getHeaderPredicates() : Collections.emptyList();
+                    List<ContentPredicate> contentPredicates = f == Field.CONTENT ? recording.getRequestPattern().getContentPredicates() : Collections.emptyList();
+                    child = new Node(this, f, matcher, key,
+                            headerPredicates.isEmpty() ? null : headerPredicates.stream().map(HeaderCheck::new).toArray(HeaderCheck[]::new),
+                            contentPredicates.isEmpty() ? null : contentPredicates.stream().map(ContentCheck::new).toArray(ContentCheck[]::new));
+                    current.addChild(child);
+                } else if (child.owner != this) {
+                    log.debug("Branch found");
+                    Node copy = new Node(this, child);
+                    current.replaceChild(child, copy);
+                    child = copy;
+                } else {
+                    log.debug("Branch found");
+                }
+                current = child;
+                path[f.ordinal()] = child;
+            }
+            /* bind the variables of the response templates to the groups of the patterns leading to the Recording */
+            Map<String, Pattern> variablePatterns = new LinkedHashMap<>();
+            for (Field f : DEFAULT_FIELD_ORDER)
+                variablePatterns.put(f.toString(), path[f.ordinal()].pattern);
+            if (path[Field.CONTENT.ordinal()].contentChecks != null) {
+                for (ContentCheck contentCheck : path[Field.CONTENT.ordinal()].contentChecks)
+                    variablePatterns.putIfAbsent(contentCheck.variable, contentCheck.pattern);
+            }
+            if (recording.getResponseTemplates() != null) {
+                for (ResponseTemplate responseTemplate : recording.getResponseTemplates())
+                    responseTemplate.compile(variablePatterns);
+            }
+            if (current.recording == null) {
+                /* new Recording  */
+                log.debug("Recording added to cache");
+                if (ranks != null)
+                    current.rank = ranks.acquire(Arrays.stream(DEFAULT_FIELD_ORDER).map(f -> branchKey(f, recording.getRequestPattern())).toArray(String[]::new));
+            } else {
+                /* overwriting existing Recording, hmm */
+                log.info("Overwriting existing recording in cache");
+            }
+            current.recording = recording;
+            current.score = score(recording);
+        }
+
+        /**
+         * Remove the Recording with the given filename from the new tree.
+         * The branches leading to the Recording are copied, and branches left without children and Recording are removed.
+         *
+         * @param filename The filename of the Recording.
+         * @return <code>true</code> if the Recording was found and removed, <code>false</code> otherwise.
+         */
+        private boolean remove(String filename) {
+            List<Node> path = new ArrayList<>();
+            if (filename == null || !findPath(root, filename, path))
+                return false;
+            log.info("Removing recording from Cache: {}", filename);
+            /* make the branches leading to the Recording modifiable */
+            for (int i = 1; i < path.size(); ++i) {
+                Node child = path.get(i);
+                if (child.owner != this) {
+                    Node copy = new Node(this, child);
+                    path.get(i - 1).replaceChild(child, copy);
+                    path.set(i, copy);
+                }
+            }
+            Node leaf = path.get(path.size() - 1);
+            leaf.recording = null;
+            leaf.rank = null;
+            if (ranks != null) {
+                Map<Field, String> regexes = new EnumMap<>(Field.class);
+                for (Node node : path.subList(1, path.size()))
+                    regexes.put(node.field, node.key);
+                ranks.release(Arrays.stream(DEFAULT_FIELD_ORDER).map(regexes::get).toArray(String[]::new));
+            }
+            /* collapse branches that no longer lead to any Recording */
+            for (int i = path.size() - 1; i > 0; --i) {
+                Node node = path.get(i);
+                if (!node.children.isEmpty() || node.recording != null)
+                    break;
+                path.get(i - 1).removeChild(node);
+            }
+            return true;
+        }
+
+        /**
+         * Find the branches leading to the Recording with the given filename.
+         *
+         * @param node     The branch to search from.
+         * @param filename The filename of the Recording.
+         * @param path     The branches leading to the given branch, the branches leading to the Recording when this method returns <code>true</code>.
+         * @return <code>true</code> if the Recording was found, <code>false</code> otherwise.
+         */
+        private static boolean findPath(Node node, String filename, List<Node> path) {
+            path.add(node);
+            if (node.recording != null && filename.equals(node.recording.getFilename()))
+                return true;
+            for (Node child : node.children) {
+                if (findPath(child, filename, path))
+                    return true;
+            }
+            path.remove(path.size() - 1);
+            return false;
+        }
+    }
+
+    /**
+     * The best entry found so far when searching for the best entry.
+     */
+    private static final class BestMatch {
+        /**
+         * Whether entries with the same score are decided by rank, as the tree isn't searched in the order of the results.
+         */
+        private boolean byRank;
+        /**
+         * The branch with the Recording of the best entry found so far, <code>null</code> if none is found yet.
+         */
+        private Node node;
+        /**
+         * The branches leading to the best entry found so far, by field.
+         */
+        private final Node[] path = new Node[FIELD_COUNT];
+
+        /**
+         * Check whether a branch may hold a better entry than the best entry found so far.
+         * In a tree with the default field order entries are found in the order of the results, so an entry with the same score found later is never better.
+         *
+         * @param maxScore The highest score in the branch.
+         * @return <code>true</code> if the branch must be searched, <code>false</code> if it can be skipped.
+         */
+        private boolean mayImprove(long maxScore) {
+            return node == null || maxScore > node.score || (byRank && maxScore == node.score);
+        }
+
+        /**
+         * Check whether an entry is better than the best entry found so far.
+         *
+         * @param candidate The branch with the Recording of the entry.
+         * @return <code>true</code> if the entry is better, <code>false</code> otherwise.
+         */
+        private boolean isImprovedBy(Node candidate) {
+            if (node == null || candidate.score > node.score)
+                return true;
+            if (candidate.score < node.score || !byRank)
+                return false;
+            for (int i = 0; i < candidate.rank.length; ++i) {
+                if (candidate.rank[i] != node.rank[i])
+                    return candidate.rank[i] < node.rank[i];
+            }
+            return false;
+        }
+
+        /**
+         * Make an entry the best entry found so far.
+         *
+         * @param candidate The branch with the Recording of the entry.
+         * @param path      The branches leading to the entry, copied as they change when the search continues.
+         */
+        private void set(Node candidate, Node[] path) {
+            node = candidate;
+            System.arraycopy(path, 0, this.path, 0, path.length);
+        }
+    }
+
+    /**
+     * Reusable state for searching the tree, one for each thread.
+     * Searching with the same context again only allocates for the entries found, as the Matchers are reused and the entries create their own Matchers when needed.
+     */
+    private static final class SearchContext {
+        /**
+         * The slot of {@link #matchers} used for the conditions for single headers and values in the content.
+         */
+        private static final int CONDITIONS = FIELD_COUNT;
+        /**
+         * The branches leading to the branch being searched, by field.
+         */
+        private final Node[] path = new Node[FIELD_COUNT];
+        /**
+         * Matchers reused for the regular expressions, one for each field, and one for the conditions.
+         */
+        private final Matcher[] matchers = new Matcher[FIELD_COUNT + 1];
+        /**
+         * The value being matched, limited by the budget, reused for every regular expression.
+         */
+        private final RegexBudget.LimitedCharSequence limited = new RegexBudget.LimitedCharSequence();
+        /**
+         * The entries found, when all entries are wanted.
+         */
+        private final List<Result> results = new ArrayList<>();
+        /**
+         * The best entry found so far, when only the best entry is wanted.
+         */
+        private final BestMatch best = new BestMatch();
+        /**
+         * Limits the work of the regular expressions.
+         */
+        private RegexBudget budget;
+        /**
+         * Whether only the best entry is wanted.
+         */
+        private boolean bestOnly;
+        /**
+         * Whether a search is using this context.
+         */
+        private boolean inUse;
+
+        /**
+         * Make the context ready for the next search, letting go of the tree and the request of this search.
+         */
+        private void release() {
+            Arrays.fill(path, null);
+            Arrays.fill(best.path, null);
+            best.node = null;
+            bestOnly = false;
+            results.clear();
+            limited.reset("", 0);
+            for (Matcher m : matchers) {
+                if (m != null)
+                    m.reset("");
+            }
+            budget = null;
+            inUse = false;
+        }
+    }
+
+    /**
+     * Counters for a branch, updated when searching.
+     */
+    private static final class NodeStats {
+        /**
+         * Amount of times the branch has been evaluated.
+         */
+        private final LongAdder evaluations = new LongAdder();
+        /**
+         * Amount of times the branch matched.
+         */
+        private final LongAdder matches = new LongAdder();
+        /**
+         * Total time spent evaluating the branch, excluding the branches forking out from it.
+         */
+        private final LongAdder nanos = new LongAdder();
+        /**
+         * Amount of times the branch led to an entry when searching for the first match.
+         */
+        private final LongAdder hits = new LongAdder();
+    }
+
+    /**
+     * A condition for a single header, compiled from a HeaderPredicate.
+     */
+    private static final class HeaderCheck {
+        /**
+         * Name of the header, in lower case.
+         */
+        private final String name;
+        /**
+         * The value the header value must be equal to, if not a regular expression.
+         */
+        private final String value;
+        /**
+         * The regular expression the header value must match, <code>null</code> if the header value must be equal to the value.
+         */
+        private final FieldMatcher matcher;
+
+        private HeaderCheck(HeaderPredicate headerPredicate) {
+            this.name = headerPredicate.getName().toLowerCase(Locale.ROOT);
+            this.value = headerPredicate.getValue();
+            this.matcher = headerPredicate.isRegex() ? FieldMatcher.compile(headerPredicate.getValue()) : null;
+        }
+
+        /**
+         * Check whether the header of the request matches this condition.
+         *
+         * @param request The Request.
+         * @param node    The branch with this condition.
+         * @param context The search context, limiting the work of the regular expression.
+         * @return <code>true</code> if the request has the header and its value matches, <code>false</code> otherwise.
+         */
+        private boolean test(Request request, Node node, SearchContext context) {
+            String actual = request.getHeaderValue(name);
+            if (actual == null)
+                return false;
+            if (matcher == null)
+                return value.equals(actual);
+            return matcher.isTrivial() ? matcher.find(actual) : node.find(context, SearchContext.CONDITIONS, matcher.getPattern(), actual);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return name + (matcher == null ? " = " + value : " ~ " + matcher);
+        }
+    }
+
+    /**
+     * A condition for a value in the content, compiled from a ContentPredicate.
+     */
+    private static final class ContentCheck {
+        /**
+         * Path to the value in the content.
+         */
+        private final String path;
+        /**
+         * The regular expression the value must match.
+         */
+        private final Pattern pattern;
+        /**
+         * Key for the Matcher in the variables, the groups of the regular expression are available in the response like groups in the other fields.
+         */
+        private final String variable;
+
+        private ContentCheck(ContentPredicate contentPredicate) {
+            this.path = contentPredicate.getPath();
+            this.pattern = FieldMatcher.compile(contentPredicate.getRegex()).getPattern();
+            this.variable = path.toUpperCase(Locale.ROOT);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return path + " ~ " + pattern.pattern();
+        }
+    }
+
+    /**
+     * The position Recordings would have in a tree with the default field order, used when the tree has another field order.
+     * This is a tree of the patterns in the default field order where each branch is numbered when it's created,
+     * which is the same order as the branches in a tree with the default field order are visited in.
+     * The rank of a Recording is the numbers of the branches leading to it, and sorting results by rank gives the same order as searching a tree with the default field order.
+     * Only modified by writers while holding the lock on the Cache, readers only use the ranks stored in the tree.
+     */
+    private static final class Ranks {
+        /**
+         * The root of the tree.
+         */
+        private final Rank root = new Rank(0);
+        /**
+         * The number given to the last created branch.
+         */
+        private long last;
+
+        /**
+         * Get the rank of a Recording added to the tree.
+         *
+         * @param regexes The patterns of the Recording, in the default field order.
+         * @return The rank of the Recording.
+         */
+        private long[] acquire(String[] regexes) {
+            long[] rank = new long[regexes.length];
+            Rank current = root;
+            for (int i = 0; i < regexes.length; ++i) {
+                Rank child = current.children.get(regexes[i]);
+                if (child == null) {
+                    child = new Rank(++last);
+                    current.children.put(regexes[i], child);
+                }
+                ++child.recordings;
+                rank[i] = child.number;
+                current = child;
+            }
+            return rank;
+        }
+
+        /**
+         * Release the rank of a Recording removed from the tree, branches no longer leading to any Recording are removed.
+         *
+         * @param regexes The patterns of the Recording, in the default field order.
+         */
+        private void release(String[] regexes) {
+            Rank current = root;
+            for (String regex : regexes) {
+                Rank child = current.children.get(regex);
+                if (child == null)
+                    return;
+                if (--child.recordings == 0) {
+                    current.children.remove(regex);
+                    return;
+                }
+                current = child;
+            }
+        }
+    }
+
+    /**
+     * A branch in the tree of ranks.
+     */
+    private static final class Rank {
+        /**
+         * The number of the branch, increasing in the order the branches were created.
+         */
+        private final long number;
+        /**
+         * The amount of Recordings the branch leads to.
+         */
+        private int recordings;
+        /**
+         * The branches forking out from this branch, keyed by pattern.
+         */
+        private final Map<String, Rank> children = new HashMap<>();
+
+        private Rank(long number) {
+            this.number = number;
         }
-        for (Cache c : children)
-            c.searchCache(results, variables, request);
-        if (recording != null)
-            results.add(new Result(recording, variables));
-        return results;
     }
 }
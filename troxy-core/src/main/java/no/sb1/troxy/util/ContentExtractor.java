@@ -0,0 +1,453 @@
+package no.sb1.troxy.util;
+
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts values from JSON or XML content by path, without building a tree of the content.
+ * The content is read from the start and reading stops as soon as all the paths are found, so only the part of the content up to the last path is read.
+ * <p>
+ * JSON paths start with "$" and consist of members and array indexes, like "$.customer.id" or "$.accounts[0].number".
+ * XML paths start with "/" and consist of element names and optionally an attribute last, like "/Envelope/Body/getCustomer/id" or "/order/@id".
+ * Namespace prefixes in XML paths are ignored, elements and attributes are found by their local name.
+ * <p>
+ * If a path occurs several times, the first value is used.
+ * The value for a JSON string is the unescaped string, for other JSON values the JSON text.
+ * The value for an XML element is all the text within the element.
+ */
+public final class ContentExtractor {
+    /**
+     * Logger for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(ContentExtractor.class);
+    /**
+     * Factory for XML readers, configured to not read DTDs or external entities.
+     */
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+    /**
+     * Private constructor, only static methods.
+     */
+    private ContentExtractor() {
+    }
+
+    /**
+     * Check whether the path is a valid JSON or XML path.
+     *
+     * @param path The path.
+     * @return <code>true</code> if the path is valid, <code>false</code> otherwise.
+     */
+    public static boolean isValidPath(String path) {
+        try {
+            parsePath(path);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Extract the values for the given paths from the content.
+     * All paths must either be JSON paths or XML paths, invalid paths and paths of the other kind are never found.
+     *
+     * @param content The JSON or XML content.
+     * @param paths   The paths to extract.
+     * @return The values by path, paths that aren't found are not in the map.
+     */
+    public static Map<String, String> extract(String content, Collection<String> paths) {
+        Map<String, String> values = new HashMap<>();
+        PathNode jsonRoot = new PathNode();
+        PathNode xmlRoot = new PathNode();
+        int jsonPaths = 0;
+        int xmlPaths = 0;
+        for (String path : paths) {
+            String[] segments;
+            try {
+                segments = parsePath(path);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid content path: {}", path);
+                continue;
+            }
+            PathNode node = path.startsWith("$") ? jsonRoot : xmlRoot;
+            for (String segment : segments)
+                node = node.children.computeIfAbsent(segment, s -> new PathNode());
+            if (node.path == null) {
+                node.path = path;
+                if (path.startsWith("$"))
+                    ++jsonPaths;
+                else
+                    ++xmlPaths;
+            }
+        }
+        int start = 0;
+        while (start < content.length() && Character.isWhitespace(content.charAt(start)))
+            ++start;
+        char first = start < content.length() ? content.charAt(start) : ' ';
+        if (jsonPaths > 0 && (first == '{' || first == '['))
+            new JsonReader(content, values, jsonPaths).read(jsonRoot);
+        else if (xmlPaths > 0 && first == '<')
+            readXml(content, values, xmlPaths, xmlRoot);
+        return values;
+    }
+
+    /**
+     * Split a path into segments, ".&lt;name&gt;" and "[&lt;index&gt;]" for JSON and "/&lt;name&gt;" and "@&lt;name&gt;" for XML.
+     *
+     * @param path The path.
+     * @return The segments of the path.
+     * @throws IllegalArgumentException If the path is invalid.
+     */
+    private static String[] parsePath(String path) {
+        List<String> segments = new ArrayList<>();
+        if (path.startsWith("$")) {
+            int i = 1;
+            while (i < path.length()) {
+                char c = path.charAt(i);
+                if (c == '.') {
+                    int end = i + 1;
+                    while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[')
+                        ++end;
+                    if (end == i + 1)
+                        throw new IllegalArgumentException("Empty member name in JSON path: " + path);
+                    segments.add(path.substring(i, end));
+                    i = end;
+                } else if (c == '[' && i + 1 < path.length() && path.charAt(i + 1) == '\'') {
+                    int end = path.indexOf("']", i + 2);
+                    if (end < 0)
+                        throw new IllegalArgumentException("Unterminated member name in JSON path: " + path);
+                    segments.add("." + path.substring(i + 2, end));
+                    i = end + 2;
+                } else if (c == '[') {
+                    int end = path.indexOf(']', i);
+                    if (end < 0)
+                        throw new IllegalArgumentException("Unterminated array index in JSON path: " + path);
+                    try {
+                        segments.add("[" + Integer.parseUnsignedInt(path.substring(i + 1, end)) + "]");
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid array index in JSON path: " + path);
+                    }
+                    i = end + 1;
+                } else {
+                    throw new IllegalArgumentException("Unexpected character '" + c + "' in JSON path: " + path);
+                }
+            }
+        } else if (path.startsWith("/")) {
+            String[] names = path.substring(1).split("/", -1);
+            for (int i = 0; i < names.length; ++i) {
+                String name = names[i];
+                boolean attribute = name.startsWith("@");
+                if (attribute && i != names.length - 1)
+                    throw new IllegalArgumentException("Attribute must be last in XML path: " + path);
+                name = name.substring(attribute ? 1 : 0);
+                name = name.substring(name.indexOf(':') + 1);
+                if (name.isEmpty())
+                    throw new IllegalArgumentException("Empty name in XML path: " + path);
+                segments.add((attribute ? "@" : "/") + name);
+            }
+        } else {
+            throw new IllegalArgumentException("Path must start with \"$\" (JSON) or \"/\" (XML): " + path);
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    /**
+     * Read XML content until all paths are found.
+     *
+     * @param content   The XML content.
+     * @param values    Where the found values are added.
+     * @param remaining Amount of paths to find.
+     * @param root      The paths to find.
+     */
+    private static void readXml(String content, Map<String, String> values, int remaining, PathNode root) {
+        XMLStreamReader reader = null;
+        try {
+            reader = xmlInputFactory.createXMLStreamReader(new StringReader(content));
+            /* the path nodes for the open elements, null for elements not on any path */
+            Deque<PathNode> open = new ArrayDeque<>();
+            PathNode current = root;
+            /* text of the open elements that are found, innermost first */
+            Deque<StringBuilder> texts = new ArrayDeque<>();
+            Deque<PathNode> captured = new ArrayDeque<>();
+            while (remaining > 0 && reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        open.push(current == null ? PathNode.NONE : current);
+                        current = current == null ? null : current.children.get("/" + reader.getLocalName());
+                        if (current == null)
+                            break;
+                        for (int i = 0; i < reader.getAttributeCount(); ++i) {
+                            PathNode attribute = current.children.get("@" + reader.getAttributeLocalName(i));
+                            if (attribute != null && attribute.path != null && !values.containsKey(attribute.path)) {
+                                values.put(attribute.path, reader.getAttributeValue(i));
+                                --remaining;
+                            }
+                        }
+                        if (current.path != null && !values.containsKey(current.path)) {
+                            texts.push(new StringBuilder());
+                            captured.push(current);
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        for (StringBuilder text : texts)
+                            text.append(reader.getText());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (current != null && !captured.isEmpty() && captured.peek() == current) {
+                            captured.pop();
+                            values.put(current.path, texts.pop().toString());
+                            --remaining;
+                        }
+                        PathNode parent = open.pop();
+                        current = parent == PathNode.NONE ? null : parent;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            log.debug("Unable to read content as XML, {} paths not found", remaining, e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Unable to close XML reader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the factory for XML readers.
+     *
+     * @return The factory for XML readers.
+     */
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * A node in the tree of paths to find.
+     */
+    private static final class PathNode {
+        /**
+         * Marks an open XML element that is not on any path.
+         */
+        private static final PathNode NONE = new PathNode();
+        /**
+         * The paths continuing from this node, by segment.
+         */
+        private final Map<String, PathNode> children = new HashMap<>();
+        /**
+         * The path ending in this node, <code>null</code> if no path ends here.
+         */
+        private String path;
+    }
+
+    /**
+     * Reads JSON content until all paths are found.
+     * Values not on any path are skipped without unescaping strings or collecting names.
+     * Only objects and arrays on a path are read recursively, so the recursion is never deeper than the longest path however deep the content is nested.
+     */
+    private static final class JsonReader {
+        private final String json;
+        private final Map<String, String> values;
+        private int remaining;
+        private int pos;
+
+        private JsonReader(String json, Map<String, String> values, int remaining) {
+            this.json = json;
+            this.values = values;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Read the content from the root path node, stops at the first error.
+         *
+         * @param root The paths to find.
+         */
+        private void read(PathNode root) {
+            try {
+                value(root);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                log.debug("Unable to read content as JSON at position {}, {} paths not found", pos, remaining, e);
+            }
+        }
+
+        /**
+         * Read a value.
+         *
+         * @param node The path node for the value, <code>null</code> if the value isn't on any path.
+         */
+        private void value(PathNode node) {
+            skipWhitespace();
+            int start = pos;
+            boolean capture = node != null && node.path != null && !values.containsKey(node.path);
+            String text = null;
+            char c = json.charAt(pos);
+            if ((c == '{' || c == '[') && (node == null || node.children.isEmpty()))
+                skip();
+            else if (c == '{')
+                object(node);
+            else if (c == '[')
+                array(node);
+            else if (c == '"')
+                text = string(capture);
+            else
+                literal();
+            if (capture) {
+                values.put(node.path, text != null ? text : json.substring(start, pos));
+                --remaining;
+            }
+        }
+
+        private void object(PathNode node) {
+            ++pos;
+            skipWhitespace();
+            if (json.charAt(pos) == '}') {
+                ++pos;
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                if (json.charAt(pos) != '"')
+                    throw new IllegalArgumentException("Expected member name");
+                boolean onPath = node != null && !node.children.isEmpty();
+                String name = string(onPath);
+                skipWhitespace();
+                if (json.charAt(pos++) != ':')
+                    throw new IllegalArgumentException("Expected ':'");
+                value(onPath ? node.children.get("." + name) : null);
+                if (remaining == 0)
+                    return;
+                skipWhitespace();
+                char c = json.charAt(pos++);
+                if (c == '}')
+                    return;
+                if (c != ',')
+                    throw new IllegalArgumentException("Expected ',' or '}'");
+            }
+        }
+
+        private void array(PathNode node) {
+            ++pos;
+            skipWhitespace();
+            if (json.charAt(pos) == ']') {
+                ++pos;
+                return;
+            }
+            for (int index = 0; ; ++index) {
+                value(node == null || node.children.isEmpty() ? null : node.children.get("[" + index + "]"));
+                if (remaining == 0)
+                    return;
+                skipWhitespace();
+                char c = json.charAt(pos++);
+                if (c == ']')
+                    return;
+                if (c != ',')
+                    throw new IllegalArgumentException("Expected ',' or ']'");
+            }
+        }
+
+        /**
+         * Read a string.
+         *
+         * @param unescape Whether the string is needed.
+         * @return The unescaped string, or <code>null</code> if the string isn't needed.
+         */
+        private String string(boolean unescape) {
+            int start = ++pos;
+            StringBuilder sb = null;
+            while (true) {
+                char c = json.charAt(pos);
+                if (c == '"') {
+                    String text = !unescape ? null : sb == null ? json.substring(start, pos) : sb.append(json, start, pos).toString();
+                    ++pos;
+                    return text;
+                }
+                if (c == '\\' && unescape) {
+                    if (sb == null)
+                        sb = new StringBuilder();
+                    sb.append(json, start, pos);
+                    char escaped = json.charAt(pos + 1);
+                    pos += 2;
+                    switch (escaped) {
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'u':
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: sb.append(escaped); break;
+                    }
+                    start = pos;
+                } else {
+                    pos += c == '\\' ? 2 : 1;
+                }
+            }
+        }
+
+        /**
+         * Skip an object or array without reading it recursively, keeping the closing brackets of the open objects and arrays in a stack.
+         * Only the brackets are checked, not the members and elements within them.
+         */
+        private void skip() {
+            StringBuilder closing = new StringBuilder();
+            do {
+                char c = json.charAt(pos);
+                if (c == '"') {
+                    string(false);
+                    continue;
+                }
+                if (c == '{') {
+                    closing.append('}');
+                } else if (c == '[') {
+                    closing.append(']');
+                } else if (c == '}' || c == ']') {
+                    if (closing.charAt(closing.length() - 1) != c)
+                        throw new IllegalArgumentException("Unexpected '" + c + "'");
+                    closing.setLength(closing.length() - 1);
+                }
+                ++pos;
+            } while (closing.length() > 0);
+        }
+
+        /**
+         * Read a number, true, false or null.
+         */
+        private void literal() {
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0)
+                ++pos;
+            if (pos == start)
+                throw new IllegalArgumentException("Expected value");
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+                ++pos;
+        }
+    }
+}
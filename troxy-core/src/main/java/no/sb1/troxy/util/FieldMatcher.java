@@ -0,0 +1,196 @@
+package no.sb1.troxy.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A regular expression matching a field in a request or response.
+ * Most regular expressions in recordings and filters are trivial, like "^$", "^.*$", "^&lt;literal&gt;$" and "^&lt;literal&gt;.*$".
+ * These are recognized when compiled and checked with {@link String#equals(Object)} and {@link String#startsWith(String)}, or not checked at all,
+ * while the remaining regular expressions are evaluated by a {@link java.util.regex.Matcher}.
+ * The result is always the same as for the regular expression.
+ * <p>
+ * FieldMatchers are compiled with {@link Pattern#DOTALL}, like all regular expressions in recordings and filters,
+ * and identical regular expressions share the same instance as long as the instance is in use.
+ */
+public final class FieldMatcher {
+    /**
+     * How the value is checked.
+     */
+    private enum Kind {
+        /**
+         * Any value matches.
+         */
+        ALWAYS,
+        /**
+         * The value must equal the literal.
+         */
+        EQUALS,
+        /**
+         * The value must start with the literal.
+         */
+        PREFIX,
+        /**
+         * The regular expression must be evaluated.
+         */
+        REGEX
+    }
+
+    /**
+     * Compiled FieldMatchers, keyed by the regular expression.
+     * The key is the String held by the Pattern of the FieldMatcher, so the entry is removed when the FieldMatcher no longer is in use.
+     */
+    private static final Map<String, WeakReference<FieldMatcher>> compiled = new WeakHashMap<>();
+    /**
+     * The compiled regular expression.
+     */
+    private final Pattern pattern;
+    /**
+     * How the value is checked when searching for the regular expression (i.e. {@link java.util.regex.Matcher#find()}).
+     */
+    private final Kind findKind;
+    /**
+     * How the value is checked when the regular expression must match the entire value (i.e. {@link java.util.regex.Matcher#matches()}).
+     */
+    private final Kind matchesKind;
+    /**
+     * The literal for EQUALS and PREFIX checks.
+     */
+    private final String literal;
+
+    /**
+     * Private constructor, use compile(String) to create a FieldMatcher.
+     *
+     * @param pattern The compiled regular expression.
+     */
+    private FieldMatcher(Pattern pattern) {
+        this.pattern = pattern;
+        String regex = pattern.pattern();
+        boolean anchoredStart = regex.startsWith("^");
+        boolean anchoredEnd = endsWithUnescaped(regex, "$");
+        String body = regex.substring(anchoredStart ? 1 : 0, Math.max(anchoredStart ? 1 : 0, regex.length() - (anchoredEnd ? 1 : 0)));
+        boolean anyTail = endsWithUnescaped(body, ".*");
+        String text = Cache.unescapeLiteral("^" + (anyTail ? body.substring(0, body.length() - 2) : body) + "$");
+        if (pattern.flags() != Pattern.DOTALL || text == null) {
+            findKind = Kind.REGEX;
+            matchesKind = Kind.REGEX;
+        } else if (anyTail) {
+            findKind = text.isEmpty() ? Kind.ALWAYS : anchoredStart ? Kind.PREFIX : Kind.REGEX;
+            matchesKind = text.isEmpty() ? Kind.ALWAYS : Kind.PREFIX;
+        } else {
+            findKind = anchoredStart && anchoredEnd ? Kind.EQUALS : anchoredStart ? Kind.PREFIX : text.isEmpty() && !anchoredEnd ? Kind.ALWAYS : Kind.REGEX;
+            matchesKind = Kind.EQUALS;
+        }
+        literal = text;
+    }
+
+    /**
+     * Compile a regular expression, or get the already compiled FieldMatcher for the regular expression.
+     *
+     * @param regex The regular expression.
+     * @return The FieldMatcher for the regular expression.
+     * @throws java.util.regex.PatternSyntaxException If the regular expression is invalid.
+     */
+    public static FieldMatcher compile(String regex) {
+        synchronized (compiled) {
+            WeakReference<FieldMatcher> reference = compiled.get(regex);
+            FieldMatcher fieldMatcher = reference == null ? null : reference.get();
+            if (fieldMatcher != null)
+                return fieldMatcher;
+        }
+        /* compile outside the lock, another thread may compile the same regular expression meanwhile but only one is kept */
+        FieldMatcher fieldMatcher = new FieldMatcher(Pattern.compile(regex, Pattern.DOTALL));
+        synchronized (compiled) {
+            WeakReference<FieldMatcher> reference = compiled.get(regex);
+            FieldMatcher existing = reference == null ? null : reference.get();
+            if (existing != null)
+                return existing;
+            compiled.put(fieldMatcher.pattern.pattern(), new WeakReference<>(fieldMatcher));
+            return fieldMatcher;
+        }
+    }
+
+    /**
+     * Get the compiled regular expression, needed for extracting groups.
+     *
+     * @return The compiled regular expression.
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Check whether the value is checked without evaluating the regular expression when searching.
+     * The regular expression of a trivial FieldMatcher has no groups, except group 0 which is the part of the value that matched.
+     *
+     * @return <code>true</code> if the value is checked without evaluating the regular expression, <code>false</code> otherwise.
+     */
+    public boolean isTrivial() {
+        return findKind != Kind.REGEX;
+    }
+
+    /**
+     * Search for the regular expression in the value, same as <code>getPattern().matcher(value).find()</code>.
+     *
+     * @param value The value.
+     * @return <code>true</code> if the regular expression is found in the value, <code>false</code> otherwise.
+     */
+    public boolean find(String value) {
+        switch (findKind) {
+            case ALWAYS:
+                return true;
+            case EQUALS:
+                /* "$" also matches before a line terminator at the end of the value */
+                return value.equals(literal) || (value.length() > literal.length() && value.startsWith(literal) && literal.equals(Cache.stripLineTerminator(value)));
+            case PREFIX:
+                return value.startsWith(literal);
+            default:
+                return pattern.matcher(value).find();
+        }
+    }
+
+    /**
+     * Match the regular expression with the entire value, same as <code>getPattern().matcher(value).matches()</code>.
+     *
+     * @param value The value.
+     * @return <code>true</code> if the regular expression matches the entire value, <code>false</code> otherwise.
+     */
+    public boolean matches(String value) {
+        switch (matchesKind) {
+            case ALWAYS:
+                return true;
+            case EQUALS:
+                return value.equals(literal);
+            case PREFIX:
+                return value.startsWith(literal);
+            default:
+                return pattern.matcher(value).matches();
+        }
+    }
+
+    /**
+     * Check whether a text ends with the given suffix, and the suffix isn't escaped by a backslash.
+     *
+     * @param text   The text.
+     * @param suffix The suffix.
+     * @return <code>true</code> if the text ends with the suffix and the suffix isn't escaped, <code>false</code> otherwise.
+     */
+    private static boolean endsWithUnescaped(String text, String suffix) {
+        if (!text.endsWith(suffix))
+            return false;
+        int backslashes = 0;
+        for (int i = text.length() - suffix.length() - 1; i >= 0 && text.charAt(i) == '\\'; --i)
+            ++backslashes;
+        return backslashes % 2 == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return pattern.pattern();
+    }
+}
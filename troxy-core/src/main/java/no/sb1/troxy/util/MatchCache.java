@@ -0,0 +1,264 @@
+package no.sb1.troxy.util;
+
+import no.sb1.troxy.http.common.Request;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of search results, used in front of the Cache tree to skip regular expression evaluation for repeated requests.
+ * Entries are keyed by the eight request fields, and are only valid for the generation of the tree they were found in.
+ * The entries are spread over several segments, each a small LRU map with its own lock, to reduce contention between threads.
+ * The key keeps the header and content of the request, so requests larger than a given size are never cached,
+ * which bounds the memory used to roughly the capacity times the max request size.
+ */
+class MatchCache {
+    /**
+     * Amount of segments the entries are spread over.
+     */
+    private static final int SEGMENTS = 16;
+    /**
+     * The segments, each a LRU map with a part of the capacity.
+     */
+    private final Segment[] segments = new Segment[SEGMENTS];
+    /**
+     * Max amount of entries in the cache.
+     */
+    private final int capacity;
+    /**
+     * Max amount of characters in the header and content of a cached request.
+     */
+    private final int maxRequestSize;
+    /**
+     * Amount of searches answered by the cache.
+     */
+    private final LongAdder hits = new LongAdder();
+    /**
+     * Amount of searches not answered by the cache.
+     */
+    private final LongAdder misses = new LongAdder();
+    /**
+     * Amount of searches for requests too large to be cached.
+     */
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * Create a cache with the given capacity.
+     *
+     * @param capacity       Max amount of entries in the cache.
+     * @param maxRequestSize Max amount of characters in the header and content of a cached request.
+     */
+    MatchCache(int capacity, int maxRequestSize) {
+        this.capacity = capacity;
+        this.maxRequestSize = maxRequestSize;
+        for (int i = 0; i < SEGMENTS; ++i)
+            segments[i] = new Segment(Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS));
+    }
+
+    /**
+     * Check whether the request is small enough to be cached, counting it as skipped if it isn't.
+     *
+     * @param request The request.
+     * @return <code>true</code> if the request may be cached, <code>false</code> otherwise.
+     */
+    boolean accepts(Request request) {
+        if ((long) request.getHeader().length() + request.getContent().length() <= maxRequestSize)
+            return true;
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * Get the search results for the given request.
+     *
+     * @param key        The fingerprint of the request.
+     * @param generation The generation of the tree being searched.
+     * @return A copy of the search results, or <code>null</code> if the request isn't cached for this generation.
+     */
+    List<Cache.Result> get(Fingerprint key, long generation) {
+        Entry entry;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            entry = segment.get(key);
+        }
+        if (entry == null || entry.generation != generation) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new ArrayList<>(entry.results);
+    }
+
+    /**
+     * Store the search results for the given request.
+     *
+     * @param key        The fingerprint of the request.
+     * @param generation The generation of the tree that was searched.
+     * @param results    The search results.
+     */
+    void put(Fingerprint key, long generation, List<Cache.Result> results) {
+        Entry entry = new Entry(generation, new ArrayList<>(results));
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * Remove all entries, done when the tree is replaced as the entries no longer are valid.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the max amount of entries in the cache.
+     *
+     * @return Max amount of entries in the cache.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the max amount of characters in the header and content of a cached request.
+     *
+     * @return Max amount of characters in the header and content of a cached request.
+     */
+    int getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    /**
+     * Get the amount of entries in the cache.
+     *
+     * @return The amount of entries in the cache.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the amount of searches answered by the cache.
+     *
+     * @return The amount of searches answered by the cache.
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the amount of searches not answered by the cache.
+     *
+     * @return The amount of searches not answered by the cache.
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the amount of searches for requests too large to be cached.
+     *
+     * @return The amount of searches for requests too large to be cached.
+     */
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    private Segment segmentFor(Fingerprint key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * The eight fields of a Request, used as key in the cache.
+     * The hash is calculated once, while equality compares the actual values so different requests never share an entry.
+     */
+    static final class Fingerprint {
+        private final String protocol;
+        private final String host;
+        private final String port;
+        private final String path;
+        private final String query;
+        private final String method;
+        private final String header;
+        private final String content;
+        private final int hash;
+
+        Fingerprint(Request request) {
+            protocol = request.getProtocol();
+            host = request.getHost();
+            port = request.getPort();
+            path = request.getPath();
+            query = request.getQuery();
+            method = request.getMethod();
+            header = request.getHeader();
+            content = request.getContent();
+            int h = protocol.hashCode();
+            h = 31 * h + host.hashCode();
+            h = 31 * h + port.hashCode();
+            h = 31 * h + path.hashCode();
+            h = 31 * h + query.hashCode();
+            h = 31 * h + method.hashCode();
+            h = 31 * h + header.hashCode();
+            h = 31 * h + content.hashCode();
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            Fingerprint f = obj instanceof Fingerprint ? (Fingerprint) obj : null;
+            return f != null && hash == f.hash && path.equals(f.path) && query.equals(f.query) && method.equals(f.method) && host.equals(f.host) && port.equals(f.port) && protocol.equals(f.protocol) && header.equals(f.header) && content.equals(f.content);
+        }
+    }
+
+    /**
+     * Search results for a generation of the tree.
+     * The Matchers in the results are bound to values equal to the request, and are only read after the search, so they may be shared.
+     */
+    private static final class Entry {
+        private final long generation;
+        private final List<Cache.Result> results;
+
+        private Entry(long generation, List<Cache.Result> results) {
+            this.generation = generation;
+            this.results = results;
+        }
+    }
+
+    /**
+     * A part of the cache, evicting the least recently used entry when full.
+     */
+    private static final class Segment extends LinkedHashMap<Fingerprint, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Fingerprint, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
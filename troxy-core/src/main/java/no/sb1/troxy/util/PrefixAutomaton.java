@@ -0,0 +1,197 @@
+package no.sb1.troxy.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An automaton telling which of a list of regular expressions may match a value, in a single pass over the value.
+ * Every regular expression anchored with "^" must start with a literal prefix, and the automaton is a trie of these prefixes.
+ * Walking the trie with the value gives the regular expressions whose prefix the value starts with, and regular expressions without a known prefix.
+ * Only those regular expressions can match the value and need to be evaluated to find out whether they match and to extract named groups.
+ */
+class PrefixAutomaton {
+    /**
+     * Characters that have a special meaning in a regular expression and ends the literal prefix.
+     */
+    private static final String METACHARACTERS = "*+[](){}$.?^|";
+    /**
+     * Characters that make the preceding character optional, and thus not part of the required prefix.
+     */
+    private static final String OPTIONAL_QUANTIFIERS = "?*{";
+    /**
+     * Flags that don't change how a literal prefix is matched.
+     */
+    private static final int PREFIX_SAFE_FLAGS = Pattern.DOTALL | Pattern.UNIX_LINES;
+    /**
+     * Max length of a prefix, a longer prefix rarely tells regular expressions apart better and only makes the automaton bigger.
+     */
+    private static final int MAX_PREFIX_LENGTH = 128;
+    /**
+     * The initial state, for the empty prefix.
+     */
+    private final State root = new State();
+
+    /**
+     * Create an automaton for the given regular expressions.
+     *
+     * @param patterns The regular expressions, their position in the list is used as their index in the result of {@link #candidates(String)}.
+     */
+    PrefixAutomaton(List<Pattern> patterns) {
+        for (int i = 0; i < patterns.size(); ++i) {
+            String prefix = requiredPrefix(patterns.get(i));
+            State state = root;
+            for (int c = 0; c < prefix.length(); ++c)
+                state = state.getOrAddNext(prefix.charAt(c));
+            state.accept.set(i);
+        }
+        root.complete(new BitSet());
+    }
+
+    /**
+     * Find the regular expressions that may match the given value.
+     * The returned set must not be modified.
+     *
+     * @param value The value to match.
+     * @return The indexes of the regular expressions that may match the value.
+     */
+    BitSet candidates(String value) {
+        State state = root;
+        for (int i = 0; i < value.length() && state.labels.length > 0; ++i) {
+            int next = Arrays.binarySearch(state.labels, value.charAt(i));
+            if (next < 0)
+                break;
+            state = state.next[next];
+        }
+        return state.accept;
+    }
+
+    /**
+     * Find the literal text a value must start with for the regular expression to match the value.
+     *
+     * @param pattern The regular expression.
+     * @return The literal prefix (possibly shortened), or an empty string if the value may start with anything.
+     */
+    static String requiredPrefix(Pattern pattern) {
+        String regex = pattern.pattern();
+        if ((pattern.flags() & ~PREFIX_SAFE_FLAGS) != 0 || !regex.startsWith("^") || hasTopLevelAlternation(regex))
+            return "";
+        StringBuilder sb = new StringBuilder();
+        int i = 1;
+        while (i < regex.length() && sb.length() < MAX_PREFIX_LENGTH) {
+            char c = regex.charAt(i);
+            int length = 1;
+            if (c == '\\') {
+                /* only an escaped punctuation character is a literal, escaped letters and digits have special meanings */
+                if (i + 1 >= regex.length() || regex.charAt(i + 1) >= 128 || Character.isLetterOrDigit(regex.charAt(i + 1)))
+                    break;
+                length = 2;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else if (Character.isHighSurrogate(c) && i + 1 < regex.length()) {
+                /* a quantifier after a surrogate pair applies to the whole pair */
+                length = 2;
+            }
+            if (i + length < regex.length() && OPTIONAL_QUANTIFIERS.indexOf(regex.charAt(i + length)) >= 0)
+                break;
+            sb.append(regex, c == '\\' ? i + 1 : i, i + length);
+            i += length;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check whether a regular expression has an alternation outside groups, in which case it's not anchored by the leading "^" alone.
+     * A "|" inside a character class is regarded as an alternation, as is a regular expression we're unable to follow.
+     *
+     * @param regex The regular expression.
+     * @return <code>false</code> if the regular expression surely has no alternation outside groups, <code>true</code> otherwise.
+     */
+    private static boolean hasTopLevelAlternation(String regex) {
+        int groupDepth = 0;
+        int classDepth = 0;
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end < 0)
+                        return groupDepth > 0 || classDepth > 0;
+                    i = end + 1;
+                } else {
+                    ++i;
+                }
+            } else if (c == '[') {
+                ++classDepth;
+                /* a "]" first in a class is a literal */
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^')
+                    ++i;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']')
+                    ++i;
+            } else if (c == ']' && classDepth > 0) {
+                --classDepth;
+            } else if (c == '|' && (groupDepth == 0 || classDepth > 0)) {
+                return true;
+            } else if (classDepth == 0 && c == '(') {
+                ++groupDepth;
+            } else if (classDepth == 0 && c == ')') {
+                --groupDepth;
+            }
+        }
+        return groupDepth != 0 || classDepth != 0;
+    }
+
+    /**
+     * A state in the automaton, reached after reading a part of a prefix.
+     */
+    private static final class State {
+        /**
+         * The characters leading to the next states, sorted.
+         */
+        private char[] labels = new char[0];
+        /**
+         * The next states, in the same order as the labels.
+         */
+        private State[] next = new State[0];
+        /**
+         * The regular expressions that may match a value leading to this state.
+         */
+        private final BitSet accept = new BitSet();
+
+        /**
+         * Get the next state for the given character, adding it if it doesn't exist.
+         *
+         * @param c The character.
+         * @return The next state.
+         */
+        private State getOrAddNext(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            if (index >= 0)
+                return next[index];
+            index = -index - 1;
+            List<State> states = new ArrayList<>(Arrays.asList(next));
+            State state = new State();
+            states.add(index, state);
+            char[] newLabels = new char[labels.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            newLabels[index] = c;
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            labels = newLabels;
+            next = states.toArray(new State[0]);
+            return state;
+        }
+
+        /**
+         * Add the regular expressions accepted by the states leading to this state, as they also may match values reaching this state.
+         *
+         * @param inherited The regular expressions accepted by the states leading to this state.
+         */
+        private void complete(BitSet inherited) {
+            accept.or(inherited);
+            for (State state : next)
+                state.complete(accept);
+        }
+    }
+}
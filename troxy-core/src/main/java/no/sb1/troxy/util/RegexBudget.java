@@ -0,0 +1,226 @@
+package no.sb1.troxy.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how much work a regular expression may do when matched with a value.
+ * The value is wrapped in a CharSequence counting how many times the regular expression reads a character,
+ * and when the budget for the value is used up the match is aborted with an {@link ExceededException}.
+ * This stops catastrophic backtracking from holding a thread for seconds or minutes.
+ * <p>
+ * The budget is given as how many times each character of the value may be read on average, with a minimum for short values.
+ * Regular expressions exceeding the budget are remembered, so they can be listed and fixed.
+ */
+public final class RegexBudget {
+    /**
+     * Logger for this class.
+     */
+    private static final Logger log = LoggerFactory.getLogger(RegexBudget.class);
+    /**
+     * The least amount of reads allowed for a match, regardless of the length of the value.
+     */
+    private static final long MIN_READS = 100_000;
+    /**
+     * Max amount of recordings listed for a slow pattern.
+     */
+    static final int MAX_RECORDINGS = 20;
+    /**
+     * Regular expressions that exceeded the budget, keyed by field and regular expression.
+     */
+    private final Map<String, SlowPattern> slowPatterns = new ConcurrentHashMap<>();
+    /**
+     * How many times each character of the value may be read on average, 0 disables the budget.
+     */
+    private volatile long readsPerChar;
+
+    /**
+     * Create a budget.
+     *
+     * @param readsPerChar How many times each character of the value may be read on average, 0 disables the budget.
+     */
+    RegexBudget(long readsPerChar) {
+        this.readsPerChar = readsPerChar;
+    }
+
+    /**
+     * Get how many times each character of the value may be read on average.
+     *
+     * @return How many times each character of the value may be read on average, 0 if the budget is disabled.
+     */
+    public long getReadsPerChar() {
+        return readsPerChar;
+    }
+
+    /**
+     * Set how many times each character of the value may be read on average.
+     *
+     * @param readsPerChar How many times each character of the value may be read on average, 0 disables the budget.
+     */
+    void setReadsPerChar(long readsPerChar) {
+        this.readsPerChar = Math.max(0, readsPerChar);
+    }
+
+    /**
+     * Limit the reads of the value, for use with {@link java.util.regex.Pattern#matcher(CharSequence)}.
+     * Matching the returned CharSequence throws an {@link ExceededException} when the budget is used up.
+     *
+     * @param value The value.
+     * @return The value wrapped in a CharSequence counting the reads, or the value itself if the budget is disabled.
+     */
+    public CharSequence limit(String value) {
+        return limit(value, new LimitedCharSequence());
+    }
+
+    /**
+     * Limit the reads of the value like {@link #limit(String)}, reusing the given CharSequence rather than creating a new one.
+     * The given CharSequence must not be in use by another match.
+     *
+     * @param value    The value.
+     * @param reusable The CharSequence to reuse.
+     * @return The reused CharSequence wrapping the value, or the value itself if the budget is disabled.
+     */
+    CharSequence limit(String value, LimitedCharSequence reusable) {
+        long perChar = readsPerChar;
+        if (perChar <= 0)
+            return value;
+        long reads = value.length() > Long.MAX_VALUE / perChar ? Long.MAX_VALUE : Math.max(MIN_READS, perChar * value.length());
+        return reusable.reset(value, reads);
+    }
+
+    /**
+     * Remember that a regular expression exceeded the budget, or caused a stack overflow while matching.
+     *
+     * @param field      The field the regular expression was matched with.
+     * @param regex      The regular expression.
+     * @param recordings Supplies the recordings using the regular expression, only called the first time.
+     */
+    void exceeded(String field, String regex, Supplier<Collection<String>> recordings) {
+        SlowPattern slowPattern = slowPatterns.computeIfAbsent(field + '\u0000' + regex, key -> new SlowPattern(field, regex, recordings.get()));
+        slowPattern.count.increment();
+        slowPattern.lastExceeded = System.currentTimeMillis();
+        long count = slowPattern.count.sum();
+        /* log the first time and then for every power of ten, a slow pattern may be hit by every request */
+        long remainder = count;
+        while (remainder > 1 && remainder % 10 == 0)
+            remainder /= 10;
+        if (remainder == 1) {
+            log.warn("Regular expression for field {} exceeded the budget of {} reads per character ({} times), treated as not matching. Pattern: «{}», recordings: {}",
+                    field, readsPerChar, count, regex, slowPattern.recordings);
+        }
+    }
+
+    /**
+     * Get the regular expressions that exceeded the budget, the most frequent first.
+     *
+     * @return Field, regular expression, recordings, amount of times and last time the budget was exceeded, for each regular expression.
+     */
+    public List<Map<String, Object>> getSlowPatterns() {
+        List<SlowPattern> sorted = new ArrayList<>(slowPatterns.values());
+        sorted.sort(Comparator.comparingLong((SlowPattern slowPattern) -> slowPattern.count.sum()).reversed());
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (SlowPattern slowPattern : sorted) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("field", slowPattern.field);
+            entry.put("pattern", slowPattern.regex);
+            entry.put("recordings", slowPattern.recordings);
+            entry.put("count", slowPattern.count.sum());
+            entry.put("lastExceeded", slowPattern.lastExceeded);
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * Forget the regular expressions that exceeded the budget.
+     */
+    public void clearSlowPatterns() {
+        slowPatterns.clear();
+    }
+
+    /**
+     * Thrown when a regular expression has used up the budget for a match.
+     * The exception has no stack trace, as it's part of the normal flow when a regular expression is too slow.
+     */
+    public static final class ExceededException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private ExceededException() {
+            super("Regular expression exceeded the budget", null, false, false);
+        }
+    }
+
+    /**
+     * A value counting down the budget for each character read.
+     * Not thread safe, each match must limit the value anew.
+     */
+    static final class LimitedCharSequence implements CharSequence {
+        private String value = "";
+        /**
+         * Remaining reads.
+         */
+        private long remaining;
+
+        /**
+         * Wrap another value, with a new budget.
+         *
+         * @param value     The value.
+         * @param remaining The amount of reads allowed.
+         * @return This CharSequence.
+         */
+        LimitedCharSequence reset(String value, long remaining) {
+            this.value = value;
+            this.remaining = remaining;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return value.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (--remaining < 0)
+                throw new ExceededException();
+            return value.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            /* used for extracting groups after the match, which is not limited */
+            return value.substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    /**
+     * A regular expression that exceeded the budget.
+     */
+    private static final class SlowPattern {
+        private final String field;
+        private final String regex;
+        private final Collection<String> recordings;
+        private final LongAdder count = new LongAdder();
+        private volatile long lastExceeded;
+
+        private SlowPattern(String field, String regex, Collection<String> recordings) {
+            this.field = field;
+            this.regex = regex;
+            this.recordings = recordings;
+        }
+    }
+}
@@ -3,25 +3,37 @@ package no.sb1.troxy.util;
 import no.sb1.troxy.common.Config;
 import no.sb1.troxy.common.Mode;
 import no.sb1.troxy.http.common.ConnectorAddr;
-import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.EncodedResponse;
+import no.sb1.troxy.http.common.FilterChain;
+import no.sb1.troxy.http.common.FilterContext;
+import no.sb1.troxy.http.common.HeaderFields;
 import no.sb1.troxy.http.common.Request;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.StaticResponse;
 import no.sb1.troxy.jetty.TroxyJettyServer;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import no.sb1.troxy.record.v3.ResponseTemplate;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.ssl.AliasedX509ExtendedKeyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyManagementException;
@@ -30,6 +42,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -38,9 +53,22 @@ import java.util.stream.Collectors;
 public class SimulatorHandler extends AbstractHandler {
     private static final Logger log = LoggerFactory.getLogger(SimulatorHandler.class);
     private static final Logger simLog = LoggerFactory.getLogger("simulator");
+    /**
+     * Size of the buffers the content of a request is read into.
+     */
+    private static final int CHUNK_SIZE = 32_768;
+    /**
+     * Timer for sending delayed responses, shared by all handlers.
+     * The tasks only start writing the response, which Jetty does without blocking, so a single thread can serve any amount of delayed responses.
+     */
+    private static final ScheduledExecutorService DELAY_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "troxy-delay-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final ModeHolder modeHolder;
-    private final List<Class<Filter>> filterClasses;
+    private final FilterChain filterChain;
     private final Config config;
     private final TroxyFileHandler troxyFileHandler;
     private final Cache cache;
@@ -73,13 +101,13 @@ public class SimulatorHandler extends AbstractHandler {
 
 
     public SimulatorHandler(final ModeHolder modeholder,
-                            final List<Class<Filter>> filterClasses,
+                            final FilterChain filterChain,
                             final Config config,
                             final TroxyFileHandler troxyFileHandler,
                             Cache cache,
                             TroxyJettyServer server) {
         this.modeHolder = modeholder;
-        this.filterClasses = filterClasses;
+        this.filterChain = filterChain;
         this.config = config;
         this.troxyFileHandler = troxyFileHandler;
         this.cache = cache;
@@ -90,6 +118,8 @@ public class SimulatorHandler extends AbstractHandler {
 
     /**
      * Handle an incoming request.
+     * The request is handled asynchronously, the content is read as it arrives and the response is written as the client is able to receive it,
+     * so a slow client doesn't hold on to a thread while the content is transferred.
      *
      * @param target          {@inheritDoc}
      * @param jettyRequest    {@inheritDoc}
@@ -101,38 +131,50 @@ public class SimulatorHandler extends AbstractHandler {
     @Override
     public void handle(String target, org.eclipse.jetty.server.Request jettyRequest, HttpServletRequest servletRequest, HttpServletResponse servletResponse) throws IOException, ServletException {
         simLog.info("Received request: {}", servletRequest);
+        long received = System.currentTimeMillis();
+        long receivedNanos = System.nanoTime();
+        /* let jetty know we're handling the request, the response is sent when the content is read */
+        jettyRequest.setHandled(true);
+        AsyncContext asyncContext = servletRequest.startAsync();
+        asyncContext.setTimeout(0);
+        ServletInputStream in = servletRequest.getInputStream();
+        in.setReadListener(new ContentReader(in, servletRequest.getContentLength(), jettyRequest.getHttpChannel().getByteBufferPool(), asyncContext, received, receivedNanos));
+    }
+
+    /**
+     * Handle an incoming request when the content is read.
+     *
+     * @param asyncContext  The context of the request.
+     * @param content       The content of the request.
+     * @param received      The time the request was received (milliseconds since epoch).
+     * @param receivedNanos The time the request was received, from {@link System#nanoTime()}.
+     * @throws IOException If the response couldn't be sent.
+     */
+    private void handle(AsyncContext asyncContext, byte[] content, long received, long receivedNanos) throws IOException {
+        HttpServletRequest servletRequest = (HttpServletRequest) asyncContext.getRequest();
+        HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
         /* handle request */
-        Request request = new Request(servletRequest, System.currentTimeMillis());
+        Request request = new Request(servletRequest, content, received);
         Response remoteResponse = null;
 
-        /* instantiate filters */
-        List<Filter> filters = new ArrayList<>();
-        for (Class<Filter> filterClass : filterClasses) {
-            try {
-                filters.add(filterClass.newInstance());
-            } catch (InstantiationException e) {
-                log.warn("Unable to instantiate filter \"{}\"", filterClass.getName(), e);
-            } catch (IllegalAccessException e) {
-                log.warn("Unable to access filter \"{}\"", filterClass.getName(), e);
-            }
-        }
+        /* the filters are shared, state for this request is kept in the context */
+        FilterContext filterContext = filterChain.newContext();
 
         /* run filters "filterClientRequest()" on the request */
-        for (Filter filter : filters)
-            filter.doFilterRequest(request, false);
+        filterContext.filterRequest(request, false);
 
         /* find response in cache */
         Mode mode = modeHolder.mode;
+        boolean allowMultipleMatchingRecordings = Boolean.parseBoolean(config.getValue("troxy.allow_multiple_matching_recordings", "false"));
         List<Cache.Result> cacheResults = new ArrayList<>();
         if (mode == Mode.PLAYBACK || mode == Mode.PLAYBACK_OR_RECORD || mode == Mode.PLAYBACK_OR_PASSTHROUGH)
-            cacheResults = cache.searchCache(request);
+            cacheResults = allowMultipleMatchingRecordings ? cache.searchBestMatch(request) : cache.isFirstMatch() ? cache.searchFirstMatch(request) : cache.searchCache(request);
 
         /* connect to remote server */
         boolean unableToReachHost = false;
         if (mode == Mode.PASSTHROUGH || mode == Mode.RECORD || ((mode == Mode.PLAYBACK_OR_RECORD || mode == Mode.PLAYBACK_OR_PASSTHROUGH) && cacheResults.isEmpty())) {
             /* run filters "filterServerRequest()" on the request */
-            for (Filter filter : filters)
-                filter.doFilterRequest(request, true);
+            filterContext.filterRequest(request, true);
 
             HttpURLConnection con = null;
             try {
@@ -154,8 +196,7 @@ public class SimulatorHandler extends AbstractHandler {
 
             if (remoteResponse != null) {
                 /* run filters "filterServerResponse()" on the response before saving to cache */
-                for (Filter filter : filters)
-                    filter.doFilterResponse(remoteResponse, true);
+                filterContext.filterResponse(remoteResponse, true);
 
                 RequestPattern requestPattern = new RequestPattern(request);
                 ResponseTemplate responseTemplate = new ResponseTemplate(remoteResponse);
@@ -167,8 +208,7 @@ public class SimulatorHandler extends AbstractHandler {
                 /* save recording if in a record mode */
                 if (mode == Mode.RECORD || mode == Mode.PLAYBACK_OR_RECORD) {
                     /* filter new recording */
-                    for (Filter filter : filters)
-                        filter.doFilterRecording(recording);
+                    filterContext.filterRecording(recording);
                     /* if in record mode, see if we already have an identical request, if so, add response (unless it's identical to last response in recording) */
                     if (mode == Mode.RECORD) {
                         for (Cache.Result cacheResult : cache.searchCache(request)) {
@@ -220,24 +260,14 @@ public class SimulatorHandler extends AbstractHandler {
             String msg = "No recording matching request found in cache for request: {}";
             simLog.info(msg);
             response = createTroxyErrorResponse(msg);
-        } else if (cacheResults.size() > 1 && !Boolean.parseBoolean(config.getValue("troxy.allow_multiple_matching_recordings", "false"))) {
+        } else if (cacheResults.size() > 1 && !allowMultipleMatchingRecordings) {
             String msg = String.format("Multiple recordings match request: %s", cacheResults.stream().map(result -> result.getRecording().getFilename()).collect(Collectors.joining(", ")));
             simLog.warn(msg);
             response = createTroxyErrorResponse(msg);
         } else {
-            Cache.Result result;
-            if (cacheResults.size() > 1) {
-                simLog.info("Returning the assumed most unique recording of multiple matching recordings: {}", cacheResults.stream().map(tmpResult -> tmpResult.getRecording().getFilename()).collect(Collectors.joining(", ")));
-                result = cacheResults.stream().max((o1, o2) -> {
-                    RequestPattern r1 = o1.getRecording().getRequestPattern();
-                    RequestPattern r2 = o2.getRecording().getRequestPattern();
-                    int r1Length = r1.getProtocol().length() + r1.getHost().length() + r1.getPort().length() + r1.getPath().length() + r1.getQuery().length() + r1.getMethod().length() + r1.getHeader().length() + r1.getContent().length();
-                    int r2Length = r2.getProtocol().length() + r2.getHost().length() + r2.getPort().length() + r2.getPath().length() + r2.getQuery().length() + r2.getMethod().length() + r2.getHeader().length() + r2.getContent().length();
-                    return r1Length - r2Length;
-                }).get();
-            } else {
-                result = cacheResults.get(0);
-            }
+            /* when multiple matching recordings are allowed the cache only returns the one with the highest priority and most specific patterns */
+            Cache.Result result = cacheResults.get(0);
+            simLog.info("Returning recording: {}", result.getRecording().getFilename());
             response = result.getRecording().getNextResponseTemplate().createResponse(result.getVariables());
             if (response == null) {
                 String msg = "No response returned from matching recording (" + result.getRecording().getFilename() + ") , either all responses in recording have weight set to 0 or there are no responses in the recording";
@@ -245,56 +275,61 @@ public class SimulatorHandler extends AbstractHandler {
                 response = createTroxyErrorResponse(msg);
             }
             /* run filters "filterClientResponse()" on the response before returning it to client */
-            for (Filter filter : filters)
-                filter.doFilterResponse(response, false);
+            filterContext.filterResponse(response, false);
         }
 
-        /* send response to client */
-        byte[] contentBytes = response.getContent().getBytes(response.discoverCharset());
+        /* send response to client, a response from a template without variables is prepared and one with variables is already encoded */
+        StaticResponse.Prepared prepared = response instanceof StaticResponse ? ((StaticResponse) response).getPrepared() : null;
+        EncodedResponse encodedResponse = response instanceof EncodedResponse && ((EncodedResponse) response).isEncoded() ? (EncodedResponse) response : null;
+        byte[] contentBytes = prepared != null || encodedResponse != null ? null : response.getContent().getBytes(response.discoverCharset());
         /* status */
-        try {
-            servletResponse.setStatus(Integer.parseInt(response.getCode()));
-        } catch (NumberFormatException e) {
-            simLog.info("Unable to parse Response code as an Integer, setting Response code to {}", HttpURLConnection.HTTP_BAD_GATEWAY);
-            servletResponse.setStatus(HttpURLConnection.HTTP_BAD_GATEWAY);
+        if (prepared != null) {
+            servletResponse.setStatus(prepared.getStatus());
+        } else {
+            try {
+                servletResponse.setStatus(Integer.parseInt(response.getCode()));
+            } catch (NumberFormatException e) {
+                simLog.info("Unable to parse Response code as an Integer, setting Response code to {}", HttpURLConnection.HTTP_BAD_GATEWAY);
+                servletResponse.setStatus(HttpURLConnection.HTTP_BAD_GATEWAY);
+            }
         }
-        /* headers */
-        StringTokenizer st = new StringTokenizer(response.getHeader(), "\n");
-        while (st.hasMoreTokens()) {
-            String both = st.nextToken();
-            int pos = both.indexOf(": ");
-            String key = both.substring(0, pos);
+        /* headers, parsed when the recording was loaded unless they've been modified */
+        HeaderFields headerFields = response.getHeaderFields();
+        for (int i = 0; i < headerFields.size(); ++i) {
+            String key = headerFields.getName(i);
             /* skip Content-Length, we'll set that manually */
             if ("Content-Length".equals(key))
                 continue;
-            servletResponse.setHeader(key, both.substring(pos + 2));
+            servletResponse.setHeader(key, headerFields.getValue(i));
         }
-        servletResponse.setContentLength(contentBytes.length);
+        int contentLength = prepared != null ? prepared.getContentLength() : encodedResponse != null ? encodedResponse.getContentLength() : contentBytes.length;
+        servletResponse.setContentLength(contentLength);
 
-        /* delay the response if there's a delay */
-        try {
-            if (response.getDelay() > 0) {
-                long timeSpent = System.currentTimeMillis() - request.getReceived();
-                long delay = response.getDelay() - timeSpent;
-                if (delay >= 0) {
-                    simLog.info("Delaying response {}ms", delay);
-                    Thread.sleep(delay);
-                } else {
-                    simLog.info("Response was to be delayed {}ms, but Troxy already spent {}ms so far handling the request", response.getDelay(), timeSpent);
-                }
+        ByteBuffer[] contentBuffers = prepared != null ? new ByteBuffer[]{prepared.getBody()} : encodedResponse != null ? encodedResponse.getContentBuffers() : new ByteBuffer[]{ByteBuffer.wrap(contentBytes)};
+        simLog.debug("Response header: {}", response.getHeader());
+        if (simLog.isDebugEnabled())
+            simLog.debug("Response content: {}", response.getContent());
+
+        /* delay the response if there's a delay, without holding on to the thread while waiting */
+        if (response.getDelay() > 0) {
+            long timeSpent = System.nanoTime() - receivedNanos;
+            long delay = TimeUnit.MILLISECONDS.toNanos(response.getDelay()) - timeSpent;
+            if (delay >= 0) {
+                simLog.info("Delaying response {}ms", TimeUnit.NANOSECONDS.toMillis(delay));
+                Response delayedResponse = response;
+                DELAY_TIMER.schedule(() -> {
+                    try {
+                        servletResponse.getOutputStream().setWriteListener(new ContentWriter(asyncContext, contentBuffers, contentLength, request, delayedResponse));
+                    } catch (IOException | IllegalStateException e) {
+                        simLog.warn("Unable to send delayed response to client", e);
+                        asyncContext.complete();
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+                return;
             }
-        } catch (InterruptedException e) {
-            simLog.warn("Failed delaying response to client", e);
+            simLog.info("Response was to be delayed {}ms, but Troxy already spent {}ms so far handling the request", response.getDelay(), TimeUnit.NANOSECONDS.toMillis(timeSpent));
         }
-
-        /* then finally write content */
-        simLog.debug("Response header: {}", response.getHeader());
-        simLog.debug("Response content: {}", response.getContent());
-        servletResponse.getOutputStream().write(contentBytes);
-
-        /* let jetty know we've handled the request */
-        jettyRequest.setHandled(true);
-        simLog.info("Response sent {}ms after receiving request: {}", System.currentTimeMillis() - request.getReceived(), response);
+        servletResponse.getOutputStream().setWriteListener(new ContentWriter(asyncContext, contentBuffers, contentLength, request, response));
     }
 
     /**
@@ -349,12 +384,10 @@ public class SimulatorHandler extends AbstractHandler {
         /* set method */
         con.setRequestMethod(request.getMethod());
         /* set headers */
-        StringTokenizer st = new StringTokenizer(request.getHeader(), "\n");
-        while (st.hasMoreTokens()) {
-            String both = st.nextToken();
-            int pos = both.indexOf(": ");
-            String key = both.substring(0, pos);
-            String value = both.substring(pos + 2);
+        HeaderFields headerFields = request.getHeaderFields();
+        for (int i = 0; i < headerFields.size(); ++i) {
+            String key = headerFields.getName(i);
+            String value = headerFields.getValue(i);
             if ("Host".equals(key)) {
                 simLog.debug("Setting host to: {} (was: {})", request.getHost(), value);
                 value = request.getHost();
@@ -390,6 +423,196 @@ public class SimulatorHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Reads the content of a request as it arrives and handles the request when all the content is read.
+     * When the request has a Content-Length the content is read straight into an array of that size,
+     * otherwise (or if the client sends more than it said) into buffers from Jetty's pool.
+     */
+    private final class ContentReader implements ReadListener {
+        private final ServletInputStream in;
+        /**
+         * The start of the content, sized from the Content-Length of the request up to {@link Request#MAX_PREALLOCATED_CONTENT}, <code>null</code> if the length isn't known.
+         */
+        private final byte[] sized;
+        private final ByteBufferPool pool;
+        private final AsyncContext asyncContext;
+        private final long received;
+        private final long receivedNanos;
+        /**
+         * The buffers read into, in order.
+         */
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        /**
+         * The buffer currently read into.
+         */
+        private ByteBuffer chunk;
+        /**
+         * Total amount of bytes read.
+         */
+        private int length;
+
+        private ContentReader(ServletInputStream in, int contentLength, ByteBufferPool pool, AsyncContext asyncContext, long received, long receivedNanos) {
+            this.in = in;
+            /* don't trust the client with more than the preallocated size, content beyond that is read into buffers from the pool */
+            this.sized = contentLength >= 0 ? new byte[Math.min(contentLength, Request.MAX_PREALLOCATED_CONTENT)] : null;
+            this.pool = pool;
+            this.asyncContext = asyncContext;
+            this.received = received;
+            this.receivedNanos = receivedNanos;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (in.isReady() && !in.isFinished()) {
+                int read;
+                if (sized != null && length < sized.length) {
+                    read = in.read(sized, length, sized.length - length);
+                } else {
+                    if (chunk == null || !chunk.hasRemaining()) {
+                        chunk = pool.acquire(CHUNK_SIZE, false);
+                        chunk.clear();
+                        chunks.add(chunk);
+                    }
+                    read = in.read(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    if (read > 0)
+                        chunk.position(chunk.position() + read);
+                }
+                if (read < 0)
+                    break;
+                length += read;
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException {
+            byte[] content;
+            int offset = 0;
+            if (sized != null && length == sized.length) {
+                /* all content fit in the preallocated buffer, no copying needed */
+                content = sized;
+            } else {
+                content = new byte[length];
+                if (sized != null) {
+                    offset = Math.min(length, sized.length);
+                    System.arraycopy(sized, 0, content, 0, offset);
+                }
+            }
+            for (ByteBuffer buffer : chunks) {
+                buffer.flip();
+                int remaining = buffer.remaining();
+                buffer.get(content, offset, remaining);
+                offset += remaining;
+            }
+            release();
+            try {
+                handle(asyncContext, content, received, receivedNanos);
+            } catch (Exception | StackOverflowError e) {
+                /* don't let Jetty handle it, that would end up in onError() and an empty response without any error status */
+                log.warn("Failed handling request", e);
+                HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+                try {
+                    if (!servletResponse.isCommitted())
+                        servletResponse.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR);
+                } catch (IOException | IllegalStateException sendError) {
+                    log.warn("Unable to send error response to client", sendError);
+                } finally {
+                    asyncContext.complete();
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.warn("Failed reading content from request", t);
+            release();
+            asyncContext.complete();
+        }
+
+        /**
+         * Return the buffers to the pool.
+         */
+        private void release() {
+            for (ByteBuffer buffer : chunks)
+                pool.release(buffer);
+            chunks.clear();
+            chunk = null;
+        }
+    }
+
+    /**
+     * Writes the content of a response as the client is able to receive it, and completes the request when all the content is written.
+     */
+    private static final class ContentWriter implements WriteListener {
+        private final AsyncContext asyncContext;
+        private final ServletOutputStream out;
+        private final ByteBuffer[] content;
+        /**
+         * The Content-Length sent to the client, Jetty closes the output when this many bytes are written.
+         */
+        private final int contentLength;
+        private final Request request;
+        private final Response response;
+        /**
+         * Index of the next buffer to write.
+         */
+        private int index;
+        /**
+         * Amount of bytes written.
+         */
+        private int written;
+
+        private ContentWriter(AsyncContext asyncContext, ByteBuffer[] content, int contentLength, Request request, Response response) throws IOException {
+            this.asyncContext = asyncContext;
+            this.out = asyncContext.getResponse().getOutputStream();
+            this.content = content;
+            this.contentLength = contentLength;
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            while (out.isReady()) {
+                /* writing anything after the last byte fails, the output is already closed */
+                if (index == content.length || written >= contentLength) {
+                    asyncContext.complete();
+                    simLog.info("Response sent {}ms after receiving request: {}", System.currentTimeMillis() - request.getReceived(), response);
+                    return;
+                }
+                ByteBuffer buffer = content[index++];
+                int remaining = buffer.remaining();
+                if (remaining == 0)
+                    continue;
+                written += remaining;
+                write(buffer);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            simLog.warn("Failed sending response to client", t);
+            asyncContext.complete();
+        }
+
+        /**
+         * Write a buffer, handing it directly to Jetty so the content isn't copied into the output buffer.
+         *
+         * @param buffer The content.
+         * @throws IOException If the content couldn't be written.
+         */
+        private void write(ByteBuffer buffer) throws IOException {
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).write(buffer);
+            } else if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                out.write(bytes);
+            }
+        }
+    }
+
     /**
      * A TrustManager that can't be trusted. It accepts any certificate!
      */
@@ -33,6 +33,8 @@ import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 import no.sb1.troxy.http.common.Request;
 import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.record.v3.ContentPredicate;
+import no.sb1.troxy.record.v3.HeaderPredicate;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import no.sb1.troxy.record.v3.ResponseTemplate;
@@ -54,6 +56,7 @@ public class TroxyFileHandler {
         COMMENT("[COMMENT]"),
         COMMENT_END("[COMMENT_END]"),
         RESPONSE_STRATEGY("RESPONSE_STRATEGY="),
+        PRIORITY("PRIORITY="),
         REQUEST("---REQUEST---"),
         PROTOCOL("PROTOCOL="),
         HOST("HOST="),
@@ -61,6 +64,11 @@ public class TroxyFileHandler {
         PATH("PATH="),
         QUERY("QUERY="),
         METHOD("METHOD="),
+        HEADER_EQUALS("HEADER_EQUALS="),
+        HEADER_REGEX("HEADER_REGEX="),
+        HEADER_IGNORE_OTHERS("HEADER_IGNORE_OTHERS="),
+        CONTENT_PATH("CONTENT_PATH="),
+        CONTENT_IGNORE_OTHERS("CONTENT_IGNORE_OTHERS="),
         HEADER("[HEADER]"),
         HEADER_END("[HEADER_END]"),
         CONTENT("[CONTENT]"),
@@ -276,10 +284,17 @@ public class TroxyFileHandler {
         sb.append("* If the comment contains \"[COMMENT_END]\", this must be escaped as \"[[COMMENT_END]]\".\n");
         sb.append("* If the header contains \"[HEADER_END]\", this must be escaped as \"[[HEADER_END]]\".\n");
         sb.append("* If the content contains \"[CONTENT_END]\", this must be escaped as \"[[CONTENT_END]]\".\n");
+        sb.append("* A single request header can be matched with \"HEADER_EQUALS=<name>: <value>\" or \"HEADER_REGEX=<name>: <regular expression>\".\n");
+        sb.append("* With \"HEADER_IGNORE_OTHERS=true\" only these single headers are matched, and the regular expression for the header is ignored.\n");
+        sb.append("* A value in JSON or XML content can be matched with \"CONTENT_PATH=<$.json.path or /xml/path>: <regular expression>\".\n");
+        sb.append("* With \"CONTENT_IGNORE_OTHERS=true\" only these values are matched, and the regular expression for the content is ignored.\n");
+        sb.append("* When several recordings match a request, \"PRIORITY=<number>\" decides which is used (highest first, default 0), then the most specific patterns.\n");
         sb.append("* Any text outside a field will be ignored, and erased if recording is modified in the user interface.\n");
         sb.append('\n').append(Tag.RECORDING);
         sb.append('\n').append(Tag.COMMENT).append('\n').append(recording.getComment().replace(Tag.COMMENT_END.value, "[" + Tag.COMMENT_END.value + "]")).append('\n').append(Tag.COMMENT_END);
         sb.append('\n').append(Tag.RESPONSE_STRATEGY).append(recording.getResponseStrategy());
+        if (recording.getPriority() != 0)
+            sb.append('\n').append(Tag.PRIORITY).append(recording.getPriority());
 
         sb.append('\n');
         sb.append('\n').append(Tag.REQUEST);
@@ -290,6 +305,14 @@ public class TroxyFileHandler {
         sb.append('\n').append(Tag.PATH).append(requestPattern.getPath());
         sb.append('\n').append(Tag.QUERY).append(requestPattern.getQuery());
         sb.append('\n').append(Tag.METHOD).append(requestPattern.getMethod());
+        for (HeaderPredicate headerPredicate : requestPattern.getHeaderPredicates())
+            sb.append('\n').append(headerPredicate.isRegex() ? Tag.HEADER_REGEX : Tag.HEADER_EQUALS).append(headerPredicate.getName()).append(": ").append(headerPredicate.getValue());
+        if (requestPattern.isIgnoreOtherHeaders())
+            sb.append('\n').append(Tag.HEADER_IGNORE_OTHERS).append(true);
+        for (ContentPredicate contentPredicate : requestPattern.getContentPredicates())
+            sb.append('\n').append(Tag.CONTENT_PATH).append(contentPredicate.getPath()).append(": ").append(contentPredicate.getRegex());
+        if (requestPattern.isIgnoreOtherContent())
+            sb.append('\n').append(Tag.CONTENT_IGNORE_OTHERS).append(true);
         sb.append('\n').append(Tag.HEADER).append('\n').append(requestPattern.getHeader().replace(Tag.HEADER_END.value, "[" + Tag.HEADER_END.value + "]")).append('\n').append(Tag.HEADER_END);
         sb.append('\n').append(Tag.CONTENT).append('\n').append(requestPattern.getContent().replace(Tag.CONTENT_END.value, "[" + Tag.CONTENT_END.value + "]")).append('\n').append(Tag.CONTENT_END);
 
@@ -391,6 +414,8 @@ public class TroxyFileHandler {
                         stopTag = Tag.COMMENT_END;
                     } else if (metaTag == Tag.RECORDING && line.startsWith(Tag.RESPONSE_STRATEGY.value)) {
                         recording.setResponseStrategy(Recording.ResponseStrategy.valueOf(line.substring(Tag.RESPONSE_STRATEGY.value.length())));
+                    } else if (metaTag == Tag.RECORDING && line.startsWith(Tag.PRIORITY.value)) {
+                        recording.setPriority(Integer.parseInt(line.substring(Tag.PRIORITY.value.length()).trim()));
                     } else if (line.startsWith(Tag.REQUEST.value)) {
                         metaTag = Tag.REQUEST;
                     } else if (line.startsWith(Tag.PROTOCOL.value)) {
@@ -435,6 +460,24 @@ public class TroxyFileHandler {
                         } else if (metaTag == Tag.ORIGINAL_REQUEST) {
                             recording.getRequestPattern().getOriginalRequest().setMethod(method);
                         }
+                    } else if (metaTag == Tag.REQUEST && (line.startsWith(Tag.HEADER_EQUALS.value) || line.startsWith(Tag.HEADER_REGEX.value))) {
+                        boolean regex = line.startsWith(Tag.HEADER_REGEX.value);
+                        String predicate = line.substring(regex ? Tag.HEADER_REGEX.value.length() : Tag.HEADER_EQUALS.value.length());
+                        int colon = predicate.indexOf(':');
+                        if (colon <= 0)
+                            throw new IllegalArgumentException("Header condition must be on the form \"<name>: <value>\": " + line);
+                        String value = predicate.substring(colon + 1);
+                        recording.getRequestPattern().getHeaderPredicates().add(new HeaderPredicate(predicate.substring(0, colon).trim(), value.startsWith(" ") ? value.substring(1) : value, regex));
+                    } else if (metaTag == Tag.REQUEST && line.startsWith(Tag.HEADER_IGNORE_OTHERS.value)) {
+                        recording.getRequestPattern().setIgnoreOtherHeaders(Boolean.parseBoolean(line.substring(Tag.HEADER_IGNORE_OTHERS.value.length()).trim()));
+                    } else if (metaTag == Tag.REQUEST && line.startsWith(Tag.CONTENT_PATH.value)) {
+                        String predicate = line.substring(Tag.CONTENT_PATH.value.length());
+                        int separator = predicate.indexOf(": ");
+                        if (separator <= 0 || !ContentExtractor.isValidPath(predicate.substring(0, separator)))
+                            throw new IllegalArgumentException("Content condition must be on the form \"<$.json.path or /xml/path>: <regular expression>\": " + line);
+                        recording.getRequestPattern().getContentPredicates().add(new ContentPredicate(predicate.substring(0, separator), predicate.substring(separator + 2)));
+                    } else if (metaTag == Tag.REQUEST && line.startsWith(Tag.CONTENT_IGNORE_OTHERS.value)) {
+                        recording.getRequestPattern().setIgnoreOtherContent(Boolean.parseBoolean(line.substring(Tag.CONTENT_IGNORE_OTHERS.value.length()).trim()));
                     } else if (line.equals(Tag.HEADER.value)) {
                         multiLine.setLength(0);
                         stopTag = Tag.HEADER_END;
@@ -0,0 +1,208 @@
+package no.sb1.troxy.http.common;
+
+import no.sb1.troxy.common.Config;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FilterContextTest {
+
+    private static Config config;
+
+    @BeforeAll
+    static void setUp() {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("filter.StateFilter.enabled", "true");
+        settings.put("filter.StateFilter.request.path", "^/state.*$");
+        settings.put("filter.StateFilter.special.request.path", "^/state/special$");
+        settings.put("filter.CountingLegacyFilter.enabled", "true");
+        settings.put("filter.CountingLegacyFilter.request.path", "^/legacy$");
+        settings.put("filter.RewriteFilter.enabled", "true");
+        settings.put("filter.RewriteFilter.request.path", "^/rewrite$");
+        settings.put("filter.RewriteFilter.config.path", "/rewritten");
+        settings.put("filter.RewrittenFilter.enabled", "true");
+        settings.put("filter.RewrittenFilter.request.path", "^/rewritten$");
+        settings.put("filter.RewrittenFilter.request.method", "^GET$");
+        config = new Config(settings);
+    }
+
+    @Test
+    void sharedFilterKeepsStateInContext() {
+        StateFilter filter = new StateFilter();
+        filter.reload(config);
+        assertTrue(filter.isEnabled());
+        List<SharedFilter> filters = Collections.singletonList(filter);
+
+        /* interleave two request/response-pairs on the same filter instance */
+        FilterContext first = new FilterContext(filters);
+        FilterContext second = new FilterContext(filters);
+        first.filterRequest(testRequest("/state/first"), false);
+        second.filterRequest(testRequest("/state/special"), false);
+        Response firstResponse = new Response();
+        Response secondResponse = new Response();
+        second.filterResponse(secondResponse, false);
+        first.filterResponse(firstResponse, false);
+
+        assertEquals("null:/state/first", firstResponse.getContent());
+        assertEquals("special:/state/special", secondResponse.getContent());
+    }
+
+    @Test
+    void sharedFilterNotInvokedWhenPatternsDontMatch() {
+        StateFilter filter = new StateFilter();
+        filter.reload(config);
+        FilterContext context = new FilterContext(Collections.singletonList(filter));
+        context.filterRequest(testRequest("/other"), false);
+        Response response = new Response();
+        response.setContent("unchanged");
+        context.filterResponse(response, false);
+        assertEquals("unchanged", response.getContent());
+    }
+
+    @Test
+    void legacyFilterInstantiatedOncePerContext() {
+        LegacyFilterAdapter adapter = new LegacyFilterAdapter(CountingLegacyFilter.class);
+        adapter.reload(config);
+        assertTrue(adapter.isEnabled());
+        assertEquals(CountingLegacyFilter.class.getName(), adapter.getName());
+        FilterChain chain = new FilterChain();
+        chain.setFilters(Collections.singletonList(adapter));
+        int instances = CountingLegacyFilter.instances.get();
+
+        FilterContext context = chain.newContext();
+        context.filterRequest(testRequest("/legacy"), false);
+        context.filterRequest(testRequest("/legacy"), true);
+        Response response = new Response();
+        context.filterResponse(response, false);
+        assertEquals("/legacy:2:null", response.getContent());
+        assertEquals(instances + 1, CountingLegacyFilter.instances.get());
+
+        /* the patterns of the legacy filter are evaluated by the context, no instance is created when they don't match */
+        FilterContext unmatched = chain.newContext();
+        unmatched.filterRequest(testRequest("/other"), false);
+        Response unmatchedResponse = new Response();
+        unmatchedResponse.setContent("unchanged");
+        unmatched.filterResponse(unmatchedResponse, false);
+        assertEquals("unchanged", unmatchedResponse.getContent());
+        assertEquals(instances + 1, CountingLegacyFilter.instances.get());
+        assertEquals(3L, chain.getStatistics().get(0).get("invocations"));
+    }
+
+    @Test
+    void sharedRegexReevaluatedWhenFieldChanged() {
+        RewriteFilter rewrite = new RewriteFilter();
+        rewrite.reload(config);
+        RewrittenFilter rewritten = new RewrittenFilter();
+        rewritten.reload(config);
+        /* "^/rewritten$" is evaluated both before and after the path is rewritten */
+        FilterChain chain = new FilterChain();
+        chain.setFilters(Arrays.asList(rewritten, rewrite, rewritten));
+
+        FilterContext context = chain.newContext();
+        Request request = testRequest("/rewrite");
+        context.filterRequest(request, false);
+        assertEquals("/rewritten", request.getPath());
+        Response response = new Response();
+        context.filterResponse(response, false);
+        assertEquals("rewritten", response.getContent());
+
+        List<Map<String, Object>> statistics = chain.getStatistics();
+        assertEquals(3, statistics.size());
+        assertEquals(RewriteFilter.class.getName(), statistics.get(1).get("filter"));
+        assertEquals(0L, statistics.get(0).get("invocations"));
+        assertEquals(2L, statistics.get(1).get("invocations"));
+        assertEquals(2L, statistics.get(2).get("invocations"));
+    }
+
+    private static Request testRequest(String path) {
+        final Request request = new Request();
+        request.setProtocol("http");
+        request.setHost("example.com");
+        request.setPort("80");
+        request.setPath(path);
+        request.setQuery("");
+        request.setMethod("GET");
+        request.setHeader("");
+        request.setContent("");
+        return request;
+    }
+
+    static class StateFilter extends SharedFilter {
+        @Override
+        protected void loadConfig(Map<String, Map<String, String>> configuration) {
+        }
+
+        @Override
+        protected void filterClientRequest(Request request, FilterContext context) {
+            context.setState(context.getGroup() + ":" + request.getPath());
+        }
+
+        @Override
+        protected void filterClientResponse(Response response, FilterContext context) {
+            response.setContent(context.getState());
+        }
+    }
+
+    static class RewriteFilter extends SharedFilter {
+        private volatile String path;
+
+        @Override
+        protected void loadConfig(Map<String, Map<String, String>> configuration) {
+            path = configuration.get(null).get("path");
+        }
+
+        @Override
+        protected void filterClientRequest(Request request, FilterContext context) {
+            request.setPath(path);
+        }
+    }
+
+    static class RewrittenFilter extends SharedFilter {
+        @Override
+        protected void loadConfig(Map<String, Map<String, String>> configuration) {
+        }
+
+        @Override
+        protected void filterClientResponse(Response response, FilterContext context) {
+            response.setContent("rewritten");
+        }
+    }
+
+    public static class CountingLegacyFilter extends Filter {
+        static final AtomicInteger instances = new AtomicInteger();
+        private String path;
+        private int requests;
+
+        public CountingLegacyFilter() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        protected void loadConfig(Map<String, Map<String, String>> configuration) {
+        }
+
+        @Override
+        protected void filterClientRequest(Request request, String group) {
+            path = request.getPath();
+            ++requests;
+        }
+
+        @Override
+        protected void filterServerRequest(Request request, String group) {
+            ++requests;
+        }
+
+        @Override
+        protected void filterClientResponse(Response response, String group) {
+            response.setContent(path + ":" + requests + ":" + group);
+        }
+    }
+}
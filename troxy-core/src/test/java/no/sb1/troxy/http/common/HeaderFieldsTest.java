@@ -0,0 +1,63 @@
+package no.sb1.troxy.http.common;
+
+import no.sb1.troxy.record.v3.ResponseTemplate;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeaderFieldsTest {
+
+    @Test
+    @DisplayName("createResponse should give the header fields split up when the template is compiled, with the variables of the values inserted")
+    void responseTemplateHeaderFields() {
+        Map<String, Pattern> patterns = new HashMap<>();
+        patterns.put("PATH", Pattern.compile("^/customer/(?<id>\\d+)$"));
+        ResponseTemplate template = new ResponseTemplate();
+        template.setHeader("Content-Type: text/plain\n\nLocation: /customer/$id$/accounts\nbroken\nX-Env:$ENV:TROXY_TEST_UNSET_VARIABLE$");
+        template.compile(patterns);
+
+        Response response = template.createResponse(match(patterns, "/customer/42"));
+        assertEquals("Content-Type: text/plain\n\nLocation: /customer/42/accounts\nbroken\nX-Env:null", response.getHeader());
+        HeaderFields fields = response.getHeaderFields();
+        assertEquals("Content-Type: text/plain\nLocation: /customer/42/accounts\nX-Env: null", fields.toString());
+        assertEquals(fields.toString(), HeaderFields.parse(response.getHeader()).toString());
+        /* modifying the header (e.g. in a filter) parses the fields from the new header */
+        response.setHeader("X-Modified: yes");
+        assertEquals(1, response.getHeaderFields().size());
+        assertEquals("yes", response.getHeaderFields().getValue(0));
+
+        /* a variable in the name of a field is inserted before the header is parsed */
+        template.setHeader("X-$id$: customer");
+        template.compile(patterns);
+        assertEquals("X-42: customer", template.createResponse(match(patterns, "/customer/42")).getHeaderFields().toString());
+    }
+
+    @Test
+    @DisplayName("getHeaderFields should split up the header of a request, and getHeaderValue should look up a field ignoring case")
+    void requestHeaderFields() {
+        Request request = new Request();
+        request.setHeader("Accept: */*\nHost:example.com");
+        assertEquals("Accept: */*\nHost: example.com", request.getHeaderFields().toString());
+        assertEquals("example.com", request.getHeaderValue("host"));
+    }
+
+    /**
+     * Match the path pattern with the path, like the cache does when it finds the recording.
+     * @param patterns The patterns of the request.
+     * @param path The path of the request.
+     * @return The matchers used as variables for the response.
+     */
+    private static Map<String, Matcher> match(Map<String, Pattern> patterns, String path) {
+        Map<String, Matcher> variables = new HashMap<>();
+        Matcher matcher = patterns.get("PATH").matcher(path);
+        assertTrue(matcher.matches());
+        variables.put("PATH", matcher);
+        return variables;
+    }
+}
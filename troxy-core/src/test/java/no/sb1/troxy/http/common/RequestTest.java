@@ -0,0 +1,57 @@
+package no.sb1.troxy.http.common;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestTest {
+
+    @Test
+    void simpleURLParsedLikeURL() {
+        String[] urls = {
+                "http://example.com/path",
+                "https://example.com:8443/a/b.troxy",
+                "HTTP://Example.com",
+                "http://example.com:/x",
+                "http://example.com:0/x",
+                "https://example.com:080/",
+                "http:///path",
+                "http://example.com/a:b/c",
+        };
+        for (String url : urls) {
+            Request simple = new Request();
+            assertTrue(simple.parseSimpleURL(url), url);
+            Request parsed = new Request();
+            parsed.parseURL(url, "/" + url);
+            assertEquals(parsed.getProtocol(), simple.getProtocol(), url);
+            assertEquals(parsed.getHost(), simple.getHost(), url);
+            assertEquals(parsed.getPort(), simple.getPort(), url);
+            assertEquals(parsed.getPath(), simple.getPath(), url);
+        }
+    }
+
+    @Test
+    void unusualURLLeftForURL() {
+        String[] urls = {
+                "http://user@example.com/x",
+                "http://[::1]:8080/x",
+                "http://example.com/a#b",
+                "http://example.com:99999999999/x",
+                "http://example.com:8o/x",
+                "ftp://example.com/x",
+                "example.com/x",
+        };
+        for (String url : urls)
+            assertFalse(new Request().parseSimpleURL(url), url);
+    }
+
+    @Test
+    void normalizeLineBreaks() {
+        String text = "no line breaks";
+        assertSame(text, Request.normalizeLineBreaks(text));
+        assertEquals("a\nb\nc", Request.normalizeLineBreaks("a\r\nb\r\nc"));
+        assertEquals("\n\n", Request.normalizeLineBreaks("\r\n\r\n"));
+        assertEquals("a\r\nb\n\n", Request.normalizeLineBreaks("a\r\r\nb\n\r\n"));
+        assertEquals("a\rb\n", Request.normalizeLineBreaks("a\rb\n"));
+    }
+}
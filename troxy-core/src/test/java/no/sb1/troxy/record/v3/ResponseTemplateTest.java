@@ -0,0 +1,114 @@
+package no.sb1.troxy.record.v3;
+
+import no.sb1.troxy.http.common.EncodedResponse;
+import no.sb1.troxy.http.common.Response;
+import no.sb1.troxy.http.common.StaticResponse;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseTemplateTest {
+
+    @Test
+    @DisplayName("createResponse should insert the groups the variables of a template are bound to when the template is compiled")
+    void compiledResponseTemplate() {
+        Map<String, Pattern> patterns = new LinkedHashMap<>();
+        patterns.put("PATH", Pattern.compile("^/[(]?customer/(?<id>\\d+)/(\\w+)$"));
+        patterns.put("$.ACCOUNT.ID", Pattern.compile("^(?<accountId>\\d+)$"));
+        Map<String, Matcher> variables = match(patterns, "/customer/42/savings", "7");
+        ResponseTemplate template = new ResponseTemplate();
+        template.setContent("id=$id$ type=$PATH:2$ account=$accountId$ env=$ENV:TROXY_TEST_UNSET_VARIABLE$ missing=$nope$ price=$$5");
+        template.compile(patterns);
+        assertEquals("id=42 type=savings account=7 env=null missing=null price=$5", template.createResponse(variables).getContent());
+
+        /* the static text is encoded in advance with the character set of the header, the content is only decoded if asked for */
+        template.setHeader("Content-Type: text/plain; charset=UTF-8");
+        template.setContent("bl\u00e5b\u00e6r $id$ \u00f8l");
+        template.compile(patterns);
+        Response response = template.createResponse(variables);
+        assertTrue(response instanceof EncodedResponse);
+        EncodedResponse encoded = (EncodedResponse) response;
+        assertEquals("bl\u00e5b\u00e6r 42 \u00f8l".getBytes(StandardCharsets.UTF_8).length, encoded.getContentLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : encoded.getContentBuffers())
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        assertEquals("bl\u00e5b\u00e6r 42 \u00f8l", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("bl\u00e5b\u00e6r 42 \u00f8l", encoded.getContent());
+        assertTrue(encoded.isEncoded());
+        encoded.setHeader("Content-Type: text/plain; charset=ISO-8859-1");
+        assertFalse(encoded.isEncoded());
+        assertEquals("bl\u00e5b\u00e6r 42 \u00f8l", encoded.getContent());
+
+        /* a template edited after it was compiled looks up the variables when the response is created */
+        template.setContent("$PATH:id$-$2$");
+        assertEquals("42-savings", template.createResponse(variables).getContent());
+    }
+
+    @Test
+    @DisplayName("createResponse should send a template without variables as prepared when the template is compiled, until the response is modified")
+    void staticResponseTemplate() {
+        ResponseTemplate template = new ResponseTemplate();
+        template.setCode("200");
+        template.setHeader("Content-Type: text/plain; charset=UTF-8\nContent-Length: 1\nX-Price: $$5");
+        template.setContent("bl\u00e5b\u00e6r");
+        template.compile(new LinkedHashMap<>());
+
+        Response response = template.createResponse(new HashMap<>());
+        assertTrue(response instanceof StaticResponse);
+        StaticResponse.Prepared prepared = ((StaticResponse) response).getPrepared();
+        assertNotNull(prepared);
+        assertEquals(200, prepared.getStatus());
+        assertEquals(3, response.getHeaderFields().size());
+        assertEquals("X-Price", response.getHeaderFields().getName(2));
+        assertEquals("$5", response.getHeaderFields().getValue(2));
+        assertEquals("bl\u00e5b\u00e6r", response.getContent());
+        byte[] expected = "bl\u00e5b\u00e6r".getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, prepared.getContentLength());
+        ByteBuffer body = prepared.getBody();
+        assertTrue(body.isReadOnly());
+        assertTrue(body.isDirect());
+        byte[] bytes = new byte[body.remaining()];
+        body.get(bytes);
+        assertArrayEquals(expected, bytes);
+        /* every response gets its own view of the body */
+        assertEquals(expected.length, prepared.getBody().remaining());
+        assertSame(prepared, ((StaticResponse) template.createResponse(new HashMap<>())).getPrepared());
+
+        /* a filter modifying the response drops the prepared response */
+        response.setContent("changed");
+        assertNull(((StaticResponse) response).getPrepared());
+        assertEquals("changed", response.getContent());
+
+        /* a template with variables is rendered for each response */
+        template.setContent("$1$");
+        template.compile(new LinkedHashMap<>());
+        assertFalse(template.createResponse(new HashMap<>()) instanceof StaticResponse);
+    }
+
+    /**
+     * Match the patterns with the values, like the Cache does for the fields of a request.
+     * @param patterns The patterns, keyed by field.
+     * @param values The value for each pattern, in order.
+     * @return The matchers, keyed by field.
+     */
+    private static Map<String, Matcher> match(Map<String, Pattern> patterns, String... values) {
+        Map<String, Matcher> variables = new LinkedHashMap<>();
+        int i = 0;
+        for (Map.Entry<String, Pattern> pattern : patterns.entrySet()) {
+            Matcher matcher = pattern.getValue().matcher(values[i++]);
+            assertTrue(matcher.matches());
+            variables.put(pattern.getKey(), matcher);
+        }
+        return variables;
+    }
+}
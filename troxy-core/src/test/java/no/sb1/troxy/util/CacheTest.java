@@ -1,6 +1,8 @@
 package no.sb1.troxy.util;
 
 import no.sb1.troxy.http.common.Request;
+import no.sb1.troxy.record.v3.ContentPredicate;
+import no.sb1.troxy.record.v3.HeaderPredicate;
 import no.sb1.troxy.record.v3.Recording;
 import no.sb1.troxy.record.v3.RequestPattern;
 import no.sb1.troxy.record.v3.ResponseTemplate;
@@ -9,7 +11,11 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -239,6 +245,514 @@ class CacheTest {
         assertEquals(0, results.size());
     }
 
+    @Test
+    @DisplayName("searchCache should find literal and regex branches and keep the variables from the matching branch")
+    void literalAndRegexBranches() {
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/api/v1/accounts$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/(?<id>\\d+)/accounts$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/42/accounts\\?$", "^$", "^$"));
+
+        List<Cache.Result> results = cache.searchCache(testRequest("GET", "http", "example.com", "80", "/api/v1/accounts", "", ""));
+        assertEquals(1, results.size());
+        assertEquals("^/api/v1/accounts$", results.get(0).getRecording().getRequestPattern().getPath());
+
+        results = cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42/accounts", "", ""));
+        assertEquals(1, results.size());
+        assertEquals("42", results.get(0).getVariables().get("PATH").group("id"));
+
+        results = cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42/accounts?", "", ""));
+        assertEquals(1, results.size());
+        assertEquals("/customer/42/accounts?", results.get(0).getVariables().get("PATH").group());
+    }
+
+    @Test
+    @DisplayName("searchCache should match a literal branch when the value ends with a line terminator, like the regular expression does")
+    void literalBranchWithTrailingLineTerminator() {
+        cache.addRecoding(testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/$", "^<>Content</>$", "^$"));
+
+        assertEquals(1, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", "<>Content</>\n", "")).size());
+        assertEquals(1, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", "<>Content</>\r\n", "")).size());
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", "<>Content</>\n\n", "")).size());
+    }
+
+    @Test
+    @DisplayName("reloadRecordings should replace the recordings in the cache, adding a recording should keep the existing ones")
+    void reloadRecordingsReplacesTree() {
+        putRecordingsInCache("test-recording.troxy");
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/$", "^$", "^$"));
+        assertEquals(2, cache.getRecordings().size());
+
+        Cache.reloadRecordings(cache, new TroxyFileHandler("src/test/java/no/sb1/troxy/util", ""), Collections.singleton("test-recording-not-match.troxy"));
+
+        assertEquals(Collections.singleton("test-recording-not-match.troxy"), cache.getRecordings().stream().map(Recording::getFilename).collect(Collectors.toSet()));
+        assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/", "", "")).size());
+    }
+
+    @Test
+    @DisplayName("removeRecording and replaceRecording should only change the affected recording")
+    void removeAndReplaceRecording() {
+        Recording accounts = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts$", "^$", "^$");
+        accounts.setFilename("accounts.troxy");
+        Recording customers = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customers$", "^$", "^$");
+        customers.setFilename("customers.troxy");
+        cache.addRecoding(accounts);
+        cache.addRecoding(customers);
+
+        assertTrue(cache.removeRecording("accounts.troxy"));
+        assertFalse(cache.removeRecording("accounts.troxy"));
+        assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/accounts", "", "")).size());
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customers", "", "")).size());
+
+        Recording editedCustomers = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customers/(?<id>\\d+)$", "^$", "^$");
+        editedCustomers.setFilename("customers.troxy");
+        cache.replaceRecording(editedCustomers);
+        assertEquals(Collections.singleton(editedCustomers), cache.getRecordings());
+        assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customers", "", "")).size());
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customers/42", "", "")).size());
+
+        assertTrue(cache.removeRecording("customers.troxy"));
+        assertTrue(cache.getRecordings().isEmpty());
+    }
+
+    @Test
+    @DisplayName("loadRecordings should load the same recordings when reading files in parallel")
+    void loadRecordingsInParallel() {
+        Cache.loadRecordings(
+                cache,
+                new TroxyFileHandler("src/test/java/no/sb1/troxy/util", ""),
+                new HashSet<>(Arrays.asList("test-recording.troxy", "test-recording-not-match.troxy", "test-recording-with-extra-headers.troxy", "missing.troxy")),
+                4
+        );
+
+        assertEquals(new HashSet<>(Arrays.asList("test-recording.troxy", "test-recording-not-match.troxy", "test-recording-with-extra-headers.troxy")),
+                cache.getRecordings().stream().map(Recording::getFilename).collect(Collectors.toSet()));
+    }
+
+    @Test
+    @DisplayName("searchCache should remember results for identical requests until the tree is modified")
+    void matchCacheRemembersResultsUntilTreeChanges() {
+        cache.setMatchCacheSize(100);
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/(?<id>\\d+)$", "^$", "^$"));
+
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+        List<Cache.Result> results = cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", ""));
+        assertEquals(1, results.size());
+        assertEquals("42", results.get(0).getVariables().get("PATH").group("id"));
+        assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/43", "", "x")).size());
+        assertEquals(1L, (long) cache.getMatchCacheStatistics().get("hits"));
+        assertEquals(2L, (long) cache.getMatchCacheStatistics().get("misses"));
+
+        results.clear();
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/42$", "^$", "^$"));
+        assertEquals(2, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+        assertEquals(2L, (long) cache.getMatchCacheStatistics().get("hits"));
+
+        cache.setMatchCacheSize(0);
+        assertEquals(0L, (long) cache.getMatchCacheStatistics().get("capacity"));
+        assertEquals(2, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+
+        /* a request with a larger header and content than the max request size is never remembered */
+        cache.setMatchCacheSize(100, 8);
+        for (int i = 0; i < 2; ++i)
+            assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "content", "X: y")).size());
+        assertEquals(2, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+        assertEquals(1L, (long) cache.getMatchCacheStatistics().get("size"));
+        assertEquals(2L, (long) cache.getMatchCacheStatistics().get("skipped"));
+        assertEquals(0L, (long) cache.getMatchCacheStatistics().get("hits"));
+    }
+
+    @Test
+    @DisplayName("searchCache should only evaluate regex branches whose literal prefix the value starts with, and still find all matches")
+    void regexBranchesByPrefix() {
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/(?<id>\\d+)/accounts$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/\\d+/.*$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/api/v1|/customer/42/cards$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/x?customer/\\d+/cards$", "^$", "^$"));
+        cache.addRecoding(testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "/accounts$", "^$", "^$"));
+
+        assertEquals(3, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42/accounts", "", "")).size());
+        assertEquals(3, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42/cards", "", "")).size());
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/api/v1", "", "")).size());
+        assertEquals(1, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/xcustomer/7/cards", "", "")).size());
+        assertEquals(0, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customers", "", "")).size());
+    }
+
+    @Test
+    void requiredPrefix() {
+        assertEquals("/customer/", PrefixAutomaton.requiredPrefix(Pattern.compile("^/customer/(?<id>\\d+)$", Pattern.DOTALL)));
+        assertEquals("example.com", PrefixAutomaton.requiredPrefix(Pattern.compile("^example\\.com.*$", Pattern.DOTALL)));
+        assertEquals("/customer", PrefixAutomaton.requiredPrefix(Pattern.compile("^/customers?$", Pattern.DOTALL)));
+        assertEquals("/a", PrefixAutomaton.requiredPrefix(Pattern.compile("^/a(b|c)$", Pattern.DOTALL)));
+        assertEquals("", PrefixAutomaton.requiredPrefix(Pattern.compile("^/a|/b$", Pattern.DOTALL)));
+        assertEquals("", PrefixAutomaton.requiredPrefix(Pattern.compile("^/a[|]$", Pattern.DOTALL)));
+        assertEquals("", PrefixAutomaton.requiredPrefix(Pattern.compile("/a$", Pattern.DOTALL)));
+        assertEquals("", PrefixAutomaton.requiredPrefix(Pattern.compile("^\\d+$", Pattern.DOTALL)));
+        assertEquals("", PrefixAutomaton.requiredPrefix(Pattern.compile("^abc$", Pattern.DOTALL | Pattern.MULTILINE)));
+    }
+
+    @Test
+    @DisplayName("FieldMatcher should give the same result as the regular expression, and only evaluate non-trivial regular expressions")
+    void fieldMatcher() {
+        List<String> regexes = Arrays.asList("^$", "^.*$", ".*", "", "^", "$", "^abc$", "^abc", "abc$", "abc", "^abc.*$", "^abc.*", "abc.*", "^a\\.c$", "^a\\$", "^a\\\\$", "^a\\.*$", "^a\\\\.*$", "^a.c$", "^\\d+$", "^(?i)abc$");
+        List<String> values = Arrays.asList("", "\n", "\r\n", "abc", "abc\n", "abc\n\n", "abcd", "xabc", "a.c", "a$", "a\\", "a\\x", "a.", "a...", "123", "ABC");
+        for (String regex : regexes) {
+            FieldMatcher fieldMatcher = FieldMatcher.compile(regex);
+            Pattern pattern = Pattern.compile(regex, Pattern.DOTALL);
+            for (String value : values) {
+                assertEquals(pattern.matcher(value).find(), fieldMatcher.find(value), "find " + regex + " in " + value);
+                assertEquals(pattern.matcher(value).matches(), fieldMatcher.matches(value), "match " + regex + " with " + value);
+            }
+        }
+        assertTrue(FieldMatcher.compile("^$").isTrivial());
+        assertTrue(FieldMatcher.compile("^.*$").isTrivial());
+        assertTrue(FieldMatcher.compile("^/api/v1/accounts$").isTrivial());
+        assertTrue(FieldMatcher.compile("^/api/.*$").isTrivial());
+        assertFalse(FieldMatcher.compile("^/customer/(?<id>\\d+)$").isTrivial());
+        assertSame(FieldMatcher.compile(new String("^/api/.*$")), FieldMatcher.compile(new String("^/api/.*$")));
+    }
+
+    @Test
+    @DisplayName("A tree ordered by selectivity should find the same recordings in the same order as a tree with the default order")
+    void adaptiveFieldOrder() {
+        List<Recording> recordings = new ArrayList<>();
+        String[] paths = {"^/customer/.*$", "^/accounts$", "^/customer/42$", "^.*$", "^/cards$", "^/customer/(?<id>\\d+)$"};
+        String[] hosts = {"^example\\.com$", "^.*\\.com$"};
+        for (String path : paths) {
+            for (String host : hosts) {
+                Recording recording = testRecording("^GET$", "^http$", host, "^80$", path, "^$", "^$");
+                recording.setFilename(host + path);
+                recordings.add(recording);
+            }
+        }
+        Cache fixed = Cache.createCacheRoot();
+        fixed.setAdaptiveFieldOrder(false);
+        fixed.addRecordings(recordings);
+        cache.addRecordings(recordings);
+        assertEquals(Arrays.asList("PROTOCOL", "HOST", "PORT", "PATH", "QUERY", "METHOD", "HEADER", "CONTENT"), fixed.getFieldOrder());
+        assertEquals(Arrays.asList("PATH", "PROTOCOL", "HOST", "PORT", "METHOD", "HEADER", "CONTENT", "QUERY"), cache.getFieldOrder());
+
+        Recording added = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/4.*$", "^$", "^$");
+        added.setFilename("added");
+        for (Cache c : Arrays.asList(fixed, cache)) {
+            c.removeRecording(hosts[0] + paths[2]);
+            c.removeRecording(hosts[1] + paths[0]);
+            c.addRecoding(added);
+            c.addRecoding(recordings.get(0));
+        }
+
+        for (String path : Arrays.asList("/customer/42", "/accounts", "/cards", "/other")) {
+            Request request = testRequest("GET", "http", "example.com", "80", path, "", "");
+            List<String> expected = fixed.searchCache(request).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList());
+            assertEquals(expected, cache.searchCache(request).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList()));
+        }
+        assertEquals(7, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/42", "", "")).size());
+    }
+
+    @Test
+    @DisplayName("searchCache should match conditions for single headers, regardless of other headers and their order")
+    void headerPredicates() throws Exception {
+        Recording json = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts$", "^$", "^Accept: application/json$");
+        json.getRequestPattern().getHeaderPredicates().add(new HeaderPredicate("Accept", "application/json", false));
+        json.getRequestPattern().setIgnoreOtherHeaders(true);
+        json.setFilename("json.troxy");
+        Recording xml = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts$", "^$", "^Accept: application/json$");
+        xml.getRequestPattern().getHeaderPredicates().add(new HeaderPredicate("accept", "^.*/xml$", true));
+        xml.getRequestPattern().setIgnoreOtherHeaders(true);
+        xml.setFilename("xml.troxy");
+        Recording blob = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts$", "^$", "^.*X-Trace: 42.*$");
+        blob.getRequestPattern().getHeaderPredicates().add(new HeaderPredicate("Accept", "application/json", false));
+        blob.setFilename("blob.troxy");
+        cache.addRecordings(Arrays.asList(json, xml, blob));
+
+        assertEquals(Collections.singletonList("json.troxy"), searchFilenames("User-Agent: test\nACCEPT: application/json\nX-Trace: 1"));
+        assertEquals(Collections.singletonList("xml.troxy"), searchFilenames("Accept: text/xml\nUser-Agent: test"));
+        assertEquals(Arrays.asList("json.troxy", "blob.troxy"), searchFilenames("X-Trace: 42\nAccept: application/json"));
+        assertEquals(Collections.emptyList(), searchFilenames("Accept: text/html"));
+        assertEquals(Collections.emptyList(), searchFilenames("User-Agent: test"));
+
+        Path directory = Files.createTempDirectory("troxy");
+        try {
+            TroxyFileHandler troxyFileHandler = new TroxyFileHandler(directory.toString(), "");
+            xml.setFilename("xml.troxy");
+            assertTrue(troxyFileHandler.saveRecording(xml));
+            RequestPattern loaded = troxyFileHandler.loadRecording("xml.troxy").getRequestPattern();
+            assertTrue(loaded.isIgnoreOtherHeaders());
+            assertEquals(1, loaded.getHeaderPredicates().size());
+            assertEquals("accept ~ ^.*/xml$", loaded.getHeaderPredicates().get(0).toString());
+        } finally {
+            Files.deleteIfExists(directory.resolve("xml.troxy"));
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    @DisplayName("searchCache should match conditions for values in JSON and XML content, and make their groups available as variables")
+    void contentPredicates() {
+        Recording json = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/customer$", "^.*$", "^.*$");
+        json.getRequestPattern().getContentPredicates().add(new ContentPredicate("$.customer.id", "^(?<customerId>\\d+)$"));
+        json.getRequestPattern().getContentPredicates().add(new ContentPredicate("$.accounts[1].type", "^savings$"));
+        json.getRequestPattern().setIgnoreOtherContent(true);
+        Recording xml = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/customer$", "^.*$", "^.*$");
+        xml.getRequestPattern().getContentPredicates().add(new ContentPredicate("/soap:Envelope/Body/getCustomer/@id", "^(?<customerId>\\d+)$"));
+        xml.getRequestPattern().setIgnoreOtherContent(true);
+        cache.addRecordings(Arrays.asList(json, xml));
+
+        /* reading stops when the values are found, the rest of the content is never read */
+        List<Cache.Result> results = cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer",
+                "{\"customer\": {\"name\": \"A \\\"B\\\"\", \"id\": \"42\"}, \"accounts\": [{\"type\": \"checking\"}, {\"type\": \"sav\\u0069ngs\"}], not json", ""));
+        assertEquals(1, results.size());
+        assertSame(json, results.get(0).getRecording());
+        assertEquals("42", results.get(0).getVariables().get("$.CUSTOMER.ID").group("customerId"));
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", "{\"customer\": {\"id\": \"x42\"}, \"accounts\": [{}, {\"type\": \"savings\"}]}", "")).size());
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", "{\"customer\": {\"id\": 42}}", "")).size());
+
+        results = cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer",
+                "<s:Envelope xmlns:s=\"urn:s\"><s:Header/><s:Body><getCustomer id=\"7\"><name>A</name></getCustomer></s:Body></s:Envelope>", ""));
+        assertEquals(1, results.size());
+        assertSame(xml, results.get(0).getRecording());
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", "<Envelope><Body><getCustomer/></Body></Envelope>", "")).size());
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", "", "")).size());
+
+        Map<String, String> values = ContentExtractor.extract("<a><b>x<c>y</c>z</b><b>second</b></a>", Arrays.asList("/a/b", "/a/b/c", "/a/d"));
+        assertEquals("xyz", values.get("/a/b"));
+        assertEquals("y", values.get("/a/b/c"));
+        assertFalse(values.containsKey("/a/d"));
+        assertEquals("{\"c\": [1, 2]}", ContentExtractor.extract("{\"a\": {\"c\": [1, 2]}, \"b\": true}", Collections.singletonList("$.a")).get("$.a"));
+        assertEquals("2", ContentExtractor.extract("[[1, 2]]", Collections.singletonList("$[0][1]")).get("$[0][1]"));
+        assertEquals("[{\"c\": \"]}\"}]", ContentExtractor.extract("{\"a\": [{\"c\": \"]}\"}], \"b\": 1}", Collections.singletonList("$.a")).get("$.a"));
+        assertFalse(ContentExtractor.extract("{\"a\": [1}, \"b\": 1}", Collections.singletonList("$.b")).containsKey("$.b"));
+        assertFalse(ContentExtractor.isValidPath("customer.id"));
+        assertFalse(ContentExtractor.isValidPath("$.a[x]"));
+        assertFalse(ContentExtractor.isValidPath("/a/@b/c"));
+    }
+
+    @Test
+    @DisplayName("searchCache should read deeply nested content for content predicates without running out of stack")
+    void deeplyNestedContent() {
+        Recording recording = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/customer$", "^.*$", "^.*$");
+        recording.getRequestPattern().getContentPredicates().add(new ContentPredicate("$.customer.id", "^42$"));
+        recording.getRequestPattern().setIgnoreOtherContent(true);
+        cache.addRecoding(recording);
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 100_000; ++i)
+            nested.append('[');
+
+        /* unterminated, the path isn't found */
+        assertEquals(0, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", nested.toString(), "")).size());
+        assertTrue(ContentExtractor.extract(nested.toString(), Collections.singletonList("$.a")).isEmpty());
+        for (int i = 0; i < 100_000; ++i)
+            nested.append(']');
+        String content = "{\"skipped\": " + nested + ", \"customer\": {\"nested\": " + nested + ", \"id\": \"42\"}}";
+        assertEquals(1, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", content, "")).size());
+    }
+
+    @Test
+    @DisplayName("searchCache should give each result the variables of its own branches only, also when the search context is reused")
+    void variablesPerResult() {
+        Recording customer = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/(?<resource>customer)$", "^.*$", "^.*$");
+        customer.getRequestPattern().getContentPredicates().add(new ContentPredicate("$.customer.id", "^(?<customerId>\\d+)$"));
+        customer.getRequestPattern().setIgnoreOtherContent(true);
+        Recording account = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/(?<resource>\\w+)$", "^.*$", "^.*$");
+        account.getRequestPattern().getContentPredicates().add(new ContentPredicate("$.account.id", "^(?<accountId>\\d+)$"));
+        account.getRequestPattern().setIgnoreOtherContent(true);
+        cache.addRecordings(Arrays.asList(customer, account));
+
+        List<Cache.Result> results = cache.searchCache(testRequest("POST", "http", "example.com", "80", "/customer", "{\"customer\": {\"id\": \"42\"}, \"account\": {\"id\": \"7\"}}", ""));
+        assertEquals(2, results.size());
+        assertEquals(new HashSet<>(Arrays.asList("PROTOCOL", "HOST", "PORT", "PATH", "QUERY", "METHOD", "HEADER", "CONTENT", "$.CUSTOMER.ID")), results.get(0).getVariables().keySet());
+        assertEquals("42", results.get(0).getVariables().get("$.CUSTOMER.ID").group("customerId"));
+        assertEquals(new HashSet<>(Arrays.asList("PROTOCOL", "HOST", "PORT", "PATH", "QUERY", "METHOD", "HEADER", "CONTENT", "$.ACCOUNT.ID")), results.get(1).getVariables().keySet());
+        assertEquals("7", results.get(1).getVariables().get("$.ACCOUNT.ID").group("accountId"));
+        assertEquals("customer", results.get(1).getVariables().get("PATH").group("resource"));
+
+        /* a new search doesn't change the variables of earlier results */
+        cache.searchCache(testRequest("POST", "http", "example.com", "80", "/account", "{\"account\": {\"id\": \"8\"}}", ""));
+        assertEquals("7", results.get(1).getVariables().get("$.ACCOUNT.ID").group("accountId"));
+        assertSame(account, cache.searchFirstMatch(testRequest("POST", "http", "example.com", "80", "/account", "{\"account\": {\"id\": \"8\"}}", "")).get(0).getRecording());
+    }
+
+    @Test
+    @DisplayName("searchCache should treat a regular expression exceeding the budget as not matching, and list it as a slow pattern")
+    void regexBudget() {
+        /* the backreference keeps the JDK from memoizing the nested repetition, it's exponential on any JDK */
+        Recording slow = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/$", "^(a+)+\\1$", "^.*$");
+        slow.setFilename("slow.troxy");
+        Recording fast = testRecording("^POST$", "^http$", "^example\\.com$", "^80$", "^/$", "^a+b$", "^.*$");
+        fast.setFilename("fast.troxy");
+        cache.addRecordings(Arrays.asList(slow, fast));
+        cache.setRegexBudget(100);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 40; ++i)
+            content.append('a');
+
+        List<Cache.Result> results = cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", content + "b", ""));
+        assertEquals(1, results.size());
+        assertSame(fast, results.get(0).getRecording());
+        cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", content + "c", ""));
+
+        List<Map<String, Object>> slowPatterns = cache.getSlowPatterns();
+        assertEquals(1, slowPatterns.size());
+        assertEquals("CONTENT", slowPatterns.get(0).get("field"));
+        assertEquals("^(a+)+\\1$", slowPatterns.get(0).get("pattern"));
+        assertEquals(Collections.singletonList("slow.troxy"), slowPatterns.get(0).get("recordings"));
+        assertEquals(2L, slowPatterns.get(0).get("count"));
+        /* the same regular expression matches as usual within the budget */
+        assertEquals(1, cache.searchCache(testRequest("POST", "http", "example.com", "80", "/", "aaaa", "")).size());
+    }
+
+    @Test
+    @DisplayName("getProfile should count evaluations and matches per branch, also after the tree is modified, and describe the shape of the tree")
+    @SuppressWarnings("unchecked")
+    void profile() {
+        cache.setAdaptiveFieldOrder(false);
+        Recording accounts = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts$", "^$", "^$");
+        accounts.setFilename("accounts.troxy");
+        Recording customer = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/customer/(?<id>\\d+)$", "^$", "^$");
+        customer.setFilename("customer.troxy");
+        cache.addRecordings(Arrays.asList(accounts, customer));
+        for (int i = 0; i < 3; ++i)
+            cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/" + i, "", ""));
+        cache.searchCache(testRequest("GET", "http", "example.com", "80", "/customer/x", "", ""));
+        Recording cards = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/cards$", "^$", "^$");
+        cards.setFilename("cards.troxy");
+        cache.addRecoding(cards);
+
+        Map<String, Object> profile = cache.getProfile(3);
+        assertEquals(8, profile.get("depth"));
+        assertEquals(3L, profile.get("recordings"));
+        List<Map<String, Object>> levels = (List<Map<String, Object>>) profile.get("levels");
+        Map<String, Object> pathLevel = levels.get(3);
+        assertEquals("PATH", pathLevel.get("field"));
+        assertEquals(3, pathLevel.get("nodes"));
+        assertEquals(2, pathLevel.get("literal"));
+        assertEquals(1, pathLevel.get("regex"));
+        assertEquals(3, pathLevel.get("maxFanOut"));
+
+        List<Map<String, Object>> hottest = (List<Map<String, Object>>) profile.get("hottest");
+        assertEquals(3, hottest.size());
+        assertEquals("PROTOCOL", hottest.get(0).get("field"));
+        assertEquals(4L, hottest.get(0).get("evaluations"));
+        Map<String, Object> customerPath = ((List<Map<String, Object>>) profile.get("slowest")).stream()
+                .filter(node -> "^/customer/(?<id>\\d+)$".equals(node.get("pattern"))).findFirst().orElse(null);
+        assertNotNull(customerPath);
+        assertEquals(4L, customerPath.get("evaluations"));
+        assertEquals(3L, customerPath.get("matches"));
+        assertEquals(Collections.singletonList("customer.troxy"), customerPath.get("recordings"));
+    }
+
+    @Test
+    @DisplayName("searchBestMatch should return the matching recording with the highest priority, then the most specific patterns, then the first in the results")
+    void searchBestMatch() {
+        Recording any = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/.*$", "^.*$", "^.*$");
+        any.setFilename("any.troxy");
+        Recording accounts = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/.*$", "^.*$", "^.*$");
+        accounts.setFilename("accounts.troxy");
+        Recording accountsAgain = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/.+$", "^.*$", "^.*$");
+        accountsAgain.setFilename("accounts-again.troxy");
+        Recording fallback = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/.+$", "^.*$", "^.*$");
+        fallback.setFilename("fallback.troxy");
+        fallback.setPriority(-1);
+        cache.addRecordings(Arrays.asList(any, accounts, accountsAgain, fallback));
+
+        List<String> all = cache.searchCache(testRequest("GET", "http", "example.com", "80", "/accounts/1", "", "")).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList());
+        assertEquals(4, all.size());
+        String firstAccounts = all.stream().filter(filename -> filename.startsWith("accounts")).findFirst().orElse(null);
+        assertEquals(Collections.singletonList(firstAccounts), bestFilenames("/accounts/1"));
+        assertEquals(Collections.singletonList("any.troxy"), bestFilenames("/customer/1"));
+        assertEquals(Collections.emptyList(), cache.searchBestMatch(testRequest("POST", "http", "example.com", "80", "/accounts/1", "", "")));
+
+        /* priority beats specificity */
+        any.setPriority(1);
+        cache.addRecoding(any);
+        assertEquals(Collections.singletonList("any.troxy"), bestFilenames("/accounts/1"));
+        /* the same result with the match cache */
+        cache.setMatchCacheSize(16);
+        assertEquals(Collections.singletonList("any.troxy"), bestFilenames("/accounts/1"));
+        assertEquals(Collections.singletonList("any.troxy"), bestFilenames("/accounts/1"));
+    }
+
+    @Test
+    @DisplayName("searchFirstMatch should return a single matching recording, trying the regex branches that are hit most often first")
+    void searchFirstMatch() {
+        cache.setAdaptiveFieldOrder(false);
+        Recording any = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/\\d*$", "^.*$", "^.*$");
+        any.setFilename("any.troxy");
+        Recording some = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/.+$", "^.*$", "^.*$");
+        some.setFilename("some.troxy");
+        Recording cards = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/cards$", "^.*$", "^.*$");
+        cards.setFilename("cards.troxy");
+        cache.addRecordings(Arrays.asList(any, some, cards));
+
+        assertEquals(2, cache.searchCache(testRequest("GET", "http", "example.com", "80", "/accounts/1", "", "")).size());
+        assertEquals(Collections.singletonList("any.troxy"), firstFilenames("/accounts/1"));
+        assertEquals(Collections.singletonList("cards.troxy"), firstFilenames("/cards"));
+        assertEquals(Collections.emptyList(), firstFilenames("/customer"));
+
+        /* only the second branch matches "/accounts/x", and after enough searches it's tried first */
+        for (int i = 0; i < 1100; ++i)
+            assertEquals(Collections.singletonList("some.troxy"), firstFilenames("/accounts/x"));
+        assertEquals(Collections.singletonList("some.troxy"), firstFilenames("/accounts/1"));
+        assertEquals(1104L, cache.getFirstMatchStatistics().get("searches"));
+    }
+
+    @Test
+    @DisplayName("analyzeAmbiguity should report recordings matched by the original request of another recording, and recordings not matched by their own")
+    @SuppressWarnings("unchecked")
+    void analyzeAmbiguity() {
+        Recording digits = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/\\d*$", "^.*$", "^.*$");
+        digits.setFilename("digits.troxy");
+        digits.getRequestPattern().setOriginalRequest(testRequest("GET", "http", "example.com", "80", "/accounts/1", "", ""));
+        Recording any = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/accounts/.+$", "^.*$", "^.*$");
+        any.setFilename("any.troxy");
+        any.getRequestPattern().setOriginalRequest(testRequest("GET", "http", "example.com", "80", "/accounts/x", "", ""));
+        Recording edited = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/cards$", "^.*$", "^.*$");
+        edited.setFilename("edited.troxy");
+        edited.getRequestPattern().setOriginalRequest(testRequest("GET", "http", "example.com", "80", "/customer", "", ""));
+        Recording unknown = testRecording("^GET$", "^http$", "^example\\.com$", "^80$", "^/.*$", "^.*$", "^.*$");
+        unknown.setFilename("unknown.troxy");
+        assertNull(cache.getAmbiguityReport());
+        cache.addRecordings(Arrays.asList(digits, any, edited, unknown));
+
+        Map<String, Object> report = cache.analyzeAmbiguity();
+        assertSame(report, cache.getAmbiguityReport());
+        assertEquals(3L, report.get("analyzed"));
+        assertEquals(Collections.singletonList("edited.troxy"), report.get("unmatched"));
+        List<Map<String, Object>> ambiguous = (List<Map<String, Object>>) report.get("ambiguous");
+        assertEquals(4, ambiguous.size());
+        assertEquals(Arrays.asList("any.troxy", "digits.troxy"), ambiguous.get(0).get("recordings"));
+        assertEquals(Collections.singletonList("digits.troxy"), ambiguous.get(0).get("matchedBy"));
+        assertEquals(Arrays.asList("any.troxy", "unknown.troxy"), ambiguous.get(1).get("recordings"));
+        assertEquals(Collections.singletonList("any.troxy"), ambiguous.get(1).get("matchedBy"));
+        assertEquals(Arrays.asList("digits.troxy", "unknown.troxy"), ambiguous.get(2).get("recordings"));
+        assertEquals(Arrays.asList("edited.troxy", "unknown.troxy"), ambiguous.get(3).get("recordings"));
+    }
+
+    private List<String> firstFilenames(String path) {
+        return cache.searchFirstMatch(testRequest("GET", "http", "example.com", "80", path, "", "")).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList());
+    }
+
+    private List<String> bestFilenames(String path) {
+        return cache.searchBestMatch(testRequest("GET", "http", "example.com", "80", path, "", "")).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList());
+    }
+
+    private List<String> searchFilenames(String header) {
+        return cache.searchCache(testRequest("GET", "http", "example.com", "80", "/accounts", "", header)).stream().map(result -> result.getRecording().getFilename()).collect(Collectors.toList());
+    }
+
+    @Test
+    void unescapeLiteral() {
+        assertEquals("/api/v1/accounts", Cache.unescapeLiteral("^/api/v1/accounts$"));
+        assertEquals("example.com", Cache.unescapeLiteral("^example\\.com$"));
+        assertEquals("", Cache.unescapeLiteral("^$"));
+        assertEquals("a$b", Cache.unescapeLiteral("^a\\$b$"));
+        assertNull(Cache.unescapeLiteral("^.*$"));
+        assertNull(Cache.unescapeLiteral("^\\d+$"));
+        assertNull(Cache.unescapeLiteral("^abc\\$"));
+        assertNull(Cache.unescapeLiteral("abc"));
+    }
+
     private Recording testRecording(final String method, final String protocol, final String host, final String port, final String path, final String content, final String header) {
         final Recording recording = new Recording();
         recording.setResponseStrategy(Recording.ResponseStrategy.SEQUENTIAL);
@@ -2,6 +2,7 @@ package no.sb1.troxy.embedded;
 
 import no.sb1.troxy.common.Config;
 import no.sb1.troxy.common.Mode;
+import no.sb1.troxy.http.common.FilterChain;
 import no.sb1.troxy.jetty.TroxyJettyServer;
 import no.sb1.troxy.util.*;
 import org.eclipse.jetty.server.handler.HandlerList;
@@ -96,7 +97,7 @@ public class TroxyEmbedded {
         // and finally the simulator handler
         SimulatorHandler simulatorHandler = new SimulatorHandler(
                 new ModeHolder(mode),
-                new ArrayList<>() /*  (no filter classes?) */,
+                new FilterChain() /*  (no filters?) */,
                 config,
                 troxyFileHandler,
                 cache,
@@ -0,0 +1,64 @@
+package no.sb1.troxy.embedded;
+
+import no.sb1.troxy.jetty.TroxyJettyServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static java.lang.String.format;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ContentIntegrationTest {
+
+    @Test
+    public void troxy_should_read_and_write_content_larger_than_the_buffers() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < 200_000; ++i)
+            body.append(i).append(' ');
+
+        HttpPost request = new HttpPost(format("http://localhost:9999%s", "/echo"));
+        request.addHeader("Host", "testhost:8000");
+        request.setEntity(new StringEntity(body.toString()));
+        HttpResponse httpResponse = HttpClientBuilder.create().build().execute(request);
+
+        byte[] expected = body.toString().getBytes(StandardCharsets.UTF_8);
+        assertThat(httpResponse.getStatusLine().getStatusCode(), equalTo(SC_OK));
+        assertThat(httpResponse.getFirstHeader("Content-Length").getValue(), equalTo(String.valueOf(expected.length)));
+        assertThat(EntityUtils.toByteArray(httpResponse.getEntity()), equalTo(expected));
+    }
+
+    @Test
+    public void troxy_should_complete_response_without_content() throws IOException {
+        HttpGet request = new HttpGet(format("http://localhost:9999%s", "/empty"));
+        request.addHeader("Host", "testhost:8000");
+        HttpResponse httpResponse = HttpClientBuilder.create().build().execute(request);
+
+        assertThat(httpResponse.getStatusLine().getStatusCode(), equalTo(SC_OK));
+        assertThat(httpResponse.getFirstHeader("Content-Length").getValue(), equalTo("0"));
+        assertThat(EntityUtils.toByteArray(httpResponse.getEntity()), equalTo(new byte[0]));
+    }
+
+    private static TroxyJettyServer troxyJettyServer;
+
+    @BeforeAll
+    public static void setup() {
+        troxyJettyServer = TroxyEmbedded.runTroxyEmbedded(Arrays.asList("src/test/resources/content/echo.troxy", "src/test/resources/content/empty.troxy"), 9999);
+    }
+
+    @AfterAll
+    public static void teardown() {
+        troxyJettyServer.stop();
+    }
+}
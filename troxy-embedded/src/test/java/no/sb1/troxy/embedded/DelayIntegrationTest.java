@@ -0,0 +1,85 @@
+package no.sb1.troxy.embedded;
+
+import no.sb1.troxy.jetty.TroxyJettyServer;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static java.util.Collections.singletonList;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class DelayIntegrationTest {
+    private static final int REQUESTS = 20;
+    /**
+     * Threads handling requests, fewer than the requests so a delay holding on to a thread would make the requests queue up.
+     */
+    private static final int WORKERS = 2;
+
+    @Test
+    public void troxy_should_send_delayed_responses_after_the_delay_specified_in_troxy_file() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            List<Future<Long>> elapsed = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < REQUESTS; ++i)
+                elapsed.add(clients.submit(() -> millisForRequestTo("/delayed")));
+            for (Future<Long> millis : elapsed)
+                assertThat(millis.get(10, TimeUnit.SECONDS), greaterThanOrEqualTo(300L));
+            /* the delays overlap, sleeping in the few workers would queue up the requests for many times the delay */
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(5 * 300L));
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private static long millisForRequestTo(String path) throws Exception {
+        HttpUriRequest request = new HttpGet(format("http://localhost:9999%s", path));
+        request.addHeader("Host", "testhost:8000");
+        HttpClient client = HttpClientBuilder.create().build();
+
+        long start = System.nanoTime();
+        HttpResponse httpResponse = client.execute(request);
+        assertThat(httpResponse.getStatusLine().getStatusCode(), equalTo(SC_OK));
+        assertThat(EntityUtils.toString(httpResponse.getEntity()), equalTo("doh"));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static TroxyJettyServer troxyJettyServer;
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        troxyJettyServer = TroxyEmbedded.runTroxyEmbedded(singletonList("src/test/resources/delay/delayed.troxy"), 9999);
+        /* restart with only a few threads besides those the connector holds on to */
+        QueuedThreadPool threadPool = (QueuedThreadPool) troxyJettyServer.jettyServer.getThreadPool();
+        int leased = threadPool.getThreadPoolBudget().getLeasedThreads();
+        troxyJettyServer.jettyServer.stop();
+        threadPool.setMinThreads(leased + WORKERS);
+        threadPool.setMaxThreads(leased + WORKERS);
+        threadPool.setReservedThreads(0);
+        troxyJettyServer.jettyServer.start();
+    }
+
+    @AfterAll
+    public static void teardown() {
+        troxyJettyServer.stop();
+    }
+}
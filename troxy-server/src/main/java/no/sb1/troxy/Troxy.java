@@ -3,6 +3,9 @@ package no.sb1.troxy;
 import no.sb1.troxy.common.Config;
 import no.sb1.troxy.common.Mode;
 import no.sb1.troxy.http.common.Filter;
+import no.sb1.troxy.http.common.FilterChain;
+import no.sb1.troxy.http.common.LegacyFilterAdapter;
+import no.sb1.troxy.http.common.SharedFilter;
 import no.sb1.troxy.jetty.TroxyJettyServer;
 import no.sb1.troxy.jetty.TroxyJettyServer.TroxyJettyServerConfig.TroxyJettyServerConfigBuilder;
 import no.sb1.troxy.rest.ApiHandler;
@@ -91,7 +94,7 @@ public class Troxy implements Runnable {
     private final Cache cache;
     private final StatisticsCollector statisticsCollector;
     private TroxyFileHandler troxyFileHandler;
-    private List<Class<Filter>> filterClasses = new ArrayList<>();
+    private final FilterChain filterChain = new FilterChain();
     private static TroxyJettyServer server;
     private KeyManager[] proxyKeyManagers = null;
     private boolean proxyForceHttps = false;
@@ -176,7 +179,7 @@ public class Troxy implements Runnable {
             handlerList.addHandler(restHandler);
         }
         //Main handler
-        SimulatorHandler simulatorHandler = new SimulatorHandler(modeHolder, filterClasses, config, troxyFileHandler, cache, server);
+        SimulatorHandler simulatorHandler = new SimulatorHandler(modeHolder, filterChain, config, troxyFileHandler, cache, server);
         handlerList.addHandler(simulatorHandler);
         return handlerList;
     }
@@ -199,6 +202,15 @@ public class Troxy implements Runnable {
         this.modeHolder.mode = Mode.valueOf(mode);
     }
 
+    /**
+     * Get how many times, and for how long, each filter is invoked.
+     *
+     * @return Name, invocations and total time in nanoseconds for each filter, in the order they're executed.
+     */
+    public List<Map<String, Object>> getFilterStatistics() {
+        return filterChain.getStatistics();
+    }
+
 
     public TroxyJettyServer.TroxyJettyServerConfig createConfig() {
         int port;
@@ -271,6 +283,11 @@ public class Troxy implements Runnable {
         TroxyFileHandler troxyFileHandler = new TroxyFileHandler(recordingDirectory, loadedRecordingsFile);
 
         Cache cache = Cache.createCacheRoot();
+        cache.setMatchCacheSize(Cache.parseMatchCacheSize(config), Cache.parseMatchCacheMaxRequestSize(config));
+        cache.setAdaptiveFieldOrder(Cache.parseAdaptiveFieldOrder(config));
+        cache.setRegexBudget(Cache.parseRegexBudget(config));
+        cache.setFirstMatch(Cache.parseFirstMatch(config));
+        cache.setAmbiguityAnalysis(Cache.parseAmbiguityAnalysis(config));
         /* add recordings that were loaded when Troxy stopped */
         File loadedRecordings = new File(loadedRecordingsFile);
         if (loadedRecordings.exists()) {
@@ -279,7 +296,7 @@ public class Troxy implements Runnable {
                 String filename;
                 while ((filename = loadedFilesReader.readLine()) != null)
                     loadRecordings.add(filename);
-                Cache.loadRecordings(cache, troxyFileHandler, loadRecordings);
+                Cache.loadRecordings(cache, troxyFileHandler, loadRecordings, Cache.parseLoadParallelism(config));
             } catch (IOException e) {
                 log.warn("Unable to read file with loaded recordings", e);
             }
@@ -317,6 +334,11 @@ public class Troxy implements Runnable {
         config.reload();
         modeHolder.mode = Mode.valueOf(config.getValue(KEY_MODE, DEFAULT_MODE.name()).toUpperCase());
         updateStatisticsInterval();
+        cache.setMatchCacheSize(Cache.parseMatchCacheSize(config), Cache.parseMatchCacheMaxRequestSize(config));
+        cache.setAdaptiveFieldOrder(Cache.parseAdaptiveFieldOrder(config));
+        cache.setRegexBudget(Cache.parseRegexBudget(config));
+        cache.setFirstMatch(Cache.parseFirstMatch(config));
+        cache.setAmbiguityAnalysis(Cache.parseAmbiguityAnalysis(config));
         loadFilters();
         initProxySettings();
         return true;
@@ -347,7 +369,8 @@ public class Troxy implements Runnable {
     }
 
     /**
-     * Load filterClasses.
+     * Load filters.
+     * Each filter is instantiated once and shared by all requests, legacy filters are wrapped in a {@link LegacyFilterAdapter}.
      */
     private void loadFilters() {
         log.info("Loading filters from {}", filterDirectory);
@@ -357,7 +380,7 @@ public class Troxy implements Runnable {
         } catch (IOException e) {
             log.warn("Unable to read files from directory: {}", filterDirectory, e);
         }
-        filterClasses.clear();
+        List<SharedFilter> loadedFilters = new ArrayList<>();
         for (String filename : files) {
             if (!filename.endsWith(".jar")) {
                 log.info("Skipping file (unknown type): {}", filename);
@@ -376,22 +399,30 @@ public class Troxy implements Runnable {
                     try {
                         entryName = entryName.substring(0, entryName.lastIndexOf('.'));
                         entryName = entryName.replace('/', '.');
-                        Class<Filter> filterClass = (Class<Filter>) classLoader.loadClass(entryName);
-                        /* force filterClasses to [re]load configuration */
-                        Filter filter = filterClass.newInstance();
+                        Class<?> filterClass = classLoader.loadClass(entryName);
+                        SharedFilter filter;
+                        if (SharedFilter.class.isAssignableFrom(filterClass)) {
+                            filter = (SharedFilter) filterClass.getDeclaredConstructor().newInstance();
+                        } else if (Filter.class.isAssignableFrom(filterClass)) {
+                            filter = new LegacyFilterAdapter(filterClass.asSubclass(Filter.class));
+                        } else {
+                            log.info("Skipping class (not a filter): {}", entryName);
+                            continue;
+                        }
+                        /* force filter to [re]load configuration */
                         filter.reload(config);
                         if (filter.isEnabled()) {
-                            filterClasses.add(filterClass);
+                            loadedFilters.add(filter);
                             log.info("Loaded filter {}", entryName);
                         } else {
                             log.info("Not loading filter {} as it's disabled", entryName);
                         }
                     } catch (ClassNotFoundException e) {
                         log.warn("Unable to load file \"{}\" as a class", entryName, e);
-                    } catch (InstantiationException e) {
+                    } catch (ReflectiveOperationException e) {
                         log.warn("Unable to instantiate filter \"{}\"", entryName, e);
-                    } catch (IllegalAccessException e) {
-                        log.warn("Unable to access filter \"{]\"", entryName, e);
+                    } catch (IllegalStateException e) {
+                        log.warn("Unable to load filter \"{}\"", entryName, e);
                     }
                 }
             } catch (MalformedURLException e) {
@@ -400,8 +431,10 @@ public class Troxy implements Runnable {
                 log.warn("Unable to read file \"{}\" as a jar file", filename, e);
             }
         }
-        Collections.sort(filterClasses, (o1, o2) -> o1.getName().compareTo(o2.getName()));
-        log.info("Filters will be executed in this order: {}", filterClasses.stream().map(Class::getName).collect(Collectors.joining(", ")));
+        loadedFilters.sort(Comparator.comparing(SharedFilter::getName));
+        /* compile the regular expressions of all filters together, requests being handled keep the filters they started with */
+        filterChain.setFilters(loadedFilters);
+        log.info("Filters will be executed in this order: {}", loadedFilters.stream().map(SharedFilter::getName).collect(Collectors.joining(", ")));
     }
 
     private void initProxySettings() {
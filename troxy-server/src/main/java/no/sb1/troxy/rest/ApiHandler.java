@@ -134,9 +134,8 @@ public class ApiHandler {
             else
                 recordingFiles.remove(file.getKey());
         }
-        // recordingFiles now contains all the recordings we want activated, clear cache and load in the recordings
-        cache.clear();
-        Cache.loadRecordings(cache, troxyFileHandler, recordingFiles);
+        // recordingFiles now contains all the recordings we want activated, replace the recordings in the cache
+        Cache.reloadRecordings(cache, troxyFileHandler, recordingFiles, Cache.parseLoadParallelism(config));
         Map<String, Boolean> loadedRecordings = getRecordings();
         Map<String, Integer> result = new HashMap<>();
         for (String file : actualFiles.keySet()) {
@@ -178,16 +177,13 @@ public class ApiHandler {
         if (!troxyFileHandler.saveRecording(recording))
             throw new IllegalArgumentException("Unable to save file, see log for details");
 
-        boolean reload = false;
-        Set<String> reloadRecordings = new HashSet<>();
-        for (Recording loadedRecording : cache.getRecordings()) {
-            if (recordingFile.equals(loadedRecording.getFilename()))
-                reload = true;
-            reloadRecordings.add(loadedRecording.getFilename());
-        }
-        if (reload) {
-            cache.clear();
-            Cache.loadRecordings(cache, troxyFileHandler, reloadRecordings);
+        // if the recording is loaded, replace it with the saved version
+        if (cache.getRecordings().stream().anyMatch(loadedRecording -> recordingFile.equals(loadedRecording.getFilename()))) {
+            Recording savedRecording = troxyFileHandler.loadRecording(recordingFile);
+            if (savedRecording != null)
+                cache.replaceRecording(savedRecording);
+            else
+                cache.removeRecording(recordingFile);
         }
 
         Map<String, Long> matchResult = new HashMap<>();
@@ -215,7 +211,11 @@ public class ApiHandler {
     @Path("recordings/{path: .*}")
     public void deleteRecording(@PathParam("path") String path) throws IOException {
         troxyFileHandler.deleteDirectoryOrRecording(path);
-        setRecordings(cache.getRecordings().stream().collect(Collectors.toMap(Recording::getFilename, recording -> troxyFileHandler.fileExists(recording.getFilename()))));
+        // remove deleted recordings from the cache
+        cache.getRecordings().stream()
+                .map(Recording::getFilename)
+                .filter(filename -> !troxyFileHandler.fileExists(filename))
+                .forEach(cache::removeRecording);
     }
 
     @POST
@@ -289,6 +289,63 @@ public class ApiHandler {
         return getConfiguration();
     }
 
+    @GET
+    @Path("filters/statistics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> getFilterStatistics() {
+        return troxy.getFilterStatistics();
+    }
+
+    @GET
+    @Path("cache/matches")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Long> getMatchCacheStatistics() {
+        return cache.getMatchCacheStatistics();
+    }
+
+    @GET
+    @Path("cache/firstMatch")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Long> getFirstMatchStatistics() {
+        return cache.getFirstMatchStatistics();
+    }
+
+    @GET
+    @Path("cache/ambiguity")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getAmbiguityReport() {
+        Map<String, Object> report = cache.getAmbiguityReport();
+        return report == null ? Collections.emptyMap() : report;
+    }
+
+    @POST
+    @Path("cache/ambiguity")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> analyzeAmbiguity() {
+        return cache.analyzeAmbiguity();
+    }
+
+    @GET
+    @Path("cache/fieldOrder")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<String> getFieldOrder() {
+        return cache.getFieldOrder();
+    }
+
+    @GET
+    @Path("cache/profile")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getCacheProfile(@QueryParam("limit") @DefaultValue("20") int limit) {
+        return cache.getProfile(limit);
+    }
+
+    @GET
+    @Path("cache/slowPatterns")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> getSlowPatterns() {
+        return cache.getSlowPatterns();
+    }
+
     @GET
     @Path("statistics")
     @Produces(MediaType.APPLICATION_JSON)
@@ -412,8 +469,13 @@ public class ApiHandler {
             return -2;
         }
         long startTime = System.currentTimeMillis();
-        if (pattern.matcher(text).matches())
-            return System.currentTimeMillis() - startTime;
+        try {
+            if (pattern.matcher(cache.getRegexBudget().limit(text)).matches())
+                return System.currentTimeMillis() - startTime;
+        } catch (RegexBudget.ExceededException | StackOverflowError e) {
+            // same limit as when searching the cache, the recording would never match
+            return -3;
+        }
         return -1;
     }
 
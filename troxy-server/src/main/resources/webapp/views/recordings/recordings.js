@@ -864,6 +864,9 @@ Troxy.registerView("recordings", Backbone.View.extend({
                         } else if (ms == -1) {
                             title = "Regulært uttrykk treffer ikke data i originalt opptak for dette feltet";
                             color = "orange";
+                        } else if (ms == -3) {
+                            title = "Regulært uttrykk brukte for lang tid på data i originalt opptak for dette feltet, og vil aldri treffe";
+                            color = "red";
                         } else if (ms > 50) {
                             color = "yellow";
                         } else {